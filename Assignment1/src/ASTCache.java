@@ -0,0 +1,154 @@
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Bounded in-memory cache from program text to its AST, for callers that
+ *  parse the same programs again and again.  ASTs are immutable, so the
+ *  tree returned for a program is shared by every caller that asks for it.
+ *
+ *  The cache holds at most maxEntries programs whose texts total at most
+ *  maxWeight chars, counted over the whole cache; while programs are being
+ *  stored by several threads at once it may exceed them briefly, until
+ *  those stores return.  A program longer than maxWeight chars is never
+ *  cached.  The cache is split into segments locked separately, each an
+ *  LRU list: a store that takes the cache past a bound drops the least
+ *  recently used programs of its own segment, and then of the segments
+ *  after it in turn, until the cache is within its bounds again.
+ *
+ *  Programs are parsed outside the locks, on a Parser kept by each thread;
+ *  two threads missing on the same text both parse it, and the first tree
+ *  stored is the one kept.  Programs that fail to parse are not cached.
+ */
+class ASTCache {
+
+    private static final int SEGMENT_BITS = 3;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private final int maxEntries;
+    private final long maxWeight;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong weight = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+
+    private final ThreadLocal<Parser> parsers = new ThreadLocal<Parser>() {
+        protected Parser initialValue() { return new Parser(new StringReader("")); }
+    };
+
+    /** Constructs a cache of at most maxEntries programs totalling at most
+     *  maxWeight chars */
+    ASTCache(int maxEntries, long maxWeight) {
+        if (maxEntries < 0 || maxWeight < 0) throw new IllegalArgumentException("negative bound");
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        for (int i = 0; i < segments.length; i++) segments[i] = new Segment();
+    }
+
+    /** Returns the AST of program, parsing it only if it is not cached
+     * @throws ParseException if program has a syntax error
+     */
+    public AST parse(String program) {
+        int h = program.hashCode() * 0x9E3779B9, i = h >>> (32 - SEGMENT_BITS);
+        Segment s = segments[i];
+        AST ast = s.get(program);
+        if (ast != null) {
+            hits.increment();
+            return ast;
+        }
+        misses.increment();
+        long start = System.nanoTime();
+        Parser parser = parsers.get();
+        parser.reset(program);
+        ast = parser.parse();
+        loadNanos.add(System.nanoTime() - start);
+        if (program.length() > maxWeight || maxEntries == 0) return ast;  // would evict everything
+        AST kept = s.put(program, ast);
+        if (kept == ast) trim(i, program);
+        return kept;
+    }
+
+    /** Drops programs, starting with segment i, until the cache is within
+     *  its bounds, but never program itself, which was just stored there */
+    private void trim(int i, String program) {
+        for (int k = 0; k < segments.length && (size.get() > maxEntries || weight.get() > maxWeight); ) {
+            if (! segments[(i + k) & (segments.length - 1)].evictEldest(program)) k++;
+        }
+    }
+
+    /** Returns the number of parse() calls answered from the cache */
+    public long hits() { return hits.sum(); }
+
+    /** Returns the number of parse() calls that parsed the program */
+    public long misses() { return misses.sum(); }
+
+    /** Returns the fraction of parse() calls answered from the cache */
+    public double hitRatio() {
+        long h = hits(), n = h + misses();
+        return n == 0 ? 1.0 : (double) h / n;
+    }
+
+    /** Returns the number of programs dropped to keep within the bounds */
+    public long evictions() { return evictions.sum(); }
+
+    /** Returns the total time spent parsing programs that were not cached */
+    public long loadNanos() { return loadNanos.sum(); }
+
+    /** Returns the number of programs cached */
+    public int size() { return size.get(); }
+
+    /** Returns the total length of the programs cached */
+    public long weight() { return weight.get(); }
+
+    /** Drops every program */
+    public void clear() {
+        for (Segment s : segments) s.clear();
+    }
+
+    public String toString() {
+        return "ASTCache[size=" + size() + ", weight=" + weight() + ", hits=" + hits() + ", misses=" + misses()
+                + ", evictions=" + evictions() + ", loadNanos=" + loadNanos() + "]";
+    }
+
+    /** LRU map of a share of the programs */
+    private final class Segment {
+        private final LinkedHashMap<String,AST> map = new LinkedHashMap<String,AST>(16, 0.75f, true);
+
+        synchronized AST get(String program) { return map.get(program); }
+
+        /** Caches ast for program unless some AST is cached for it already,
+         *  and returns the cached AST */
+        synchronized AST put(String program, AST ast) {
+            AST old = map.get(program);
+            if (old != null) return old;
+            map.put(program, ast);
+            size.incrementAndGet();
+            weight.addAndGet(program.length());
+            return ast;
+        }
+
+        /** Drops the least recently used program unless it is keep;
+         *  returns false if none was dropped */
+        synchronized boolean evictEldest(String keep) {
+            Iterator<String> eldest = map.keySet().iterator();
+            if (! eldest.hasNext()) return false;
+            String program = eldest.next();
+            if (program == keep) return false;  // the rest were used since it was stored
+            eldest.remove();
+            size.decrementAndGet();
+            weight.addAndGet(- program.length());
+            evictions.increment();
+            return true;
+        }
+
+        synchronized void clear() {
+            for (String program : map.keySet()) weight.addAndGet(- program.length());
+            size.addAndGet(- map.size());
+            map.clear();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.lang.ref.*;
+
+/** Maker of the AST nodes built by the parsers.  This factory makes a new
+ *  node for every call; a HashConser returns shared ones.  Variables,
+ *  primitives and the boolean and null constants are shared by the Lexer
+ *  already, so only int constants and composite nodes go through here.
+ */
+class ASTFactory {
+
+    /** The factory parsers use unless given another */
+    static final ASTFactory PLAIN = new ASTFactory();
+
+    /** Returns the node to use for the int constant i read by the Lexer */
+    IntConstant makeInt(IntConstant i) { return i; }
+
+    UnOpApp makeUnOpApp(Op rator, AST arg) { return new UnOpApp(rator, arg); }
+    BinOpApp makeBinOpApp(Op rator, AST arg1, AST arg2) { return new BinOpApp(rator, arg1, arg2); }
+    App makeApp(AST rator, AST[] args) { return new App(rator, args); }
+    Map makeMap(Variable[] vars, AST body) { return new Map(vars, body); }
+    If makeIf(AST test, AST conseq, AST alt) { return new If(test, conseq, alt); }
+    Let makeLet(Def[] defs, AST body) { return new Let(defs, body); }
+
+    /** Returns a LazyMap, whose body is made by this factory when it is parsed */
+    LazyMap makeLazyMap(Variable[] vars, int hash, java.nio.ByteBuffer input, int start, int end, int line, int lineStart) {
+        return new LazyMap(vars, hash, input, start, end, line, lineStart, this);
+    }
+}
+
+/** ASTFactory that hash-conses: it returns one canonical node for all the
+ *  structurally equal nodes it is asked to make, so equal subtrees are
+ *  shared and can be compared with ==.  The children of a node must be
+ *  canonical themselves, as they are when a parser builds a tree bottom up
+ *  with this factory, so finding a node's canonical twin takes the node's
+ *  cached hash code and a comparison of its own fields.
+ *
+ *  The interning table refers to its nodes weakly, so a canonical node
+ *  lives only as long as some tree uses it.  The table is split into
+ *  segments locked separately, so parsers on many threads can share one
+ *  HashConser.
+ */
+class HashConser extends ASTFactory {
+
+    private static final int SEGMENT_BITS = 5;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    HashConser() {
+        for (int i = 0; i < segments.length; i++) segments[i] = new Segment();
+    }
+
+    IntConstant makeInt(IntConstant i) { return intern(i); }
+    UnOpApp makeUnOpApp(Op rator, AST arg) { return intern(new UnOpApp(rator, arg)); }
+    BinOpApp makeBinOpApp(Op rator, AST arg1, AST arg2) { return intern(new BinOpApp(rator, arg1, arg2)); }
+    App makeApp(AST rator, AST[] args) { return intern(new App(rator, args)); }
+    Map makeMap(Variable[] vars, AST body) { return intern(new Map(vars, body)); }
+    If makeIf(AST test, AST conseq, AST alt) { return intern(new If(test, conseq, alt)); }
+    Let makeLet(Def[] defs, AST body) { return intern(new Let(defs, body)); }
+
+    /** Returns the number of canonical nodes still in use */
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) n += s.size();
+        return n;
+    }
+
+    /** Returns the canonical node equal to n, which has canonical children;
+     *  n becomes canonical if there is none */
+    @SuppressWarnings("unchecked")
+    private <T extends AST> T intern(T n) {
+        int h = n.hashCode() * 0x9E3779B9;  // spread the bits over the segment and bucket indices
+        return (T) segments[h >>> (32 - SEGMENT_BITS)].intern(n, h);
+    }
+
+    /** Returns whether the nodes a and b, whose children are canonical, are
+     *  structurally equal */
+    private static boolean same(AST a, AST b) {
+        if (a.getClass() != b.getClass()) return false;
+        if (a instanceof IntConstant) return ((IntConstant) a).getValue() == ((IntConstant) b).getValue();
+        if (a instanceof UnOpApp) {
+            UnOpApp x = (UnOpApp) a, y = (UnOpApp) b;
+            return x.getRator() == y.getRator() && x.getArg() == y.getArg();
+        }
+        if (a instanceof BinOpApp) {
+            BinOpApp x = (BinOpApp) a, y = (BinOpApp) b;
+            return x.getRator() == y.getRator() && x.getArg1() == y.getArg1() && x.getArg2() == y.getArg2();
+        }
+        if (a instanceof App) {
+            App x = (App) a, y = (App) b;
+            return x.getRator() == y.getRator() && same(x.getArgs(), y.getArgs());
+        }
+        if (a instanceof If) {
+            If x = (If) a, y = (If) b;
+            return x.getTest() == y.getTest() && x.getConseq() == y.getConseq() && x.getAlt() == y.getAlt();
+        }
+        if (a instanceof Map) {
+            Map x = (Map) a, y = (Map) b;
+            return x.getBody() == y.getBody() && same(x.getVars(), y.getVars());
+        }
+        Let x = (Let) a, y = (Let) b;
+        Def[] xs = x.getDefs(), ys = y.getDefs();
+        if (x.getBody() != y.getBody() || xs.length != ys.length) return false;
+        for (int i = 0; i < xs.length; i++)
+            if (xs[i].getLhs() != ys[i].getLhs() || xs[i].getRhs() != ys[i].getRhs()) return false;
+        return true;
+    }
+
+    private static boolean same(Object[] a, Object[] b) {
+        if (a.length != b.length) return false;
+        for (int i = 0; i < a.length; i++)
+            if (a[i] != b[i]) return false;
+        return true;
+    }
+
+    /** Weak reference to a canonical node in a bucket chain */
+    private static final class Entry extends WeakReference<AST> {
+        final int hash;
+        Entry next;
+
+        Entry(AST n, int h, Entry e, ReferenceQueue<AST> q) {
+            super(n, q);
+            hash = h;
+            next = e;
+        }
+    }
+
+    /** Open hash table of canonical nodes with chained buckets */
+    private static final class Segment {
+        private final ReferenceQueue<AST> queue = new ReferenceQueue<AST>();
+        private Entry[] table = new Entry[16];
+        private int count;
+
+        synchronized AST intern(AST n, int h) {
+            expunge();
+            int i = index(h);
+            for (Entry e = table[i]; e != null; e = e.next) {
+                if (e.hash != h) continue;
+                AST m = e.get();
+                if (m != null && same(m, n)) return m;
+            }
+            if (count >= table.length - (table.length >>> 2)) {
+                resize();
+                i = index(h);
+            }
+            table[i] = new Entry(n, h, table[i], queue);
+            count++;
+            return n;
+        }
+
+        synchronized int size() {
+            expunge();
+            return count;
+        }
+
+        /** Unlinks the entries whose nodes have been collected */
+        private void expunge() {
+            for (Reference<? extends AST> r; (r = queue.poll()) != null; ) {
+                Entry dead = (Entry) r;
+                int i = index(dead.hash);
+                for (Entry e = table[i], prev = null; e != null; prev = e, e = e.next) {
+                    if (e == dead) {
+                        if (prev == null) table[i] = e.next;
+                        else prev.next = e.next;
+                        count--;
+                        break;
+                    }
+                }
+            }
+        }
+
+        private int index(int h) { return (h ^ (h >>> 16)) & (table.length - 1); }
+
+        private void resize() {
+            Entry[] old = table;
+            table = new Entry[2 * old.length];
+            for (Entry e : old) {
+                while (e != null) {
+                    Entry next = e.next;
+                    int i = index(e.hash);
+                    e.next = table[i];
+                    table[i] = e;
+                    e = next;
+                }
+            }
+        }
+    }
+}
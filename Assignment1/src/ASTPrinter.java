@@ -0,0 +1,159 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/** Visitor that prints an AST to any Appendable in a single pass.  The
+ *  output is the text defined by the AST classes' toString() methods, which
+ *  are implemented with this printer.
+ *
+ *  Each visit appends the text that precedes a node's first child and
+ *  pushes its children and the text between them onto an explicit work
+ *  stack.  No intermediate Strings are built for subtrees, each char is
+ *  appended once, and trees of any depth can be printed without Java
+ *  recursion.
+ */
+class ASTPrinter implements ASTVisitor<Void> {
+
+    private final Appendable out;
+    private Object[] work = new Object[64];  // ASTs to visit and Strings to append
+    private int top;
+
+    ASTPrinter(Appendable out) { this.out = out; }
+
+    /** Returns the printed form of ast */
+    public static String toString(AST ast) {
+        StringBuilder sb = new StringBuilder();
+        new ASTPrinter(sb).run(ast);
+        return sb.toString();
+    }
+
+    /** Prints ast to out */
+    public static void print(AST ast, Appendable out) throws IOException {
+        try {
+            new ASTPrinter(out).run(ast);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /** Prints ast to the file named fileName, replacing its contents */
+    public static void print(AST ast, String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        Writer w = new BufferedWriter(Channels.newWriter(channel, "UTF-8"), 1 << 16);
+        try {
+            print(ast, w);
+        } finally {
+            w.close();
+        }
+    }
+
+    /** Prints ast and everything pushed while printing it */
+    private void run(AST ast) {
+        ast.accept(this);
+        while (top > 0) {
+            Object o = work[--top];
+            work[top] = null;
+            if (o instanceof String) append((String) o);
+            else ((AST) o).accept(this);
+        }
+    }
+
+    public Void forBoolConstant(BoolConstant b) { return append(b.toString()); }
+    public Void forIntConstant(IntConstant i) { return append(i.toString()); }
+    public Void forNullConstant(NullConstant n) { return append(n.toString()); }
+    public Void forVariable(Variable v) { return append(v.getName()); }
+    public Void forPrimFun(PrimFun f) { return append(f.getName()); }
+
+    public Void forUnOpApp(UnOpApp u) {
+        append(u.getRator().getSymbol());
+        append(" ");
+        push(u.getArg());
+        return null;
+    }
+
+    public Void forBinOpApp(BinOpApp b) {
+        append("(");
+        push(")");
+        push(b.getArg2());
+        push(" ");
+        push(b.getRator().getSymbol());
+        push(" ");
+        push(b.getArg1());
+        return null;
+    }
+
+    public Void forApp(App a) {
+        AST rator = a.getRator();
+        push(")");
+        AST[] args = a.getArgs();
+        for (int i = args.length - 1; i >= 0; i--) {
+            push(args[i]);
+            if (i > 0) push(", ");
+        }
+        if ((rator instanceof Variable) || (rator instanceof PrimFun)) {
+            rator.accept(this);
+            append("(");
+        }
+        else {
+            append("(");
+            push(")(");
+            push(rator);
+        }
+        return null;
+    }
+
+    public Void forMap(Map m) {
+        append("map ");
+        Variable[] vars = m.getVars();
+        for (int i = 0; i < vars.length; i++) {
+            if (i > 0) append(",");
+            append(vars[i].getName());
+        }
+        append(" to ");
+        push(m.getBody());
+        return null;
+    }
+
+    public Void forIf(If i) {
+        append("if ");
+        push(i.getAlt());
+        push(" else ");
+        push(i.getConseq());
+        push(" then ");
+        push(i.getTest());
+        return null;
+    }
+
+    public Void forLet(Let l) {
+        append("let ");
+        push(l.getBody());
+        push(" in ");
+        Def[] defs = l.getDefs();
+        for (int i = defs.length - 1; i >= 0; i--) {
+            push(";");
+            push(defs[i].getRhs());
+            push(" := ");
+            push(defs[i].getLhs().getName());
+            if (i > 0) push(" ");
+        }
+        return null;
+    }
+
+    private void push(Object o) {
+        if (top == work.length) work = Arrays.copyOf(work, 2 * top);
+        work[top++] = o;
+    }
+
+    private Void append(String s) {
+        try {
+            out.append(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return null;
+    }
+}
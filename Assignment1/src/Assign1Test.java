@@ -1,6 +1,9 @@
 import junit.framework.*;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 public class Assign1Test extends TestCase {
 
@@ -62,6 +65,20 @@ public class Assign1Test extends TestCase {
   } //end of func
   
 
+  public void testLineEnds() {
+    String input = "a # one\rb\r\nc\n\r# two\r\rd";
+    Lexer lexer = new Lexer(new StringReader(input));
+    String positions = "";
+    for (Token t = lexer.readToken(); t != null; t = lexer.readToken())
+      positions += t + "@" + lexer.line() + ":" + lexer.column() + " ";
+    assertEquals("positions", "a@1:1 b@2:1 c@3:1 d@7:1 ", positions);
+    TokenStream ts = new TokenStream();
+    new Lexer(new StringReader(input)).tokenize(ts);
+    String lines = "";
+    for (int i = 0; i < ts.size(); i++) lines += ts.line(ts.start(i)) + " ";
+    assertEquals("lines", "1 2 3 7 ", lines);
+  }
+
   public void testParseException() {
     try {
       String output = "doh!";
@@ -87,6 +104,12 @@ public class Assign1Test extends TestCase {
     } catch (Exception e) {
       fail("let threw " + e);
     }
+    try {
+      new Parser(new StringReader("let x y := 1; in y")).parse();
+      fail("let without := parsed");
+    } catch (ParseException e) {
+      assertEquals("missing :=", "y + expect := at line 1, column 7", e.getMessage());
+    }
   } //end of func
   
 
@@ -152,4 +175,643 @@ public class Assign1Test extends TestCase {
       fail ("constant threw " + e);
     }
   }  
-}
\ No newline at end of file
+
+  public void testTokenStream() {
+    try {
+      TokenStream ts = new TokenStream();
+      new Lexer(new StringReader("f(x,\n  42) # twice\n+ y")).tokenize(ts);
+      assertEquals("size", 8, ts.size());
+      assertEquals("int kind", TokenType.INT, ts.type(4));
+      assertEquals("int value", 42, ts.value(4));
+      assertEquals("line", 2, ts.line(ts.start(4)));
+      assertEquals("column", 3, ts.column(ts.start(4)));
+      assertEquals("end", ts.start(4) + 2, ts.end(4));
+      assertEquals("op line", 3, ts.line(ts.start(6)));
+      assertEquals("stream", "(f(x, 42) + y)", new Parser(ts).parse().toString());
+    } catch (Exception e) {
+      fail("tokenStream threw " + e);
+    }
+  }
+
+  public void testSymbolTable() {
+    try {
+      Token x1 = new Lexer(new StringReader("shared_name")).readToken();
+      Token x2 = new Lexer(new StringReader("shared_name")).readToken();
+      assertSame("interned", x1, x2);
+      assertTrue("hits", SymbolTable.GLOBAL.hits() > 0);
+      assertTrue("reserved words stay in the word table",
+                 new Lexer(new StringReader("if")).readToken() instanceof KeyWord);
+    } catch (Exception e) {
+      fail("symbolTable threw " + e);
+    }
+  }
+
+  public void testIterativeDeep() {
+    try {
+      int n = 100000;
+      StringBuilder program = new StringBuilder();
+      for (int i = 0; i < n; i++) program.append("if (x + ");
+      program.append("1");
+      for (int i = 0; i < n; i++) program.append(") then 2 else 3");
+      AST ast = new IterativeParser(new StringReader(program.toString())).parse();
+      for (int i = 0; i < n; i++) {
+        BinOpApp test = (BinOpApp) ((If) ast).getTest();
+        assertEquals("lhs", "x", test.getArg1().toString());
+        ast = test.getArg2();
+      }
+      assertEquals("innermost", "1", ast.toString());
+      assertEquals("same tree", "if ((3 + 4) * f(x, y)) then let a := 3; in (a + a) else map b to - b",
+                   new IterativeParser(new StringReader(
+                       "if (3 + 4) * f(x, y) then let a := 3; in a + a else map b to -b")).parse().toString());
+    } catch (Exception e) {
+      fail("iterativeDeep threw " + e);
+    }
+  }
+
+  public void testPratt() {
+    try {
+      String input = "if a < 1 then f(2 * 3 + 4, -x) else let y := 2 - 1 - 0; in map z to y * z | z";
+      String uniform = new Parser(new StringReader(input)).parse().toString();
+      assertEquals("uniform", uniform, new PrattParser(new StringReader(input)).parse().toString());
+      assertEquals("standard",
+                   "if (a < 1) then f(((2 * 3) + 4), - x) else let y := ((2 - 1) - 0); in map z to ((y * z) | z)",
+                   new PrattParser(new Lexer(new StringReader(input)),
+                                   PrattParser.Precedence.STANDARD).parse().toString());
+    } catch (Exception e) {
+      fail("pratt threw " + e);
+    }
+  }
+
+  public void testPrinter() {
+    try {
+      String input = "let f := map x y to if x then (map z to z)(y, -1) else f(y); in first(f)";
+      AST ast = new Parser(new StringReader(input)).parse();
+      StringWriter out = new StringWriter();
+      ASTPrinter.print(ast, out);
+      assertEquals("printer", "let f := map x,y to if x then (map z to z)(y, - 1) else f(y); in first(f)",
+                   out.toString());
+
+      int n = 100000;
+      StringBuilder deep = new StringBuilder();
+      for (int i = 0; i < n; i++) deep.append("x + ");
+      deep.append("1");
+      String printed = new IterativeParser(new StringReader(deep.toString())).parse().toString();
+      assertEquals("deep length", deep.length() + 2 * n, printed.length());
+    } catch (Exception e) {
+      fail("printer threw " + e);
+    }
+  }
+
+  public void testIncremental() {
+    try {
+      String input = "let f := map x to x + 1; g := h(2, 3); in f(g)";
+      IncrementalParser p = new IncrementalParser(input);
+      Let before = (Let) p.ast();
+      int offset = input.indexOf("3)");
+      Let after = (Let) p.edit(offset, 1, "h(4)");
+      assertEquals("edit", new Parser(new StringReader(p.text())).parse().toString(), after.toString());
+      assertEquals("reparsed", "h(2, h(4))".length(), p.reparsedLength());
+      assertSame("untouched def", before.getDefs()[0], after.getDefs()[0]);
+      assertSame("untouched body", before.getBody(), after.getBody());
+
+      // an edit that turns an application into a binary operation
+      AST ast = p.edit(p.text().indexOf("f(g)") + 1, 0, "(x) + f");
+      assertEquals("escalated", new Parser(new StringReader(p.text())).parse().toString(), ast.toString());
+      try {
+        p.edit(0, 3, "");
+        fail("edit must not parse");
+      } catch (ParseException e) {
+        assertEquals("text kept", " f := map", p.text().substring(0, 9));
+      }
+    } catch (Exception e) {
+      fail("incremental threw " + e);
+    }
+  }
+
+  public void testBatch() {
+    try {
+      List<String> files = new ArrayList<String>();
+      String[] programs = { "let x := 3; in f(x, 2)", "map x to x +", "if a then b else c" };
+      for (String program : programs) {
+        File f = File.createTempFile("batch", ".jam");
+        f.deleteOnExit();
+        Writer w = new FileWriter(f);
+        w.write(program);
+        w.close();
+        files.add(f.getPath());
+      }
+      files.add(new File(files.get(0) + ".missing").getPath());
+      final java.util.Map<String,BatchParser.Result> results = new HashMap<String,BatchParser.Result>();
+      BatchParser.Summary summary = new BatchParser(2).parse(files, new java.util.function.Consumer<BatchParser.Result>() {
+        public void accept(BatchParser.Result r) { results.put(r.getPath(), r); }
+      });
+      assertEquals("files", 4, summary.getFiles());
+      assertEquals("errors", 2, summary.getErrors());
+      assertEquals("tokens", 12 + 6, summary.getTokens());
+      assertEquals("ast", "let x := 3; in f(x, 2)", results.get(files.get(0)).getAst().toString());
+      assertTrue("parse error", results.get(files.get(1)).getError() instanceof ParseException);
+      assertTrue("io error", results.get(files.get(3)).getError() instanceof IOException);
+      assertTrue("percentiles", summary.percentile(0.5) <= summary.percentile(1));
+    } catch (Exception e) {
+      fail("batch threw " + e);
+    }
+  }
+
+  public void testReset() {
+    try {
+      Lexer lexer = new Lexer(new StringReader("let"));
+      assertSame("shared keyword", ReservedWords.LET, lexer.readToken());
+      lexer.reset("if y then cons else first");
+      assertSame("reset keyword", ReservedWords.IF, lexer.readToken());
+      Token y = lexer.readToken();
+      assertSame("reset variable", SymbolTable.GLOBAL.intern("y"), y);
+      lexer.reset(new StringReader("y := 1"));
+      assertSame("cached variable", y, lexer.readToken());
+      assertEquals("reset line", "line 1, column 1", lexer.position());
+
+      TokenStream[] streams = new TokenStream[3];
+      for (int i = 0; i < streams.length; i++) {
+        StringBuilder names = new StringBuilder();
+        for (int j = 0; j < 3000; j++) names.append(" v").append(i).append('_').append(j);
+        lexer.reset(names);
+        lexer.tokenize(streams[i] = new TokenStream());
+        assertTrue("variable cache bounded", lexer.variableCount() <= 4096 + 3000);
+      }
+      assertEquals("variable cache emptied", 3000, lexer.variableCount());
+      assertSame("earlier stream", SymbolTable.GLOBAL.intern("v0_2999"), streams[0].token(2999));
+
+      Parser parser = new Parser(new StringReader("junk ("));
+      parser.reset("let x := 3; in x + 1");
+      assertEquals("parser reset", "let x := 3; in (x + 1)", parser.parse().toString());
+      parser.reset(new StringReader("map to 1"));
+      assertEquals("parser reset reader", "map  to 1", parser.parse().toString());
+
+      ParserPool pool = new ParserPool(2);
+      assertEquals("pool", "f(x, 3)", pool.parse("f(x, 3)").toString());
+      assertEquals("pool reuse", "(a & b)", pool.parse(new StringBuilder("a & b")).toString());
+    } catch (Exception e) {
+      fail("reset threw " + e);
+    }
+  }
+  private String eval(String program) {
+    return Evaluator.show(Evaluator.eval(new Parser(new StringReader(program)).parse()));
+  }
+
+  public void testEval() {
+    try {
+      assertEquals("arith", "7", eval("1 + 2 * 3"));
+      assertEquals("list", "(1 (2) ())", eval("cons(1, cons(cons(2, null), cons(null, null)))"));
+      assertEquals("letrec", "120",
+          eval("let fact := map n to if n = 0 then 1 else n * fact(n - 1); in fact(5)"));
+      assertEquals("closure", "13",
+          eval("let add := map x to map y to x + y; in let f := add(10); x := 3; in f(x)"));
+      assertEquals("prims", "true", eval("number?(arity(cons)) & function?(first) & list?(null)"));
+      assertEquals("equality", "true", eval("cons(1, null) = cons(1, null)"));
+      assertEquals("short circuit", "false", eval("false & 1 / 0 = 0"));
+    } catch (Exception e) {
+      fail("eval threw " + e);
+    }
+    String[] bad = { "x", "1 / 0", "first(null)", "(map x to x)(1, 2)", "let x := y; y := 1; in x", "1 + true" };
+    for (String program : bad) {
+      try {
+        eval(program);
+        fail(program + " did not throw EvalException");
+      } catch (EvalException e) {
+      }
+    }
+    try {
+      eval("true / 0");
+      fail("true / 0 did not throw EvalException");
+    } catch (EvalException e) {
+      assertEquals("operands checked in order", "/ expects an integer, got true", e.getMessage());
+    }
+  }
+  /** Programs whose values every Jam engine must agree on */
+  private static final String[] ENGINE_PROGRAMS = {
+    "1 + 2 * 3 - 8 / 2",
+    "let fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); in fib(15)",
+    "let add := map x to map y to x + y; in let f := add(10); x := 3; in f(x)",
+    "let len := map l to if l = null then 0 else 1 + len(rest(l)); in len(cons(1, cons(true, null)))",
+    "if ~ (1 < 2) | (100000 = 100000) & (cons(1, null) != null) then number?(arity(cons)) else false",
+    "(map f to f(f, 5))(map g n to if n = 0 then cons(n, null) else cons(n, g(g, n - 1)))",
+    "map x to x"
+  };
+
+  /** Programs whose errors every Jam engine must report alike */
+  private static final String[] ENGINE_ERRORS = {
+    "true + false", "true < false", "true / false", "true / 0", "1 - (2 * false)",
+    "let x := true; in x * (x + 1)", "if null >= (map x to x) then 1 else 2", "- cons"
+  };
+
+  /** Returns the message of the EvalException thrown by Evaluator for ast */
+  private static String evalError(AST ast) {
+    try {
+      Evaluator.eval(ast);
+    } catch (EvalException e) {
+      return e.getMessage();
+    }
+    fail(ast + " did not throw EvalException");
+    return null;
+  }
+
+  public void testCompile() {
+    for (String program : ENGINE_PROGRAMS) {
+      AST ast = new Parser(new StringReader(program)).parse();
+      try {
+        assertEquals(program, Evaluator.show(Evaluator.eval(ast)), Evaluator.show(JamCompiler.eval(ast)));
+      } catch (EvalException e) {
+        fail(program + " threw " + e);
+      }
+      assertTrue("compiled " + program, JamCompiler.compile(ast).isCompiled());
+      assertSame("cached " + program, JamCompiler.compile(ast), JamCompiler.compile(ast));
+    }
+    String[] bad = { "1 / 0", "first(null)", "(map x to x)(1, 2)", "let x := y; y := 1; in x", "1 + true", "let x := 3; in x(4)" };
+    for (String program : bad) {
+      try {
+        JamCompiler.eval(new Parser(new StringReader(program)).parse());
+        fail(program + " did not throw EvalException");
+      } catch (EvalException e) {
+      }
+    }
+    for (String program : ENGINE_ERRORS) {
+      AST ast = new Parser(new StringReader(program)).parse();
+      try {
+        JamCompiler.eval(ast);
+        fail(program + " did not throw EvalException");
+      } catch (EvalException e) {
+        assertEquals(program, evalError(ast), e.getMessage());
+      }
+    }
+  }
+  public void testClosureCompile() {
+    for (String program : ENGINE_PROGRAMS) {
+      AST ast = new Parser(new StringReader(program)).parse();
+      try {
+        assertEquals(program, Evaluator.show(Evaluator.eval(ast)), Evaluator.show(ClosureCompiler.eval(ast)));
+      } catch (EvalException e) {
+        fail(program + " threw " + e);
+      }
+    }
+    try {
+      ClosureCompiler.Node node = ClosureCompiler.compile(new Parser(new StringReader("let x := 3; in x * x")).parse());
+      assertEquals("rerun", 9, node.eval(null));
+      assertEquals("rerun", 9, node.eval(null));
+    } catch (EvalException e) {
+      fail("rerun threw " + e);
+    }
+    try {
+      ClosureCompiler.eval(new Parser(new StringReader("(map x to x + 1)(null)")).parse());
+      fail("bad argument did not throw EvalException");
+    } catch (EvalException e) {
+    }
+    for (String program : ENGINE_ERRORS) {
+      AST ast = new Parser(new StringReader(program)).parse();
+      try {
+        ClosureCompiler.eval(ast);
+        fail(program + " did not throw EvalException");
+      } catch (EvalException e) {
+        assertEquals(program, evalError(ast), e.getMessage());
+      }
+    }
+  }
+  private String fold(String program, int eliminated) {
+    ConstantFolder folder = new ConstantFolder();
+    AST folded = new Parser(new StringReader(program)).parse().accept(folder);
+    assertEquals("eliminated in " + program, eliminated, folder.getEliminated());
+    return folded.toString();
+  }
+
+  public void testConstantFolding() {
+    assertEquals("arith", "(3 * x)", fold("(1 + 2) * x", 2));
+    assertEquals("if", "a", fold("if 1 < 2 then a else b", 5));
+    assertEquals("negate", "5", fold("- (- 5)", 2));
+    assertEquals("first", "1", fold("first(cons(1, null))", 5));
+    assertEquals("and", "y", fold("(3 > 4) | y", 4));
+    assertEquals("dead and", "false", fold("false & f(x)", 4));
+    assertEquals("predicates", "x", fold("null?(rest(cons(true, null))) & x", 9));
+    assertEquals("division by zero", "(1 / 0)", fold("1 / 0", 0));
+    assertEquals("bad argument", "first(null)", fold("first(null)", 0));
+    AST same = new Parser(new StringReader("let f := map n to f(n - 1); in f(x)")).parse();
+    assertSame("unchanged", same, ConstantFolder.fold(same));
+  }
+  public void testHashConsing() {
+    String program = "let g := map x to f(x + 1) * f(x + 1); in if g(2) then 1 else f(x + 1)";
+    try {
+      Parser parser = new Parser(new StringReader(program));
+      HashConser conser = new HashConser();
+      parser.setFactory(conser);
+      AST ast = parser.parse();
+      BinOpApp product = (BinOpApp) ((Map) ((Let) ast).getDefs()[0].getRhs()).getBody();
+      assertSame("shared subtree", product.getArg1(), product.getArg2());
+      assertSame("shared across the tree", product.getArg1(), ((If) ((Let) ast).getBody()).getAlt());
+
+      IterativeParser iterative = new IterativeParser(new StringReader(program));
+      iterative.setFactory(conser);
+      assertSame("canonical tree", ast, iterative.parse());
+      PrattParser pratt = new PrattParser(new StringReader(program));
+      pratt.setFactory(conser);
+      assertSame("canonical tree", ast, pratt.parse());
+
+      AST plain = new Parser(new StringReader(program)).parse();
+      assertNotSame("plain parse", ast, plain);
+      assertEquals("structural hash", ast.hashCode(), plain.hashCode());
+      assertEquals("same text", ast.toString(), plain.toString());
+    } catch (ParseException e) {
+      fail("hash-consed parse threw " + e);
+    }
+  }
+
+  public void testBinaryAST() {
+    String[] programs = { "let f := map n to if n <= 1 then 1 else n * f(n - 1); in f(-5)",
+                          "map x y to cons?(x) & ~(y = null) | first(rest(x))", "-2147483647", "f()" };
+    try {
+      for (String program : programs) {
+        AST ast = new Parser(new StringReader(program)).parse();
+        AST copy = BinaryAST.decode(java.nio.ByteBuffer.wrap(BinaryAST.encode(ast)));
+        assertEquals("round trip", ast.toString(), copy.toString());
+      }
+
+      File dir = File.createTempFile("cache", "");
+      dir.delete();
+      File f = File.createTempFile("cached", ".jam");
+      f.deleteOnExit();
+      Writer w = new FileWriter(f);
+      w.write(programs[0]);
+      w.close();
+      ParseCache cache = new ParseCache(dir.toPath());
+      AST parsed = cache.parse(f.getPath());
+      AST loaded = cache.parse(f.getPath());
+      assertEquals("hits", 1, cache.hits());
+      assertEquals("misses", 1, cache.misses());
+      assertNotSame("loaded", parsed, loaded);
+      assertEquals("loaded", parsed.toString(), loaded.toString());
+
+      File[] entries = dir.listFiles();
+      assertEquals("entries", 1, entries.length);
+      Writer damage = new FileWriter(entries[0]);
+      damage.write("JAST");
+      damage.close();
+      assertEquals("reparsed", parsed.toString(), cache.parse(f.getPath()).toString());
+      assertEquals("misses", 2, cache.misses());
+      for (File e : dir.listFiles()) e.delete();
+      dir.delete();
+    } catch (Exception e) {
+      fail("binary AST threw " + e);
+    }
+  }
+
+  public void testASTCache() {
+    ASTCache cache = new ASTCache(8 * 2, 1 << 20);
+    AST ast = cache.parse("let x := 3; in f(x, 2)");
+    assertEquals("ast", "let x := 3; in f(x, 2)", ast.toString());
+    assertSame("cached", ast, cache.parse("let x := 3; in f(x, 2)"));
+    assertEquals("hits", 1, cache.hits());
+    assertEquals("misses", 1, cache.misses());
+    try {
+      cache.parse("map x to x +");
+      fail("cached a parse error");
+    } catch (ParseException e) {
+    }
+    assertEquals("errors not cached", 1, cache.size());
+
+    for (int i = 0; i < 1000; i++) cache.parse("x + " + i);
+    assertTrue("entries bounded", cache.size() <= 16);
+    assertEquals("evictions", 1 + 1000 - cache.size(), cache.evictions());
+
+    ASTCache light = new ASTCache(1000, 8 * 12);
+    for (int i = 0; i < 1000; i++) light.parse("1000 + " + i);
+    assertTrue("weight bounded", light.weight() <= 8 * 12);
+    assertEquals("weight", 10 * light.size(), light.weight());
+    assertTrue("hit ratio", light.hitRatio() == 0.0 && cache.hitRatio() > 0.0);
+
+    ASTCache one = new ASTCache(1, 1 << 20);
+    for (int i = 0; i < 100; i++) one.parse("x + " + i);
+    assertEquals("one entry", 1, one.size());
+    assertSame("latest kept", one.parse("x + 99"), one.parse("x + 99"));
+
+    String big = "let a := 1; in a + a + a + a + a + a + a + a";
+    ASTCache narrow = new ASTCache(100, big.length());
+    narrow.parse("1 + 1");
+    AST bigAst = narrow.parse(big);
+    assertEquals("long program cached", big.length(), narrow.weight());
+    assertSame("long program hit", bigAst, narrow.parse(big));
+    narrow.parse(big + " + a");
+    assertEquals("too long not cached", 1, narrow.size());
+  }
+
+  public void testProgramGenerator() {
+    try {
+      for (int seed = 0; seed < 50; seed++) {
+        StringWriter program = new StringWriter(), printed = new StringWriter();
+        new ProgramGenerator(seed).setDepth(seed % 8).setWidth(1 + seed % 4).generate(program, printed, 20 * seed);
+        assertTrue("size", program.toString().length() >= 20 * seed);
+        assertEquals("printed", printed.toString(), new Parser(new StringReader(program.toString())).parse().toString());
+      }
+      assertEquals("seeded", new ProgramGenerator(42).generate(1000), new ProgramGenerator(42).generate(1000));
+      String noOps = new ProgramGenerator(1).setWeight("binop", 0).setWeight("unop", 0).generate(1000);
+      assertEquals("mix", -1, noOps.indexOf(" + "));
+      ProgramGenerator leafless = new ProgramGenerator(2).setWeight("const", 0).setWeight("var", 0);
+      try {
+        leafless.setWeight("prim", 0);
+        fail("no leaf kind has weight");
+      } catch (IllegalArgumentException e) {
+        // and the weights are as they were
+      }
+      assertEquals("weights kept", new ProgramGenerator(2).setWeight("const", 0).setWeight("var", 0).generate(1000),
+                   leafless.generate(1000));
+    } catch (IOException e) {
+      fail("generator threw " + e);
+    }
+  }
+
+  public void testCheck() {
+    try {
+      new Parser(new StringReader("f(1) 2")).parse();
+      fail("trailing input accepted");
+    } catch (ParseException e) {
+      assertEquals("trailing", "2 + expect end of input at line 1, column 6", e.getMessage());
+    }
+    try {
+      new Parser(new StringReader("let x := 1;\n in x +")).parse();
+      fail("missing operand accepted");
+    } catch (ParseException e) {
+      assertEquals("line", 2, e.getLine());
+      assertEquals("column", 8, e.getColumn());
+    }
+
+    String program = "let x := 1 +;\n    y := @;\nin if x then (y * ) else f(1, *, 3) + (2 4";
+    List<ParseException> errors = new Parser(new StringReader(program)).check();
+    String[] expected = { "1:13", "2:10", "3:19", "3:31", "3:42" };
+    assertEquals("errors " + errors, expected.length, errors.size());
+    for (int i = 0; i < expected.length; i++)
+      assertEquals("position", expected[i], errors.get(i).getLine() + ":" + errors.get(i).getColumn());
+    assertEquals("lexical", "`@' is not a legal token", errors.get(1).getDescription());
+    assertTrue("valid", new Parser(new StringReader("let a := 3; in a + a")).check().isEmpty());
+
+    errors = new Parser(new StringReader("f(1 2, x y) + g(3)")).check();
+    assertEquals("missing commas " + errors, 2, errors.size());
+    assertEquals("comma", "2 + expect , or ) at line 1, column 5", errors.get(0).getMessage());
+    assertEquals("comma", "1:10", errors.get(1).getLine() + ":" + errors.get(1).getColumn());
+    String[] noComma = { "f(1 2)", "f(x, y z)" };
+    for (String bad : noComma) {
+      String message = null;
+      try {
+        new Parser(new StringReader(bad)).parse();
+        fail(bad + " parsed");
+      } catch (ParseException e) {
+        message = e.getMessage();
+      }
+      try {
+        new IterativeParser(new Lexer(new StringReader(bad))).parse();
+        fail(bad + " parsed iteratively");
+      } catch (ParseException e) {
+        assertEquals(bad, message, e.getMessage());
+      }
+      try {
+        new PrattParser(new Lexer(new StringReader(bad))).parse();
+        fail(bad + " parsed by precedence");
+      } catch (ParseException e) {
+        assertEquals(bad, message, e.getMessage());
+      }
+    }
+  }
+
+  public void testPipeline() {
+    String program = new ProgramGenerator(7).generate(200000);
+    TokenPipeline tokens = new TokenPipeline(new Lexer(new StringReader(program)));
+    try {
+      assertEquals("pipelined", new Parser(new StringReader(program)).parse().toString(),
+                   new IterativeParser(tokens).parse().toString());
+      assertNull("end", tokens.readToken());
+    } finally {
+      tokens.close();
+    }
+
+    String bad = "let x := 1 +;\n    y := @;\nin if x then (y * ) else f(1, *, 3) + (2 4";
+    tokens = new TokenPipeline(new Lexer(new StringReader(bad)));
+    try {
+      List<ParseException> errors = new Parser(tokens).check();
+      List<ParseException> sequential = new Parser(new StringReader(bad)).check();
+      assertEquals("errors " + errors, sequential.size(), errors.size());
+      for (int i = 0; i < errors.size(); i++)
+        assertEquals("error", sequential.get(i).getMessage(), errors.get(i).getMessage());
+    } finally {
+      tokens.close();
+    }
+
+    tokens = new TokenPipeline(new Lexer(new StringReader("1 2")) {
+      public Token readToken() { throw new StackOverflowError("lexer overflow"); }
+    });
+    try {
+      tokens.readToken();
+      fail("lexer error lost");
+    } catch (StackOverflowError e) {
+      assertEquals("passed on", "lexer overflow", e.getMessage());
+    } finally {
+      tokens.close();
+    }
+  }
+
+  public void testParallelLexer() {
+    String program = "let f := map x to x <= 10; # a comment, <= then\n"
+        + "    g := f(3) != 3.5 # # x\r\n"
+        + "    h := 4; # old Mac\r\r"
+        + "in  f(2) >= g  :  @ # end";
+    java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+    try {
+      for (int chunkSize = 1; chunkSize <= program.length(); chunkSize++) {
+        Lexer lexer = new Lexer(new StringReader(program));
+        ParallelLexer parallel = new ParallelLexer(java.nio.ByteBuffer.wrap(program.getBytes()), pool, chunkSize);
+        for (;;) {
+          String expected, actual;
+          Token t = null;
+          try {
+            t = lexer.readToken();
+            expected = t + " " + lexer.position();
+          } catch (ParseException e) {
+            expected = e.getMessage();
+          }
+          try {
+            Token u = parallel.readToken();
+            assertTrue("same token", t == null || t instanceof IntConstant || t == u);
+            actual = u + " " + parallel.position();
+          } catch (ParseException e) {
+            actual = e.getMessage();
+          }
+          assertEquals("chunks of " + chunkSize, expected, actual);
+          if (t == null && expected.startsWith("null")) break;
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testLazyMap() {
+    String program = "let f := map x to if x = 0 then 1 else x * f(x - 1);\n"
+        + "    g := map x y to (map z to z + y)(x, let a := 1; in a);\n"
+        + "    h := map to 1 + ;\n"
+        + "in f(g(2, 3))";
+    Parser parser = new Parser(new Lexer(java.nio.ByteBuffer.wrap(program.getBytes())));
+    parser.setLazy(true);
+    final Let let = (Let) parser.parse();
+    final LazyMap g = (LazyMap) let.getDefs()[1].getRhs();
+    assertFalse("not parsed yet", g.isParsed());
+    assertEquals("body", "(map z to (z + y))(x, let a := 1; in a)", g.getBody().toString());
+    assertTrue("parsed", g.isParsed());
+    assertSame("kept", g.getBody(), g.getBody());
+
+    final AST[] bodies = new AST[4];
+    final LazyMap f = (LazyMap) let.getDefs()[0].getRhs();
+    Thread[] threads = new Thread[bodies.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int k = i;
+      threads[i] = new Thread(new Runnable() {
+        public void run() { bodies[k] = f.getBody(); }
+      });
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      try {
+        t.join();
+      } catch (InterruptedException e) {
+        fail("interrupted");
+      }
+    }
+    for (AST b : bodies) assertSame("parsed once", bodies[0], b);
+
+    try {
+      ((Map) let.getDefs()[2].getRhs()).getBody();
+      fail("bad body parsed");
+    } catch (ParseException e) {
+      assertEquals("position", "3:21", e.getLine() + ":" + e.getColumn());
+    }
+  }
+
+  public void testMetrics() {
+    ParserMetrics m = ParserMetrics.GLOBAL;
+    ParserMetrics.setEnabled(true);
+    try {
+      m.reset();
+      new Parser(new StringReader("let f := map x to x * (x + 1); in f(2)")).parse();
+      assertEquals("calls", 1, m.calls());
+      assertEquals("ints", 2, m.tokens(TokenType.INT));
+      assertEquals("binops", 2, m.nodes("BinOpApp"));
+      assertEquals("maps", 1, m.nodes("Map"));
+      assertTrue("depth", m.depths().max() >= 3);
+      assertEquals("timed", 1, m.parseNanos().count());
+
+      try {
+        new Parser(new StringReader("f(1,")).parse();
+        fail("bad program parsed");
+      } catch (ParseException e) {
+        assertEquals("error kinds", 1, m.errorKinds().size());
+        assertEquals("error counted", 1, m.errors(m.errorKinds().iterator().next()));
+      }
+      assertEquals("calls", 2, m.calls());
+    } finally {
+      ParserMetrics.setEnabled(false);
+      m.reset();
+    }
+  }
+}
@@ -0,0 +1,280 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/** Parses many Jam files in parallel on a fork-join pool.  The list of
+ *  files is split in halves recursively, so idle workers steal whole
+ *  ranges of files from busy ones.
+ *
+ *  Each worker thread keeps its own input buffer, Lexer, TokenStream and
+ *  IterativeParser and reuses them for every file it parses: a file is read
+ *  into the buffer, scanned in place by the Lexer into the stream, and
+ *  parsed from the stream, so nesting depth is not limited by the thread
+ *  stack.
+ *
+ *  Results are handed to the caller's thread in the order files complete,
+ *  while the remaining files are still being parsed.  The workers can share
+ *  a HashConser, so that subtrees repeated across the files are kept once.
+ */
+class BatchParser {
+
+    /** Files larger than this are mapped rather than read into a buffer */
+    private static final int MAX_BUFFER = 1 << 26;
+
+    /** The outcome of parsing one file */
+    static class Result {
+        private final String path;
+        private final AST ast;
+        private final Exception error;
+        private final int tokens;
+        private final long nanos;
+
+        Result(String p, AST a, Exception e, int t, long n) {
+            path = p;
+            ast = a;
+            error = e;
+            tokens = t;
+            nanos = n;
+        }
+
+        public String getPath() { return path; }
+        /** Returns the AST of the file, or null if it could not be parsed */
+        public AST getAst() { return ast; }
+        /** Returns the ParseException or IOException raised, if any; any
+         *  other failure is wrapped in an ExecutionException */
+        public Exception getError() { return error; }
+        public int getTokens() { return tokens; }
+        /** Returns the time taken to read, lex and parse the file */
+        public long getNanos() { return nanos; }
+
+        public String toString() {
+            if (error == null) return path + ": ok";
+            return path + ": " + (error instanceof ParseException ? error.getMessage() : error.toString());
+        }
+    }
+
+    /** Aggregate figures for a batch */
+    static class Summary {
+        private final int files;
+        private final int errors;
+        private final long tokens;
+        private final long nanos;
+        private final long[] latencies;  // per file, ascending
+
+        Summary(int f, int e, long t, long n, long[] l) {
+            files = f;
+            errors = e;
+            tokens = t;
+            nanos = n;
+            latencies = l;
+        }
+
+        public int getFiles() { return files; }
+        public int getErrors() { return errors; }
+        public long getTokens() { return tokens; }
+        /** Returns the wall-clock time of the whole batch */
+        public long getNanos() { return nanos; }
+
+        public double filesPerSecond() { return 1e9 * files / Math.max(nanos, 1); }
+        public double tokensPerSecond() { return 1e9 * tokens / Math.max(nanos, 1); }
+
+        /** Returns the per-file latency below which a fraction p of the files
+         *  fall, by the nearest rank method */
+        public long percentile(double p) {
+            if (latencies.length == 0) return 0;
+            int rank = (int) Math.ceil(p * latencies.length);
+            return latencies[Math.min(Math.max(rank, 1), latencies.length) - 1];
+        }
+
+        public String toString() {
+            return files + " files, " + errors + " errors, " + tokens + " tokens in "
+                    + nanos / 1000000 + " ms: " + (long) filesPerSecond() + " files/s, "
+                    + (long) tokensPerSecond() + " tokens/s; latency p50 " + micros(percentile(0.5))
+                    + ", p90 " + micros(percentile(0.9)) + ", p99 " + micros(percentile(0.99))
+                    + ", max " + micros(percentile(1)) + " us";
+        }
+
+        private static long micros(long nanos) { return nanos / 1000; }
+    }
+
+    /** Pool thread holding the state reused across the files it parses */
+    private static class Worker extends ForkJoinWorkerThread {
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        private final Lexer lexer = new Lexer(buffer);
+        private final TokenStream stream = new TokenStream();
+        private final IterativeParser parser = new IterativeParser(stream);
+
+        Worker(ForkJoinPool pool, ASTFactory factory) {
+            super(pool);
+            parser.setFactory(factory);
+        }
+
+        Result parse(String path) {
+            long start = System.nanoTime();
+            AST ast = null;
+            Exception error = null;
+            try {
+                lexer(path).tokenize(stream);
+                ast = parser.parse();
+            } catch (ParseException e) {
+                error = e;
+            } catch (IOException e) {
+                error = e;
+            }
+            int tokens = error == null ? stream.size() : 0;
+            return new Result(path, ast, error, tokens, System.nanoTime() - start);
+        }
+
+        /** Returns a Lexer over the contents of the file path */
+        private Lexer lexer(String path) throws IOException {
+            FileChannel channel = FileChannel.open(Paths.get(path));
+            try {
+                long size = channel.size();
+                if (size > MAX_BUFFER) return new Lexer(path);
+                if (size > buffer.capacity())
+                    buffer = ByteBuffer.allocateDirect(Integer.highestOneBit((int) size) << 1);
+                buffer.clear();
+                while (channel.read(buffer) >= 0 && buffer.hasRemaining()) { }
+                buffer.flip();
+            } finally {
+                channel.close();
+            }
+            // read-only, like a mapped file, so that Lexer's byte reads stay monomorphic
+            lexer.reset(buffer.asReadOnlyBuffer());
+            return lexer;
+        }
+    }
+
+    /** Parses the files in [lo,hi) of the batch, splitting the range */
+    private static class Split extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<String> files;
+        private final int lo;
+        private final int hi;
+        private final BlockingQueue<Result> done;
+
+        Split(List<String> f, int l, int h, BlockingQueue<Result> d) {
+            files = f;
+            lo = l;
+            hi = h;
+            done = d;
+        }
+
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Split(files, lo, mid, done), new Split(files, mid, hi, done));
+            }
+            else if (hi > lo) {
+                String path = files.get(lo);
+                try {
+                    done.add(((Worker) Thread.currentThread()).parse(path));
+                } catch (Throwable t) {  // still deliver a Result for the file
+                    done.add(new Result(path, null, new ExecutionException(t), 0, 0));
+                }
+            }
+        }
+    }
+
+    private final int parallelism;
+    private final ASTFactory factory;
+
+    /** Constructs a BatchParser using the given number of worker threads,
+     *  which make AST nodes with factory */
+    BatchParser(int parallelism, ASTFactory factory) {
+        this.parallelism = parallelism;
+        this.factory = factory;
+    }
+
+    /** Constructs a BatchParser using the given number of worker threads */
+    BatchParser(int parallelism) { this(parallelism, ASTFactory.PLAIN); }
+
+    /** Constructs a BatchParser using a worker thread per processor */
+    BatchParser() { this(Runtime.getRuntime().availableProcessors()); }
+
+    /** Parses the named files, handing each Result to sink on the calling
+     *  thread as soon as its file is done, and returns the batch's figures */
+    public Summary parse(List<String> files, Consumer<Result> sink) throws InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool p) { return new Worker(p, factory); }
+        }, null, false);
+        BlockingQueue<Result> done = new LinkedBlockingQueue<Result>();
+        long[] latencies = new long[files.size()];
+        int errors = 0;
+        long tokens = 0;
+        long start = System.nanoTime();
+        try {
+            pool.execute(new Split(files, 0, files.size(), done));
+            for (int i = 0; i < latencies.length; i++) {
+                Result r = done.take();
+                latencies[i] = r.getNanos();
+                tokens += r.getTokens();
+                if (r.getError() != null) errors++;
+                sink.accept(r);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        long nanos = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        return new Summary(files.size(), errors, tokens, nanos, latencies);
+    }
+
+    /** Adds the Jam files named by arg to files: a directory stands for the
+     *  .jam files beneath it, and @list for the files named in list, one
+     *  per line */
+    private static void addFiles(String arg, final List<String> files) throws IOException {
+        if (arg.startsWith("@")) {
+            for (String line : Files.readAllLines(Paths.get(arg.substring(1))))
+                if (! line.trim().isEmpty()) files.add(line.trim());
+        }
+        else if (Files.isDirectory(Paths.get(arg))) {
+            Files.walkFileTree(Paths.get(arg), new SimpleFileVisitor<Path>() {
+                public FileVisitResult visitFile(Path file, java.nio.file.attribute.BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && file.toString().endsWith(".jam")) files.add(file.toString());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        else files.add(arg);
+    }
+
+    /** Provides a command line batch parser:
+     *    java BatchParser [-j threads] [-v] [-s] (file | directory | @list)...
+     *  Prints each file that fails to parse (every file with -v) as it
+     *  completes, followed by the batch's throughput and latencies.  With
+     *  -s, keeps the ASTs, sharing equal subtrees, and prints how many
+     *  distinct nodes they hold.
+     *  Exits with status 1 if any file failed.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean verbose = false;
+        HashConser shared = null;
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-j")) threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-v")) verbose = true;
+            else if (args[i].equals("-s")) shared = new HashConser();
+            else addFiles(args[i], files);
+        }
+        final boolean all = verbose;
+        final List<AST> kept = shared == null ? null : new ArrayList<AST>();
+        final PrintStream out = new PrintStream(new BufferedOutputStream(System.out), false);
+        ASTFactory factory = shared == null ? ASTFactory.PLAIN : shared;
+        Summary summary = new BatchParser(threads, factory).parse(files, new Consumer<Result>() {
+            public void accept(Result r) {
+                if (all || r.getError() != null) out.println(r);
+                if (kept != null && r.getAst() != null) kept.add(r.getAst());
+            }
+        });
+        out.println(summary);
+        if (shared != null) out.println(kept.size() + " ASTs hold " + shared.size() + " distinct nodes");
+        out.flush();
+        if (summary.getErrors() > 0) System.exit(1);
+    }
+}
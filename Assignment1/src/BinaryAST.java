@@ -0,0 +1,359 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Compact binary form of ASTs.  After a five byte header, a tree is
+ *  written in preorder, each node as a tag byte followed by its operands:
+ *
+ *    FALSE, TRUE, NULL
+ *    INT    value              zigzag varint
+ *    VAR    symbol             PRIM symbol
+ *    UNOP   symbol arg         BINOP symbol arg1 arg2
+ *    APP    n rator arg...     n args
+ *    MAP    n symbol... body   n vars
+ *    IF     test conseq alt
+ *    LET    n symbol... rhs... body
+ *
+ *  A symbol is the varint index of a name in a table built as the tree is
+ *  written: an index one past the end of the table is followed by the new
+ *  name, as a varint length and UTF-8 bytes.  Variables, primitives and
+ *  operators all share the table.
+ *
+ *  Writer and Reader keep explicit stacks, so trees of any depth can be
+ *  written and read.
+ */
+class BinaryAST {
+
+    static final int VERSION = 1;
+    private static final byte[] MAGIC = { 'J', 'A', 'S', 'T', VERSION };
+
+    private static final int FALSE = 0, TRUE = 1, NULL = 2, INT = 3, VAR = 4, PRIM = 5,
+        UNOP = 6, BINOP = 7, APP = 8, MAP = 9, IF = 10, LET = 11;
+
+    /** Returns the binary form of ast */
+    public static byte[] encode(AST ast) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new Writer(bytes).write(ast).flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // cannot happen writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Returns the AST whose binary form is the rest of in
+     * @throws IllegalArgumentException if in does not hold exactly one AST
+     */
+    public static AST decode(ByteBuffer in) { return new Reader(in, ASTFactory.PLAIN).read(); }
+
+    /** Streams the binary form of ASTs to an OutputStream */
+    static class Writer {
+        private final OutputStream out;
+        private final byte[] buf = new byte[1 << 13];
+        private int pos;
+        private final HashMap<String,Integer> symbols = new HashMap<String,Integer>();
+        private Object[] work = new Object[64];  // nodes still to write, next on top
+        private int top;
+
+        Writer(OutputStream out) { this.out = out; }
+
+        /** Writes the header and ast; the symbol table starts out empty */
+        public Writer write(AST ast) throws IOException {
+            symbols.clear();
+            for (byte b : MAGIC) put(b);
+            push(ast);
+            while (top > 0) {
+                AST n = (AST) work[--top];
+                work[top] = null;
+                node(n);
+            }
+            return this;
+        }
+
+        /** Writes out the buffered bytes */
+        public void flush() throws IOException {
+            out.write(buf, 0, pos);
+            pos = 0;
+            out.flush();
+        }
+
+        private void node(AST n) throws IOException {
+            if (n instanceof BoolConstant) put(((BoolConstant) n).getValue() ? TRUE : FALSE);
+            else if (n instanceof NullConstant) put(NULL);
+            else if (n instanceof IntConstant) {
+                int v = ((IntConstant) n).getValue();
+                put(INT);
+                varint((v << 1) ^ (v >> 31));
+            }
+            else if (n instanceof Variable) {
+                put(VAR);
+                symbol(((Variable) n).getName());
+            }
+            else if (n instanceof PrimFun) {
+                put(PRIM);
+                symbol(((PrimFun) n).getName());
+            }
+            else if (n instanceof UnOpApp) {
+                UnOpApp u = (UnOpApp) n;
+                put(UNOP);
+                symbol(u.getRator().getSymbol());
+                push(u.getArg());
+            }
+            else if (n instanceof BinOpApp) {
+                BinOpApp b = (BinOpApp) n;
+                put(BINOP);
+                symbol(b.getRator().getSymbol());
+                push(b.getArg2());
+                push(b.getArg1());
+            }
+            else if (n instanceof App) {
+                App a = (App) n;
+                AST[] args = a.getArgs();
+                put(APP);
+                varint(args.length);
+                for (int i = args.length - 1; i >= 0; i--) push(args[i]);
+                push(a.getRator());
+            }
+            else if (n instanceof Map) {
+                Map m = (Map) n;
+                put(MAP);
+                varint(m.getVars().length);
+                for (Variable v : m.getVars()) symbol(v.getName());
+                push(m.getBody());
+            }
+            else if (n instanceof If) {
+                If i = (If) n;
+                put(IF);
+                push(i.getAlt());
+                push(i.getConseq());
+                push(i.getTest());
+            }
+            else {
+                Let l = (Let) n;
+                Def[] defs = l.getDefs();
+                put(LET);
+                varint(defs.length);
+                for (Def d : defs) symbol(d.getLhs().getName());
+                push(l.getBody());
+                for (int i = defs.length - 1; i >= 0; i--) push(defs[i].getRhs());
+            }
+        }
+
+        private void symbol(String name) throws IOException {
+            Integer index = symbols.get(name);
+            if (index != null) {
+                varint(index);
+                return;
+            }
+            varint(symbols.size());
+            symbols.put(name, symbols.size());
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            for (byte b : bytes) put(b);
+        }
+
+        private void varint(int v) throws IOException {
+            while ((v & ~0x7F) != 0) {
+                put((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            put(v);
+        }
+
+        private void put(int b) throws IOException {
+            if (pos == buf.length) {
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+            buf[pos++] = (byte) b;
+        }
+
+        private void push(AST n) {
+            if (top == work.length) work = Arrays.copyOf(work, 2 * top);
+            work[top++] = n;
+        }
+    }
+
+    /** Rebuilds an AST from its binary form in a ByteBuffer, which may be a
+     *  mapped file.  Variables are interned in SymbolTable.GLOBAL and the
+     *  operators and primitives are those of ReservedWords, as for parsed
+     *  trees; composite nodes are made with an ASTFactory. */
+    static class Reader {
+        private final ByteBuffer in;
+        private final ASTFactory factory;
+        private final ArrayList<String> names = new ArrayList<String>();
+        private final ArrayList<Object> resolved = new ArrayList<Object>();  // Variable or Token, by symbol
+
+        // nodes whose children are being read, innermost on top, and the
+        // children read so far, those of the innermost node on top
+        private int[] tags = new int[64];
+        private Object[] headers = new Object[64];  // the operator or variables
+        private int[] starts = new int[64];         // where the first child is in values
+        private int[] counts = new int[64];         // the number of children
+        private int top;
+        private AST[] values = new AST[64];
+        private int size;
+
+        Reader(ByteBuffer in, ASTFactory factory) {
+            this.in = in;
+            this.factory = factory;
+        }
+
+        /** Returns the AST in the rest of the buffer
+         * @throws IllegalArgumentException if the buffer does not hold exactly one AST
+         */
+        public AST read() {
+            try {
+                for (byte b : MAGIC)
+                    if (in.get() != b) throw new IllegalArgumentException("not a version " + VERSION + " AST");
+                AST ast = tree();
+                if (in.hasRemaining()) throw new IllegalArgumentException("data after AST");
+                return ast;
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("corrupt AST", e);
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException("corrupt AST", e);
+            } catch (IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("corrupt AST", e);
+            }
+        }
+
+        private AST tree() {
+            top = size = 0;
+            for (;;) {
+                AST n = node();
+                // add n to the children of its parent, building the ancestors it completes
+                while (n != null) {
+                    if (top == 0) return n;
+                    if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+                    values[size++] = n;
+                    int t = top - 1;
+                    if (size - starts[t] < counts[t]) break;
+                    n = build(tags[t], headers[t], starts[t]);
+                    headers[t] = null;
+                    top = t;
+                }
+            }
+        }
+
+        /** Reads a node, returning it if it is a leaf; otherwise opens it
+         *  and returns null */
+        private AST node() {
+            int tag = in.get();
+            switch (tag) {
+                case FALSE: return BoolConstant.FALSE;
+                case TRUE: return BoolConstant.TRUE;
+                case NULL: return NullConstant.ONLY;
+                case INT: {
+                    int v = varint();
+                    return factory.makeInt(new IntConstant((v >>> 1) ^ -(v & 1)));
+                }
+                case VAR: return variable();
+                case PRIM: return (PrimFun) reserved();
+                case UNOP: open(tag, reserved(), 1); return null;
+                case BINOP: open(tag, reserved(), 2); return null;
+                case APP: open(tag, null, count() + 1); return null;
+                case MAP: open(tag, variables(count()), 1); return null;
+                case IF: open(tag, null, 3); return null;
+                case LET: {
+                    Variable[] lhs = variables(count());
+                    open(tag, lhs, lhs.length + 1);
+                    return null;
+                }
+                default: throw new IllegalArgumentException("bad tag " + tag);
+            }
+        }
+
+        /** Returns the node tag whose children are values[from] up, which it pops */
+        private AST build(int tag, Object header, int from) {
+            AST[] c = values;
+            AST n;
+            switch (tag) {
+                case UNOP: n = factory.makeUnOpApp((Op) header, c[from]); break;
+                case BINOP: n = factory.makeBinOpApp((Op) header, c[from], c[from + 1]); break;
+                case APP: n = factory.makeApp(c[from], Arrays.copyOfRange(c, from + 1, size)); break;
+                case MAP: n = factory.makeMap((Variable[]) header, c[from]); break;
+                case IF: n = factory.makeIf(c[from], c[from + 1], c[from + 2]); break;
+                default: {
+                    Variable[] lhs = (Variable[]) header;
+                    Def[] defs = new Def[lhs.length];
+                    for (int i = 0; i < defs.length; i++) defs[i] = new Def(lhs[i], c[from + i]);
+                    n = factory.makeLet(defs, c[from + defs.length]);
+                }
+            }
+            Arrays.fill(c, from, size, null);
+            size = from;
+            return n;
+        }
+
+        /** Opens a node with n children */
+        private void open(int tag, Object header, int n) {
+            if (top == tags.length) {
+                tags = Arrays.copyOf(tags, 2 * top);
+                headers = Arrays.copyOf(headers, 2 * top);
+                starts = Arrays.copyOf(starts, 2 * top);
+                counts = Arrays.copyOf(counts, 2 * top);
+            }
+            tags[top] = tag;
+            headers[top] = header;
+            starts[top] = size;
+            counts[top] = n;
+            top++;
+        }
+
+        private Variable[] variables(int n) {
+            Variable[] vars = new Variable[n];
+            for (int i = 0; i < n; i++) vars[i] = variable();
+            return vars;
+        }
+
+        private Variable variable() {
+            int s = symbol();
+            Object v = resolved.get(s);
+            if (v == null) resolved.set(s, v = SymbolTable.GLOBAL.intern(names.get(s)));
+            return (Variable) v;
+        }
+
+        /** Reads an operator or primitive */
+        private Token reserved() {
+            int s = symbol();
+            Object t = resolved.get(s);
+            if (t == null) {
+                t = ReservedWords.TABLE.get(names.get(s));
+                if (t == null) throw new IllegalArgumentException("unknown symbol " + names.get(s));
+                resolved.set(s, t);
+            }
+            return (Token) t;
+        }
+
+        private int symbol() {
+            int s = varint();
+            if (s == names.size()) {
+                byte[] bytes = new byte[count()];
+                in.get(bytes);
+                names.add(new String(bytes, StandardCharsets.UTF_8));
+                resolved.add(null);
+            }
+            return s;
+        }
+
+        /** Reads a length, which must fit in the rest of the buffer */
+        private int count() {
+            int n = varint();
+            if (n < 0 || n > in.remaining()) throw new IllegalArgumentException("bad count " + n);
+            return n;
+        }
+
+        private int varint() {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.get();
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) return v;
+            }
+            throw new IllegalArgumentException("bad varint");
+        }
+    }
+}
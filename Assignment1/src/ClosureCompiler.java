@@ -0,0 +1,353 @@
+import java.util.*;
+
+/** Visitor that compiles a program, once resolved by Resolver, into a
+ *  tree of Nodes, each of which runs one AST node on a frame laid out as
+ *  for Evaluator.  Operators, primitives and variable depths are looked at
+ *  once, when the tree is built, and each picks a Node class that does just
+ *  its job: (x + 1) becomes an int add of a slot load and a constant, and
+ *  (n < 2) in an if test is a branch on unboxed ints.
+ *
+ *  Nodes produce the same values and errors as Evaluator, evaluating
+ *  operands in the same order.
+ */
+class ClosureCompiler implements ASTVisitor<ClosureCompiler.Node> {
+
+    /** Executable form of an AST node */
+    abstract static class Node {
+        /** Returns the value of the node in frame */
+        abstract Object eval(Object[] frame);
+
+        /** Returns the value of the node, which context requires to be an int */
+        int evalInt(Object[] frame, String context) { return Evaluator.integer(eval(frame), context); }
+
+        /** Returns the value of the node, which context requires to be a boolean */
+        boolean evalBool(Object[] frame, String context) { return Evaluator.bool(eval(frame), context); }
+    }
+
+    /** Node whose value is always an int */
+    abstract static class IntNode extends Node {
+        abstract int evalInt(Object[] frame);
+
+        Object eval(Object[] frame) { return evalInt(frame); }
+        int evalInt(Object[] frame, String context) { return evalInt(frame); }
+    }
+
+    /** Node whose value is always a boolean */
+    abstract static class BoolNode extends Node {
+        abstract boolean test(Object[] frame);
+
+        Object eval(Object[] frame) { return test(frame); }
+        boolean evalBool(Object[] frame, String context) { return test(frame); }
+    }
+
+    /** Integer operator node.  Like Evaluator, it evaluates both operands
+     *  and then checks the left before the right.  An IntNode operand needs
+     *  no check, so its value is never boxed. */
+    private abstract static class Arith extends IntNode {
+        private final Node left;
+        private final IntNode intLeft;  // left, when it is an IntNode
+        private final Node right;
+        private final IntNode intRight; // right, when it is an IntNode
+        private final String op;
+
+        Arith(Node l, Node r, String o) {
+            left = l;
+            intLeft = l instanceof IntNode ? (IntNode) l : null;
+            right = r;
+            intRight = r instanceof IntNode ? (IntNode) r : null;
+            op = o;
+        }
+
+        abstract int apply(int x, int y);
+
+        int evalInt(Object[] frame) {
+            if (intLeft != null) {
+                int x = intLeft.evalInt(frame);
+                return apply(x, right.evalInt(frame, op));
+            }
+            Object x = left.eval(frame);
+            if (intRight != null) {
+                int y = intRight.evalInt(frame);
+                return apply(Evaluator.integer(x, op), y);
+            }
+            Object y = right.eval(frame);
+            return apply(Evaluator.integer(x, op), Evaluator.integer(y, op));
+        }
+    }
+
+    /** Integer comparison node, evaluating its operands as Arith does */
+    private abstract static class Compare extends BoolNode {
+        private final Node left;
+        private final IntNode intLeft;
+        private final Node right;
+        private final IntNode intRight;
+        private final String op;
+
+        Compare(Node l, Node r, String o) {
+            left = l;
+            intLeft = l instanceof IntNode ? (IntNode) l : null;
+            right = r;
+            intRight = r instanceof IntNode ? (IntNode) r : null;
+            op = o;
+        }
+
+        abstract boolean apply(int x, int y);
+
+        boolean test(Object[] frame) {
+            if (intLeft != null) {
+                int x = intLeft.evalInt(frame);
+                return apply(x, right.evalInt(frame, op));
+            }
+            Object x = left.eval(frame);
+            if (intRight != null) {
+                int y = intRight.evalInt(frame);
+                return apply(Evaluator.integer(x, op), y);
+            }
+            Object y = right.eval(frame);
+            return apply(Evaluator.integer(x, op), Evaluator.integer(y, op));
+        }
+    }
+
+    /** Jam function value made by a compiled Map */
+    static final class NodeClosure implements JamFunction {
+        private final Map map;
+        private final Node body;
+        private final int arity;
+        private final Object[] env;
+
+        NodeClosure(Map m, Node b, Object[] e) {
+            map = m;
+            body = b;
+            arity = m.getVars().length;
+            env = e;
+        }
+
+        public int arity() { return arity; }
+        public String toString() { return "closure: " + map; }
+    }
+
+    /** Returns the program ast compiled to a Node, to be run on a null frame
+     * @throws EvalException if ast has a free variable
+     */
+    public static Node compile(AST ast) { return Resolver.resolve(ast).accept(new ClosureCompiler()); }
+
+    /** Evaluates the closed program ast by compiling it to Nodes
+     * @throws EvalException if ast has a free variable or raises a run-time error
+     */
+    public static Object eval(AST ast) { return compile(ast).eval(null); }
+
+    public Node forBoolConstant(BoolConstant b) { return constant(b.getValue()); }
+
+    public Node forIntConstant(IntConstant i) {
+        final int value = i.getValue();
+        return new IntNode() {
+            int evalInt(Object[] frame) { return value; }
+        };
+    }
+
+    public Node forNullConstant(NullConstant n) { return constant(n); }
+    public Node forPrimFun(PrimFun f) { return constant(f); }
+
+    public Node forVariable(final Variable v) {
+        final int depth = ((LexicalVariable) v).getDepth();
+        final int index = ((LexicalVariable) v).getIndex();
+        if (depth == 0) return new Node() {
+            Object eval(Object[] frame) { return defined(frame[index], v); }
+        };
+        if (depth == 1) return new Node() {
+            Object eval(Object[] frame) { return defined(((Object[]) frame[0])[index], v); }
+        };
+        return new Node() {
+            Object eval(Object[] frame) {
+                for (int d = depth; d > 0; d--) frame = (Object[]) frame[0];
+                return defined(frame[index], v);
+            }
+        };
+    }
+
+    public Node forUnOpApp(UnOpApp u) {
+        final String op = u.getRator().getSymbol();
+        final Node arg = u.getArg().accept(this);
+        if (op.equals("+")) return new IntNode() {
+            int evalInt(Object[] frame) { return arg.evalInt(frame, op); }
+        };
+        if (op.equals("-")) return new IntNode() {
+            int evalInt(Object[] frame) { return - arg.evalInt(frame, op); }
+        };
+        if (op.equals("~") || op.equals("!")) return new BoolNode() {
+            boolean test(Object[] frame) { return ! arg.evalBool(frame, op); }
+        };
+        return unsupported(op, arg, null);
+    }
+
+    public Node forBinOpApp(BinOpApp b) {
+        final String op = b.getRator().getSymbol();
+        final Node left = b.getArg1().accept(this);
+        final Node right = b.getArg2().accept(this);
+        if (op.equals("+")) return new Arith(left, right, op) {
+            int apply(int x, int y) { return x + y; }
+        };
+        if (op.equals("-")) return new Arith(left, right, op) {
+            int apply(int x, int y) { return x - y; }
+        };
+        if (op.equals("*")) return new Arith(left, right, op) {
+            int apply(int x, int y) { return x * y; }
+        };
+        if (op.equals("/")) return new Arith(left, right, op) {
+            int apply(int x, int y) {
+                if (y == 0) throw new EvalException("division by zero");
+                return x / y;
+            }
+        };
+        if (op.equals("<")) return new Compare(left, right, op) {
+            boolean apply(int x, int y) { return x < y; }
+        };
+        if (op.equals(">")) return new Compare(left, right, op) {
+            boolean apply(int x, int y) { return x > y; }
+        };
+        if (op.equals("<=")) return new Compare(left, right, op) {
+            boolean apply(int x, int y) { return x <= y; }
+        };
+        if (op.equals(">=")) return new Compare(left, right, op) {
+            boolean apply(int x, int y) { return x >= y; }
+        };
+        if (op.equals("=") || op.equals("!=")) {
+            final boolean equal = op.equals("=");
+            if (left instanceof IntNode && right instanceof IntNode) return new Compare(left, right, op) {
+                boolean apply(int x, int y) { return (x == y) == equal; }
+            };
+            return new BoolNode() {
+                boolean test(Object[] frame) {
+                    Object x = left.eval(frame);
+                    return Evaluator.equal(x, right.eval(frame)) == equal;
+                }
+            };
+        }
+        if (op.equals("&")) return new Node() {
+            // the right operand is the result, of whatever type
+            Object eval(Object[] frame) { return left.evalBool(frame, op) ? right.eval(frame) : Boolean.FALSE; }
+            boolean evalBool(Object[] frame, String context) {
+                return left.evalBool(frame, op) && right.evalBool(frame, context);
+            }
+        };
+        if (op.equals("|")) return new Node() {
+            Object eval(Object[] frame) { return left.evalBool(frame, op) ? Boolean.TRUE : right.eval(frame); }
+            boolean evalBool(Object[] frame, String context) {
+                return left.evalBool(frame, op) || right.evalBool(frame, context);
+            }
+        };
+        return unsupported(op, left, right);
+    }
+
+    public Node forApp(App a) {
+        final Node[] args = compileAll(a.getArgs());
+        if (a.getRator() instanceof PrimFun) {
+            Node prim = prim((PrimFun) a.getRator(), args);
+            if (prim != null) return prim;
+        }
+        final Node rator = a.getRator().accept(this);
+        return new Node() {
+            Object eval(Object[] frame) {
+                Object f = rator.eval(frame);
+                if (f instanceof NodeClosure) {
+                    NodeClosure c = (NodeClosure) f;
+                    if (c.arity != args.length)
+                        throw new EvalException(c + " expects " + c.arity + " arguments, got " + args.length);
+                    Object[] callee = new Object[args.length + 1];
+                    callee[0] = c.env;
+                    for (int i = 0; i < args.length; i++) callee[i + 1] = args[i].eval(frame);
+                    return c.body.eval(callee);
+                }
+                if (f instanceof PrimFun) return Evaluator.applyPrim((PrimFun) f, evalAll(args, frame));
+                throw new EvalException(Evaluator.show(f) + " is not a function");
+            }
+        };
+    }
+
+    public Node forMap(final Map m) {
+        final Node body = m.getBody().accept(this);
+        return new Node() {
+            Object eval(Object[] frame) { return new NodeClosure(m, body, frame); }
+        };
+    }
+
+    public Node forIf(If i) {
+        final Node test = i.getTest().accept(this);
+        final Node conseq = i.getConseq().accept(this);
+        final Node alt = i.getAlt().accept(this);
+        return new Node() {
+            Object eval(Object[] frame) { return test.evalBool(frame, "if") ? conseq.eval(frame) : alt.eval(frame); }
+        };
+    }
+
+    public Node forLet(Let l) {
+        Def[] defs = l.getDefs();
+        final Node[] rhs = new Node[defs.length];
+        for (int i = 0; i < defs.length; i++) rhs[i] = defs[i].getRhs().accept(this);
+        final Node body = l.getBody().accept(this);
+        return new Node() {
+            Object eval(Object[] frame) {
+                Object[] inner = new Object[rhs.length + 1];
+                inner[0] = frame;
+                for (int i = 0; i < rhs.length; i++) inner[i + 1] = rhs[i].eval(inner);
+                return body.eval(inner);
+            }
+        };
+    }
+
+    /** Returns a Node applying the primitive f to args, or null to leave
+     *  the application to Evaluator.applyPrim */
+    private static Node prim(PrimFun f, Node[] args) {
+        if (args.length != 1) return null;
+        final Node arg = args[0];
+        final String name = f.getName();
+        if (name.equals("first")) return new Node() {
+            Object eval(Object[] frame) { return Evaluator.cons(arg.eval(frame), name).getFirst(); }
+        };
+        if (name.equals("rest")) return new Node() {
+            Object eval(Object[] frame) { return Evaluator.cons(arg.eval(frame), name).getRest(); }
+        };
+        if (name.equals("null?")) return new BoolNode() {
+            boolean test(Object[] frame) { return arg.eval(frame) == NullConstant.ONLY; }
+        };
+        if (name.equals("cons?")) return new BoolNode() {
+            boolean test(Object[] frame) { return arg.eval(frame) instanceof Cons; }
+        };
+        return null;
+    }
+
+    private Node[] compileAll(AST[] asts) {
+        Node[] nodes = new Node[asts.length];
+        for (int i = 0; i < asts.length; i++) nodes[i] = asts[i].accept(this);
+        return nodes;
+    }
+
+    private static Object[] evalAll(Node[] nodes, Object[] frame) {
+        Object[] values = new Object[nodes.length];
+        for (int i = 0; i < nodes.length; i++) values[i] = nodes[i].eval(frame);
+        return values;
+    }
+
+    private static Object defined(Object value, Variable v) {
+        if (value == null) throw new EvalException("variable " + v + " used before it is defined");
+        return value;
+    }
+
+    private static Node constant(final Object value) {
+        return new Node() {
+            Object eval(Object[] frame) { return value; }
+        };
+    }
+
+    /** Returns a Node evaluating the operands of op, which Evaluator does not
+     *  support, and then failing as Evaluator does */
+    private static Node unsupported(final String op, final Node left, final Node right) {
+        return new Node() {
+            Object eval(Object[] frame) {
+                left.eval(frame);
+                if (right != null) right.eval(frame);
+                throw new EvalException("unsupported operator " + op);
+            }
+        };
+    }
+}
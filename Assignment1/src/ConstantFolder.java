@@ -0,0 +1,205 @@
+/** Visitor that simplifies a program by evaluating what it can before it
+ *  runs.  Operators applied to constants are replaced by their values,
+ *  & and | with a constant left operand and ifs with a constant test are
+ *  replaced by the operand or branch that is evaluated, and the primitives
+ *  are applied to literal arguments: constants, primitives, maps and lists
+ *  built by cons from them.
+ *
+ *  Anything whose evaluation would fail, such as 1 / 0 or first(null), is
+ *  left in place to fail at run time, so the folded program has the values
+ *  and errors of the original.  Subtrees that do not change are returned
+ *  as they are, and the number of AST nodes removed is counted.
+ */
+class ConstantFolder implements ASTVisitor<AST> {
+
+    private int eliminated;
+
+    /** Returns ast folded */
+    public static AST fold(AST ast) { return ast.accept(new ConstantFolder()); }
+
+    /** Returns the number of AST nodes removed by this folder so far */
+    public int getEliminated() { return eliminated; }
+
+    public AST forBoolConstant(BoolConstant b) { return b; }
+    public AST forIntConstant(IntConstant i) { return i; }
+    public AST forNullConstant(NullConstant n) { return n; }
+    public AST forVariable(Variable v) { return v; }
+    public AST forPrimFun(PrimFun f) { return f; }
+
+    public AST forUnOpApp(UnOpApp u) {
+        AST arg = u.getArg().accept(this);
+        if (arg instanceof IntConstant || arg instanceof BoolConstant) {
+            try {
+                AST value = constant(Evaluator.unOp(u.getRator(), value(arg)));
+                eliminated++;
+                return value;
+            } catch (EvalException e) {  // fails at run time instead
+            }
+        }
+        return arg == u.getArg() ? u : new UnOpApp(u.getRator(), arg);
+    }
+
+    public AST forBinOpApp(BinOpApp b) {
+        String op = b.getRator().getSymbol();
+        AST left = b.getArg1().accept(this);
+        if ((op.equals("&") || op.equals("|")) && left instanceof BoolConstant) {
+            eliminated++;
+            if (((BoolConstant) left).getValue() == op.equals("&")) {
+                // the result is the right operand, whatever its type
+                eliminated++;
+                return b.getArg2().accept(this);
+            }
+            eliminated += size(b.getArg2());
+            return left;
+        }
+        AST right = b.getArg2().accept(this);
+        if (isConstant(left) && isConstant(right) && ! op.equals("&") && ! op.equals("|")) {
+            try {
+                AST value = constant(Evaluator.binOp(b.getRator(), value(left), value(right)));
+                eliminated += 2;
+                return value;
+            } catch (EvalException e) {
+            }
+        }
+        return left == b.getArg1() && right == b.getArg2() ? b : new BinOpApp(b.getRator(), left, right);
+    }
+
+    public AST forApp(App a) {
+        AST rator = a.getRator().accept(this);
+        AST[] args = a.getArgs();
+        AST[] folded = foldAll(args);
+        if (rator instanceof PrimFun && folded.length == 1 && isLiteral(folded[0])) {
+            AST value = applyPrim(((PrimFun) rator).getName(), folded[0]);
+            if (value != null) {
+                eliminated += 2 + size(folded[0]) - size(value);
+                return value;
+            }
+        }
+        return rator == a.getRator() && folded == args ? a : new App(rator, folded);
+    }
+
+    public AST forMap(Map m) {
+        AST body = m.getBody().accept(this);
+        return body == m.getBody() ? m : new Map(m.getVars(), body);
+    }
+
+    public AST forIf(If i) {
+        AST test = i.getTest().accept(this);
+        if (test instanceof BoolConstant) {
+            boolean value = ((BoolConstant) test).getValue();
+            eliminated += 2 + size(value ? i.getAlt() : i.getConseq());
+            return (value ? i.getConseq() : i.getAlt()).accept(this);
+        }
+        AST conseq = i.getConseq().accept(this);
+        AST alt = i.getAlt().accept(this);
+        return test == i.getTest() && conseq == i.getConseq() && alt == i.getAlt() ? i : new If(test, conseq, alt);
+    }
+
+    public AST forLet(Let l) {
+        Def[] defs = l.getDefs();
+        Def[] folded = defs;
+        for (int i = 0; i < defs.length; i++) {
+            AST rhs = defs[i].getRhs().accept(this);
+            if (rhs != defs[i].getRhs()) {
+                if (folded == defs) folded = defs.clone();
+                folded[i] = new Def(defs[i].getLhs(), rhs);
+            }
+        }
+        AST body = l.getBody().accept(this);
+        return folded == defs && body == l.getBody() ? l : new Let(folded, body);
+    }
+
+    /** Returns asts folded, or asts itself if none of them change */
+    private AST[] foldAll(AST[] asts) {
+        AST[] folded = asts;
+        for (int i = 0; i < asts.length; i++) {
+            AST ast = asts[i].accept(this);
+            if (ast != asts[i]) {
+                if (folded == asts) folded = asts.clone();
+                folded[i] = ast;
+            }
+        }
+        return folded;
+    }
+
+    /** Returns the primitive name applied to the literal arg, or null if it
+     *  fails or is left to run time */
+    private static AST applyPrim(String name, AST arg) {
+        if (name.equals("number?")) return constant(arg instanceof IntConstant);
+        if (name.equals("function?")) return constant(arg instanceof PrimFun || arg instanceof Map);
+        if (name.equals("list?")) return constant(isList(arg));
+        if (name.equals("null?")) return constant(arg == NullConstant.ONLY);
+        if (name.equals("cons?")) return constant(arg instanceof App);
+        if (name.equals("arity")) {
+            if (arg instanceof Map) return new IntConstant(((Map) arg).getVars().length);
+            if (arg instanceof PrimFun) return new IntConstant(((PrimFun) arg).getName().equals("cons") ? 2 : 1);
+            return null;
+        }
+        if (name.equals("first")) return arg instanceof App ? ((App) arg).getArgs()[0] : null;
+        if (name.equals("rest")) return arg instanceof App ? ((App) arg).getArgs()[1] : null;
+        return null;
+    }
+
+    /** Returns whether ast is an int, boolean or null constant */
+    private static boolean isConstant(AST ast) {
+        return ast instanceof IntConstant || ast instanceof BoolConstant || ast instanceof NullConstant;
+    }
+
+    /** Returns whether evaluating ast surely yields a value without effects:
+     *  a constant, a primitive, a map or a list of literals */
+    private static boolean isLiteral(AST ast) {
+        return isConstant(ast) || ast instanceof PrimFun || ast instanceof Map || isList(ast);
+    }
+
+    /** Returns whether ast is null or a cons of a literal onto a list */
+    private static boolean isList(AST ast) {
+        while (ast instanceof App) {
+            App a = (App) ast;
+            if (! (a.getRator() instanceof PrimFun && ((PrimFun) a.getRator()).getName().equals("cons")
+                   && a.getArgs().length == 2 && isLiteral(a.getArgs()[0]))) return false;
+            ast = a.getArgs()[1];
+        }
+        return ast == NullConstant.ONLY;
+    }
+
+    /** Returns the Jam value of a constant */
+    private static Object value(AST constant) {
+        if (constant instanceof IntConstant) return ((IntConstant) constant).getValue();
+        if (constant instanceof BoolConstant) return ((BoolConstant) constant).getValue();
+        return constant;
+    }
+
+    /** Returns the constant denoting an int or boolean Jam value */
+    private static AST constant(Object value) {
+        if (value instanceof Integer) return new IntConstant((Integer) value);
+        return (Boolean) value ? BoolConstant.TRUE : BoolConstant.FALSE;
+    }
+
+    /** Returns the number of AST nodes in ast */
+    static int size(AST ast) { return ast.accept(SIZE); }
+
+    private static final ASTVisitor<Integer> SIZE = new ASTVisitor<Integer>() {
+        public Integer forBoolConstant(BoolConstant b) { return 1; }
+        public Integer forIntConstant(IntConstant i) { return 1; }
+        public Integer forNullConstant(NullConstant n) { return 1; }
+        public Integer forVariable(Variable v) { return 1; }
+        public Integer forPrimFun(PrimFun f) { return 1; }
+        public Integer forUnOpApp(UnOpApp u) { return 1 + size(u.getArg()); }
+        public Integer forBinOpApp(BinOpApp b) { return 1 + size(b.getArg1()) + size(b.getArg2()); }
+        public Integer forApp(App a) { return 1 + size(a.getRator()) + sizeAll(a.getArgs()); }
+        public Integer forMap(Map m) { return 1 + size(m.getBody()); }
+        public Integer forIf(If i) { return 1 + size(i.getTest()) + size(i.getConseq()) + size(i.getAlt()); }
+
+        public Integer forLet(Let l) {
+            int n = 1 + size(l.getBody());
+            for (Def d : l.getDefs()) n += size(d.getRhs());
+            return n;
+        }
+
+        private int sizeAll(AST[] asts) {
+            int n = 0;
+            for (AST a : asts) n += size(a);
+            return n;
+        }
+    };
+}
@@ -0,0 +1,325 @@
+import java.util.*;
+
+/** Jam evaluation error class.  Like a ParseException, it describes an
+ *  error in the program, so it does not capture a Java stack trace. */
+class EvalException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    EvalException(String s) {
+        super(s, null, false, false);
+    }
+}
+
+/** Jam non-empty list value; the empty list is NullConstant.ONLY */
+class Cons {
+    private final Object first;
+    private final Object rest;
+
+    Cons(Object f, Object r) { first = f; rest = r; }
+
+    public Object getFirst() { return first; }
+    public Object getRest() { return rest; }
+    public String toString() { return Evaluator.show(this); }
+}
+
+/** Jam function value other than a PrimFun, as made by any Jam engine */
+interface JamFunction {
+    /** Returns the number of arguments the function takes */
+    int arity();
+}
+
+/** Jam function value made by evaluating a Map in an environment */
+class Closure implements JamFunction {
+    private final Map map;
+    private final Object[] env;  // frame the Map was evaluated in
+
+    Closure(Map m, Object[] e) { map = m; env = e; }
+
+    public Map getMap() { return map; }
+    Object[] getEnv() { return env; }
+    public int arity() { return map.getVars().length; }
+    public String toString() { return "closure: " + map; }
+}
+
+/** Occurrence of a Variable with its lexical address: the variable is slot
+ *  index of the frame depth links up the chain from the current frame.
+ *  Prints and visits like the Variable it replaces. */
+class LexicalVariable extends Variable {
+    private final int depth;
+    private final int index;
+
+    LexicalVariable(String name, int d, int i) {
+        super(name);
+        depth = d;
+        index = i;
+    }
+
+    public int getDepth() { return depth; }
+    public int getIndex() { return index; }
+}
+
+/** Visitor that gives every Variable occurrence in a program its lexical
+ *  address.  Returns a copy of the program in which each occurrence is a
+ *  LexicalVariable; the binding occurrences in Maps and Defs are kept.
+ *
+ *  Each Map and each Let opens a frame whose slot 0 links to the frame
+ *  around it and whose slots from 1 on hold its variables.  A let is
+ *  recursive: every def is in scope in every right hand side.
+ *
+ *  @throws EvalException for a free variable or a variable bound twice in
+ *  the same Map or Let
+ */
+class Resolver implements ASTVisitor<AST> {
+
+    private ArrayList<Variable[]> scopes = new ArrayList<Variable[]>();  // innermost last
+
+    /** Returns the resolved copy of the closed program ast */
+    public static AST resolve(AST ast) { return ast.accept(new Resolver()); }
+
+    public AST forBoolConstant(BoolConstant b) { return b; }
+    public AST forIntConstant(IntConstant i) { return i; }
+    public AST forNullConstant(NullConstant n) { return n; }
+    public AST forPrimFun(PrimFun f) { return f; }
+
+    public AST forVariable(Variable v) {
+        for (int depth = 0; depth < scopes.size(); depth++) {
+            Variable[] vars = scopes.get(scopes.size() - 1 - depth);
+            for (int i = 0; i < vars.length; i++)
+                if (vars[i] == v) return new LexicalVariable(v.getName(), depth, i + 1);
+        }
+        throw new EvalException("free variable " + v);
+    }
+
+    public AST forUnOpApp(UnOpApp u) { return new UnOpApp(u.getRator(), u.getArg().accept(this)); }
+
+    public AST forBinOpApp(BinOpApp b) {
+        return new BinOpApp(b.getRator(), b.getArg1().accept(this), b.getArg2().accept(this));
+    }
+
+    public AST forApp(App a) { return new App(a.getRator().accept(this), resolveAll(a.getArgs())); }
+
+    public AST forMap(Map m) {
+        open(m.getVars(), "map");
+        AST body = m.getBody().accept(this);
+        close();
+        return new Map(m.getVars(), body);
+    }
+
+    public AST forIf(If i) {
+        return new If(i.getTest().accept(this), i.getConseq().accept(this), i.getAlt().accept(this));
+    }
+
+    public AST forLet(Let l) {
+        Def[] defs = l.getDefs();
+        Variable[] vars = new Variable[defs.length];
+        for (int i = 0; i < defs.length; i++) vars[i] = defs[i].getLhs();
+        open(vars, "let");
+        Def[] resolved = new Def[defs.length];
+        for (int i = 0; i < defs.length; i++) resolved[i] = new Def(vars[i], defs[i].getRhs().accept(this));
+        AST body = l.getBody().accept(this);
+        close();
+        return new Let(resolved, body);
+    }
+
+    private AST[] resolveAll(AST[] asts) {
+        AST[] result = new AST[asts.length];
+        for (int i = 0; i < asts.length; i++) result[i] = asts[i].accept(this);
+        return result;
+    }
+
+    private void open(Variable[] vars, String binder) {
+        for (int i = 0; i < vars.length; i++)
+            for (int j = 0; j < i; j++)
+                if (vars[i] == vars[j]) throw new EvalException("variable " + vars[i] + " bound twice in " + binder);
+        scopes.add(vars);
+    }
+
+    private void close() { scopes.remove(scopes.size() - 1); }
+}
+
+/** Tree-walking Jam interpreter over programs resolved by Resolver.
+ *  Environments are Object[] frames laid out as Resolver describes, so a
+ *  variable is found by following depth links and indexing its slot; no
+ *  names are looked up at run time.  A Closure holds its Map and the frame
+ *  it was made in, which reaches exactly the variables the Map can see.
+ *
+ *  Jam values are represented by Integer, Boolean, NullConstant.ONLY (the
+ *  empty list), Cons, Closure and PrimFun.  Evaluation is call-by-value;
+ *  & and | evaluate their right operand only when needed.
+ */
+class Evaluator implements ASTVisitor<Object> {
+
+    private Object[] env;  // current frame, null at top level
+
+    /** Evaluates the closed program ast
+     * @throws EvalException if ast has a free variable or raises a run-time error
+     */
+    public static Object eval(AST ast) { return Resolver.resolve(ast).accept(new Evaluator()); }
+
+    public Object forBoolConstant(BoolConstant b) { return b.getValue(); }
+    public Object forIntConstant(IntConstant i) { return i.getValue(); }
+    public Object forNullConstant(NullConstant n) { return n; }
+    public Object forPrimFun(PrimFun f) { return f; }
+
+    public Object forVariable(Variable v) {
+        LexicalVariable lv = (LexicalVariable) v;
+        Object[] frame = env;
+        for (int d = lv.getDepth(); d > 0; d--) frame = (Object[]) frame[0];
+        Object value = frame[lv.getIndex()];
+        if (value == null) throw new EvalException("variable " + v + " used before it is defined");
+        return value;
+    }
+
+    public Object forUnOpApp(UnOpApp u) { return unOp(u.getRator(), u.getArg().accept(this)); }
+
+    public Object forBinOpApp(BinOpApp b) {
+        String op = b.getRator().getSymbol();
+        Object left = b.getArg1().accept(this);
+        if (op.equals("&")) return bool(left, op) ? b.getArg2().accept(this) : Boolean.FALSE;
+        if (op.equals("|")) return bool(left, op) ? Boolean.TRUE : b.getArg2().accept(this);
+        return binOp(b.getRator(), left, b.getArg2().accept(this));
+    }
+
+    public Object forApp(App a) {
+        Object rator = a.getRator().accept(this);
+        AST[] args = a.getArgs();
+        if (rator instanceof Closure) {
+            Closure c = (Closure) rator;
+            int n = c.getMap().getVars().length;
+            if (args.length != n) throw new EvalException(c + " expects " + n + " arguments, got " + args.length);
+            Object[] frame = new Object[n + 1];
+            frame[0] = c.getEnv();
+            for (int i = 0; i < n; i++) frame[i + 1] = args[i].accept(this);
+            Object[] saved = env;
+            env = frame;
+            try {
+                return c.getMap().getBody().accept(this);
+            } finally {
+                env = saved;
+            }
+        }
+        if (rator instanceof PrimFun) {
+            Object[] values = new Object[args.length];
+            for (int i = 0; i < args.length; i++) values[i] = args[i].accept(this);
+            return applyPrim((PrimFun) rator, values);
+        }
+        throw new EvalException(show(rator) + " is not a function");
+    }
+
+    public Object forMap(Map m) { return new Closure(m, env); }
+
+    public Object forIf(If i) {
+        return bool(i.getTest().accept(this), "if") ? i.getConseq().accept(this) : i.getAlt().accept(this);
+    }
+
+    public Object forLet(Let l) {
+        Def[] defs = l.getDefs();
+        Object[] frame = new Object[defs.length + 1];
+        frame[0] = env;
+        Object[] saved = env;
+        env = frame;
+        try {
+            for (int i = 0; i < defs.length; i++) frame[i + 1] = defs[i].getRhs().accept(this);
+            return l.getBody().accept(this);
+        } finally {
+            env = saved;
+        }
+    }
+
+    // operations on Jam values, shared by the Jam engines
+
+    /** Applies the unary operator op to value v */
+    static Object unOp(Op op, Object v) {
+        String symbol = op.getSymbol();
+        if (symbol.equals("+")) return integer(v, op);
+        if (symbol.equals("-")) return - integer(v, op);
+        if (symbol.equals("~") || symbol.equals("!")) return ! bool(v, op);
+        throw new EvalException("unsupported operator " + op);
+    }
+
+    /** Applies the binary operator op, other than & and |, to a and b */
+    static Object binOp(Op op, Object a, Object b) {
+        String symbol = op.getSymbol();
+        if (symbol.equals("+")) return integer(a, op) + integer(b, op);
+        if (symbol.equals("-")) return integer(a, op) - integer(b, op);
+        if (symbol.equals("*")) return integer(a, op) * integer(b, op);
+        if (symbol.equals("/")) {
+            int dividend = integer(a, op), divisor = integer(b, op);
+            if (divisor == 0) throw new EvalException("division by zero");
+            return dividend / divisor;
+        }
+        if (symbol.equals("=")) return equal(a, b);
+        if (symbol.equals("!=")) return ! equal(a, b);
+        if (symbol.equals("<")) return integer(a, op) < integer(b, op);
+        if (symbol.equals(">")) return integer(a, op) > integer(b, op);
+        if (symbol.equals("<=")) return integer(a, op) <= integer(b, op);
+        if (symbol.equals(">=")) return integer(a, op) >= integer(b, op);
+        throw new EvalException("unsupported operator " + op);
+    }
+
+    /** Applies the primitive function f to args */
+    static Object applyPrim(PrimFun f, Object[] args) {
+        String name = f.getName();
+        int arity = name.equals("cons") ? 2 : 1;
+        if (args.length != arity) throw new EvalException(name + " expects " + arity + " arguments, got " + args.length);
+        Object v = args[0];
+        if (name.equals("number?")) return v instanceof Integer;
+        if (name.equals("function?")) return v instanceof JamFunction || v instanceof PrimFun;
+        if (name.equals("list?")) return v == NullConstant.ONLY || v instanceof Cons;
+        if (name.equals("null?")) return v == NullConstant.ONLY;
+        if (name.equals("cons?")) return v instanceof Cons;
+        if (name.equals("arity")) return arity(v);
+        if (name.equals("cons")) {
+            if (! (args[1] == NullConstant.ONLY || args[1] instanceof Cons))
+                throw new EvalException("cons expects a list, got " + show(args[1]));
+            return new Cons(v, args[1]);
+        }
+        if (name.equals("first")) return cons(v, name).getFirst();
+        if (name.equals("rest")) return cons(v, name).getRest();
+        throw new EvalException("unsupported primitive " + name);
+    }
+
+    private static int arity(Object f) {
+        if (f instanceof JamFunction) return ((JamFunction) f).arity();
+        if (f instanceof PrimFun) return ((PrimFun) f).getName().equals("cons") ? 2 : 1;
+        throw new EvalException("arity expects a function, got " + show(f));
+    }
+
+    /** Returns whether Jam values a and b are equal: lists are compared by
+     *  their elements and functions by identity */
+    static boolean equal(Object a, Object b) {
+        while (a instanceof Cons && b instanceof Cons) {
+            if (! equal(((Cons) a).getFirst(), ((Cons) b).getFirst())) return false;
+            a = ((Cons) a).getRest();
+            b = ((Cons) b).getRest();
+        }
+        return a == b || (a instanceof Integer || a instanceof Boolean) && a.equals(b);
+    }
+
+    /** Returns the printed form of the Jam value v */
+    static String show(Object v) {
+        if (v == NullConstant.ONLY) return "()";
+        if (! (v instanceof Cons)) return String.valueOf(v);
+        StringBuilder sb = new StringBuilder("(");
+        for (Object l = v; l instanceof Cons; l = ((Cons) l).getRest()) {
+            if (l != v) sb.append(' ');
+            sb.append(show(((Cons) l).getFirst()));
+        }
+        return sb.append(')').toString();
+    }
+
+    static int integer(Object v, Object context) {
+        if (v instanceof Integer) return (Integer) v;
+        throw new EvalException(context + " expects an integer, got " + show(v));
+    }
+
+    static boolean bool(Object v, Object context) {
+        if (v instanceof Boolean) return (Boolean) v;
+        throw new EvalException(context + " expects a boolean, got " + show(v));
+    }
+
+    static Cons cons(Object v, String context) {
+        if (v instanceof Cons) return (Cons) v;
+        throw new EvalException(context + " expects a non-empty list, got " + show(v));
+    }
+}
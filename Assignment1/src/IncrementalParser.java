@@ -0,0 +1,348 @@
+import java.io.*;
+import java.util.*;
+
+/** Keeps the AST of a Jam program current as its text is edited.  An edit
+ *  re-lexes and reparses only the smallest phrase that encloses it and
+ *  reuses every subtree outside that phrase.  Its cost depends on the size
+ *  of that phrase and on the nodes above it, which are rebuilt, rather
+ *  than on the size of the program.  The text is held in a gap buffer, so
+ *  edits near each other move few chars.
+ *
+ *  Each composite node is mapped to the spans of its children's phrases,
+ *  relative to the start of the node's own phrase, so an edit only changes
+ *  the records of the nodes on the path from the root down to it.  The
+ *  phrase is reparsed as the syntactic category its position calls for
+ *  (see phrase()) and the result is kept only if the whole program would
+ *  parse the same way: the new phrase must cover exactly the edited text,
+ *  and the token after it must end the phrase regardless of what it holds.
+ *  Otherwise the next enclosing phrase is tried, up to the whole program.
+ *
+ *  Programs are parsed by a PrattParser with Precedence.UNIFORM, so the
+ *  ASTs and errors are those PrattParser builds, which are also Parser's
+ *  and IterativeParser's.
+ */
+class IncrementalParser {
+
+    private final GapBuffer text;
+    private AST ast;            // null if text does not parse
+    private IdentityHashMap<AST,int[]> children = new IdentityHashMap<AST,int[]>();
+    private int reparsed;       // length of the text reparsed by the last edit
+
+    // path from the root to an edit: phrase k is child slots[k] of owners[k]
+    private AST[] owners = new AST[16];
+    private int[] slots = new int[16];
+    private int[] starts = new int[16];   // absolute span of phrase k
+    private int[] ends = new int[16];
+
+    IncrementalParser(String program) throws ParseException {
+        text = new GapBuffer(program);
+        reparseAll();
+    }
+
+    /** Returns the AST of the current text */
+    public AST ast() { return ast; }
+
+    public String text() { return text.toString(); }
+
+    /** Returns the number of chars reparsed by the last edit */
+    public int reparsedLength() { return reparsed; }
+
+    /** Replaces the removed chars at offset by inserted and returns the AST
+     *  of the edited program.
+     * @throws ParseException if the edited program does not parse.  The edit
+     *  is kept, and the next edit reparses the whole program.
+     */
+    public AST edit(int offset, int removed, String inserted) throws ParseException {
+        if (offset < 0 || removed < 0 || offset + removed > text.length())
+            throw new IndexOutOfBoundsException("edit at " + offset + " of " + removed
+                    + " chars in a text of length " + text.length());
+        text.replace(offset, offset + removed, inserted);
+        if (ast != null && reparse(offset, removed, inserted.length() - removed)) return ast;
+        return reparseAll();
+    }
+
+    private AST reparseAll() throws ParseException {
+        ast = null;
+        children.clear();
+        reparsed = text.length();
+        IdentityHashMap<AST,int[]> found = new IdentityHashMap<AST,int[]>();
+        AST result = parser(0, text.length(), found).parsePhrase(PrattParser.Phrase.EXP);
+        enter(result, found);
+        return ast = result;
+    }
+
+    /** Reparses the smallest phrase that can absorb the edit of removed chars
+     *  at offset, which changed the length of the text by delta.  Returns
+     *  false if no phrase short of the whole program can.
+     */
+    private boolean reparse(int offset, int removed, int delta) {
+        int end = offset + removed;
+        int depth = 0;
+        AST node = ast;
+        int base = 0;
+        for (int[] b = children.get(node); b != null; b = children.get(node)) {
+            // the child phrases are in source order: find the last starting before offset
+            int lo = 0, hi = b.length / 2 - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (base + b[2 * mid] < offset) lo = mid;
+                else hi = mid - 1;
+            }
+            int start = base + b[2 * lo];
+            if (! (start < offset && end < base + b[2 * lo + 1])) break;
+            if (depth == owners.length) growPath();
+            owners[depth] = node;
+            slots[depth] = lo;
+            starts[depth] = start;
+            ends[depth] = base + b[2 * lo + 1];
+            depth++;
+            node = child(node, lo);
+            base = start;
+        }
+        for (int k = depth - 1; k >= 0; k--) {
+            IdentityHashMap<AST,int[]> found = new IdentityHashMap<AST,int[]>();
+            AST result = parsePhrase(starts[k], ends[k] + delta, phrase(owners[k], slots[k]), found);
+            if (result != null) {
+                reparsed = ends[k] + delta - starts[k];
+                splice(k, result, found, delta);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Parses the text in [start,end) as one phrase of category c, recording
+     *  spans in found.  Returns null unless the phrase covers exactly that
+     *  text and is sure to end there in the program as a whole.
+     */
+    private AST parsePhrase(int start, int end, PrattParser.Phrase c, IdentityHashMap<AST,int[]> found) {
+        try {
+            if (! ends(c, end)) return null;
+            PrattParser p = parser(start, end, found);
+            AST result = p.parsePhrase(c);
+            return p.lastTokenEnd() == end - start ? result : null;
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /** Returns whether a phrase of category c ending at offset must end
+     *  there, whatever its text.  An <exp> absorbs any binary operator or
+     *  argument list that follows, and a <term> any argument list.
+     */
+    private boolean ends(PrattParser.Phrase c, int offset) {
+        if (c == PrattParser.Phrase.FACTOR) return true;
+        Lexer lexer = new Lexer(new TextReader(text, offset, text.length()));
+        int code = lexer.scan();
+        if (c == PrattParser.Phrase.TERM) return code != Lexer.T_LEFT_PAREN;
+        switch (code) {
+            case Lexer.T_EOF:
+            case Lexer.T_RIGHT_PAREN:
+            case Lexer.T_COMMA:
+            case Lexer.T_SEMICOLON:
+                return true;
+            case Lexer.T_WORD: {
+                Token t = lexer.wordToken();
+                return t == ReservedWords.THEN || t == ReservedWords.ELSE || t == ReservedWords.IN;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private PrattParser parser(int start, int end, final IdentityHashMap<AST,int[]> found) {
+        PrattParser p = new PrattParser(new Lexer(new TextReader(text, start, end)));
+        p.setSpanListener(new PrattParser.SpanListener() {
+            public void node(AST n, int[] bounds) { found.put(n, bounds); }
+        });
+        return p;
+    }
+
+    /** Replaces phrase k of the current path by result, rebuilding the nodes
+     *  above it and shifting the spans that follow the edit by delta */
+    private void splice(int k, AST result, IdentityHashMap<AST,int[]> found, int delta) {
+        forget(child(owners[k], slots[k]));
+        enter(result, found);
+        AST c = result;
+        for (; k >= 0; k--) {
+            AST owner = owners[k];
+            int[] b = children.remove(owner);
+            b[2 * slots[k] + 1] += delta;
+            for (int i = 2 * slots[k] + 2; i < b.length; i++) b[i] += delta;
+            c = withChild(owner, slots[k], c);
+            children.put(c, b);
+            owners[k] = null;
+        }
+        ast = c;
+    }
+
+    /** Drops the records of the composite nodes of the subtree root */
+    private void forget(AST root) {
+        ArrayList<AST> work = new ArrayList<AST>();
+        work.add(root);
+        while (! work.isEmpty()) {
+            AST n = work.remove(work.size() - 1);
+            int[] b = children.remove(n);
+            if (b == null) continue;
+            for (int i = 0; i < b.length / 2; i++) work.add(child(n, i));
+        }
+    }
+
+    /** Records the nodes of the subtree root from found, whose spans are
+     *  relative to the start of root's phrase, relative to their own phrases */
+    private void enter(AST root, IdentityHashMap<AST,int[]> found) {
+        ArrayList<AST> work = new ArrayList<AST>();
+        int[] bases = new int[16];
+        work.add(root);
+        while (! work.isEmpty()) {
+            int top = work.size() - 1;
+            AST n = work.remove(top);
+            int base = bases[top];
+            int[] b = found.get(n);
+            if (b == null) continue;
+            for (int i = 0; i < b.length / 2; i++) {
+                if (work.size() == bases.length) bases = Arrays.copyOf(bases, 2 * bases.length);
+                bases[work.size()] = b[2 * i];
+                work.add(child(n, i));
+            }
+            for (int i = 0; i < b.length; i++) b[i] -= base;
+            children.put(n, b);
+        }
+    }
+
+    private void growPath() {
+        int n = 2 * owners.length;
+        owners = Arrays.copyOf(owners, n);
+        slots = Arrays.copyOf(slots, n);
+        starts = Arrays.copyOf(starts, n);
+        ends = Arrays.copyOf(ends, n);
+    }
+
+    /** Returns the category of the phrase of child i of n */
+    static PrattParser.Phrase phrase(AST n, int i) {
+        if (n instanceof UnOpApp || (n instanceof BinOpApp && i == 0)) return PrattParser.Phrase.TERM;
+        if (n instanceof App && i == 0) return PrattParser.Phrase.FACTOR;
+        return PrattParser.Phrase.EXP;
+    }
+
+    /** Returns child i of the composite node n, numbering children in the
+     *  order of its constructor's arguments */
+    static AST child(AST n, int i) {
+        if (n instanceof UnOpApp) return ((UnOpApp) n).getArg();
+        if (n instanceof BinOpApp) return i == 0 ? ((BinOpApp) n).getArg1() : ((BinOpApp) n).getArg2();
+        if (n instanceof App) return i == 0 ? ((App) n).getRator() : ((App) n).getArgs()[i - 1];
+        if (n instanceof If) {
+            If f = (If) n;
+            return i == 0 ? f.getTest() : i == 1 ? f.getConseq() : f.getAlt();
+        }
+        if (n instanceof Let) {
+            Def[] defs = ((Let) n).getDefs();
+            return i < defs.length ? defs[i].getRhs() : ((Let) n).getBody();
+        }
+        return ((Map) n).getBody();
+    }
+
+    /** Returns a copy of the composite node n with child i replaced by c */
+    static AST withChild(AST n, int i, AST c) {
+        if (n instanceof UnOpApp) return new UnOpApp(((UnOpApp) n).getRator(), c);
+        if (n instanceof BinOpApp) {
+            BinOpApp b = (BinOpApp) n;
+            return i == 0 ? new BinOpApp(b.getRator(), c, b.getArg2()) : new BinOpApp(b.getRator(), b.getArg1(), c);
+        }
+        if (n instanceof App) {
+            App a = (App) n;
+            if (i == 0) return new App(c, a.getArgs());
+            AST[] args = a.getArgs().clone();
+            args[i - 1] = c;
+            return new App(a.getRator(), args);
+        }
+        if (n instanceof If) {
+            If f = (If) n;
+            return new If(i == 0 ? c : f.getTest(), i == 1 ? c : f.getConseq(), i == 2 ? c : f.getAlt());
+        }
+        if (n instanceof Let) {
+            Let l = (Let) n;
+            Def[] defs = l.getDefs();
+            if (i == defs.length) return new Let(defs, c);
+            defs = defs.clone();
+            defs[i] = new Def(defs[i].getLhs(), c);
+            return new Let(defs, l.getBody());
+        }
+        return new Map(((Map) n).getVars(), c);
+    }
+
+    /** Text with a gap at the last edit, so that nearby edits move few chars */
+    private static class GapBuffer implements CharSequence {
+        private char[] chars;
+        private int gapStart;
+        private int gapEnd;
+
+        GapBuffer(String s) {
+            chars = new char[s.length() + 64];
+            s.getChars(0, s.length(), chars, 0);
+            gapStart = s.length();
+            gapEnd = chars.length;
+        }
+
+        public int length() { return chars.length - (gapEnd - gapStart); }
+
+        public char charAt(int i) { return i < gapStart ? chars[i] : chars[i + gapEnd - gapStart]; }
+
+        public CharSequence subSequence(int start, int end) { return toString().substring(start, end); }
+
+        public String toString() {
+            return new StringBuilder(length()).append(chars, 0, gapStart)
+                    .append(chars, gapEnd, chars.length - gapEnd).toString();
+        }
+
+        /** Replaces the chars in [start,end) by s */
+        void replace(int start, int end, String s) {
+            if (start < gapStart) {
+                int n = gapStart - start;
+                System.arraycopy(chars, start, chars, gapEnd - n, n);
+                gapStart -= n;
+                gapEnd -= n;
+            }
+            else if (start > gapStart) {
+                int n = start - gapStart;
+                System.arraycopy(chars, gapEnd, chars, gapStart, n);
+                gapStart += n;
+                gapEnd += n;
+            }
+            gapEnd += end - start;
+            if (gapEnd - gapStart < s.length()) {
+                int tail = chars.length - gapEnd;
+                char[] a = new char[Math.max(2 * chars.length, length() + s.length() + 64)];
+                System.arraycopy(chars, 0, a, 0, gapStart);
+                System.arraycopy(chars, gapEnd, a, a.length - tail, tail);
+                gapEnd = a.length - tail;
+                chars = a;
+            }
+            s.getChars(0, s.length(), chars, gapStart);
+            gapStart += s.length();
+        }
+    }
+
+    /** Reader over a range of a CharSequence */
+    private static class TextReader extends Reader {
+        private final CharSequence text;
+        private int pos;
+        private final int end;
+
+        TextReader(CharSequence t, int start, int e) {
+            text = t;
+            pos = start;
+            end = e;
+        }
+
+        public int read(char[] cbuf, int off, int len) {
+            if (pos == end) return -1;
+            int n = Math.min(len, end - pos);
+            for (int i = 0; i < n; i++) cbuf[off + i] = text.charAt(pos + i);
+            pos += n;
+            return n;
+        }
+
+        public void close() { }
+    }
+}
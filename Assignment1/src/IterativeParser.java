@@ -0,0 +1,301 @@
+import java.io.*;
+import java.util.*;
+
+/** Parser for the same Jam grammar as Parser, producing the same ASTs, that
+ *  uses an explicit stack instead of Java recursion.  Operator chains and
+ *  nested if/let/map expressions or parenthesized factors of any depth can
+ *  be parsed; the input size is no longer limited by the thread stack.
+ *
+ *  The parser is a loop over two stacks: a stack of continuation codes,
+ *  each naming what to do with the next completed <exp> or <term>, and an
+ *  operand stack holding the pieces (operators, finished subtrees, list
+ *  elements) waiting for it.
+ */
+class IterativeParser {
+
+    // continuation codes, applied to the AST that was just completed
+
+    private static final int K_DONE = 0;        // whole program
+    private static final int K_EXP_TAIL = 1;    // <term> of an <exp>: look for { <binop> <exp> }
+    private static final int K_BINOP = 2;       // right operand: operands hold term, op
+    private static final int K_UNOP = 3;        // operand of a unary op: operands hold op
+    private static final int K_PAREN = 4;       // ( <exp> : expect )
+    private static final int K_ARG = 5;         // element of an <exp-list>
+    private static final int K_IF_TEST = 6;
+    private static final int K_IF_CONSEQ = 7;   // operands hold test
+    private static final int K_IF_ALT = 8;      // operands hold test, conseq
+    private static final int K_DEF = 9;         // right hand side: operands hold lhs
+    private static final int K_LET_BODY = 10;
+    private static final int K_MAP_BODY = 11;   // operands hold Variable[]
+
+    private TokenSource in;
+    private ASTFactory factory = ASTFactory.PLAIN;
+
+    private int[] konts = new int[64];
+    private int kontTop;
+    private Object[] operands = new Object[64];
+    private int operandTop;
+    private int[] marks = new int[16];  // operand index where each open list starts
+    private int markTop;
+
+    IterativeParser(Lexer i) { in = i; }
+
+    IterativeParser(TokenStream s) { in = s; }
+
+    IterativeParser(TokenSource s) { in = s; }
+
+    IterativeParser(Reader inputStream) { this(new Lexer(inputStream)); }
+
+    IterativeParser(String fileName) throws IOException { this(new Lexer(fileName)); }
+
+    /** Makes the nodes of the ASTs parsed from now on with factory */
+    public void setFactory(ASTFactory factory) { this.factory = factory; }
+
+    /** Parses the program text in the token source bound to 'in' and returns
+     *  the corresponding AST.
+     * @throws ParseException if a syntax error is encountered (including
+     *  lexical errors) or if tokens remain after the program.
+     */
+    public AST parse() throws ParseException {
+        kontTop = operandTop = markTop = 0;
+        pushKont(K_DONE);
+        AST result = run();
+        Token token = in.peek();
+        if (token != null) error(token, "expect end of input");
+        return result;
+    }
+
+    /** Parses one <exp> and applies the pending continuations to it */
+    private AST run() {
+        AST result;
+        for (;;) {
+            result = parseExpStart();
+            // apply continuations until one needs another <exp>
+            ret:
+            for (;;) {
+                switch (konts[--kontTop]) {
+                    case K_DONE:
+                        return result;
+                    case K_EXP_TAIL: {
+                        Token next = in.peek();
+                        if (next instanceof Op) {
+                            Op op = (Op) in.readToken();
+                            if (! op.isBinOp()) error(op, "expect binary OP");
+                            pushOperand(result);
+                            pushOperand(op);
+                            pushKont(K_BINOP);
+                            break ret;
+                        }
+                        continue;
+                    }
+                    case K_BINOP: {
+                        Op op = (Op) popOperand();
+                        AST term = (AST) popOperand();
+                        result = factory.makeBinOpApp(op, term, result);
+                        continue;
+                    }
+                    case K_UNOP:
+                        result = factory.makeUnOpApp((Op) popOperand(), result);
+                        continue;
+                    case K_PAREN: {
+                        Token token = in.readToken();
+                        if (token != RightParen.ONLY) error(token, "expect rightParen");
+                        AST app = parseApp(result);
+                        if (app == null) break ret;  // argument list opened
+                        result = app;
+                        continue;
+                    }
+                    case K_ARG: {
+                        pushOperand(result);
+                        Token next = in.peek();
+                        if (next == RightParen.ONLY) {
+                            in.readToken();
+                            result = closeApp();
+                            continue;
+                        }
+                        if (next instanceof Comma) in.readToken();
+                        else error(next, "expect , or )");
+                        pushKont(K_ARG);
+                        break ret;
+                    }
+                    case K_IF_TEST:
+                        expect(ReservedWords.THEN, "expecting if, then");
+                        pushOperand(result);
+                        pushKont(K_IF_CONSEQ);
+                        break ret;
+                    case K_IF_CONSEQ:
+                        expect(ReservedWords.ELSE, "expecting if, then, else");
+                        pushOperand(result);
+                        pushKont(K_IF_ALT);
+                        break ret;
+                    case K_IF_ALT: {
+                        AST conseq = (AST) popOperand();
+                        AST test = (AST) popOperand();
+                        result = factory.makeIf(test, conseq, result);
+                        continue;
+                    }
+                    case K_DEF: {
+                        Variable lhs = (Variable) popOperand();
+                        pushOperand(new Def(lhs, result));
+                        Token token = in.readToken();
+                        if (! (token instanceof SemiColon)) error(token, "expect ;");
+                        token = in.readToken();
+                        if (token == ReservedWords.IN) {
+                            Def[] defs = new Def[operandTop - marks[--markTop]];
+                            popOperands(defs);
+                            pushOperand(defs);
+                            pushKont(K_LET_BODY);
+                        }
+                        else startDef(token);
+                        break ret;
+                    }
+                    case K_LET_BODY:
+                        result = factory.makeLet((Def[]) popOperand(), result);
+                        continue;
+                    case K_MAP_BODY:
+                        result = factory.makeMap((Variable[]) popOperand(), result);
+                        continue;
+                    default:
+                        throw new IllegalStateException("bad continuation");
+                }
+            }
+        }
+    }
+
+    /** Starts parsing an <exp>.  Returns its AST if it is complete without
+     *  parsing another <exp> (a <term> awaiting its binop tail); otherwise
+     *  pushes continuations and returns the first nested <exp>'s result.
+     */
+    private AST parseExpStart() {
+        for (;;) {
+            Token token = in.readToken();
+            if (token == null) error(null, "unexpected end of input");
+            if (token == ReservedWords.IF) {
+                pushKont(K_IF_TEST);
+                continue;
+            }
+            if (token == ReservedWords.LET) {
+                pushMark();
+                startDef(in.readToken());
+                continue;
+            }
+            if (token == ReservedWords.MAP) {
+                pushOperand(parseIds());
+                pushKont(K_MAP_BODY);
+                continue;
+            }
+            if (token instanceof KeyWord) error(token, "illegal token");
+            pushKont(K_EXP_TAIL);
+            AST term = parseTermStart(token);
+            if (term != null) return term;
+        }
+    }
+
+    /** Starts parsing a <term> whose first token is token.  Returns the term
+     *  if it is complete, or null if it contains an <exp> to be parsed next.
+     *     <term>   ::= { <unop> } <term> | <constant> | <factor> {( <exp-list> )}
+     *     <factor> ::= ( <exp> ) | <prim> | <id>
+     */
+    private AST parseTermStart(Token token) {
+        while (token instanceof Op) {
+            Op op = (Op) token;
+            if (! op.isUnOp()) error(op, "unary operator");
+            pushOperand(op);
+            pushKont(K_UNOP);
+            token = in.readToken();
+        }
+        if (token instanceof IntConstant) return factory.makeInt((IntConstant) token);
+        if (token instanceof Constant) return (Constant) token;
+        if (token == LeftParen.ONLY) {
+            pushKont(K_PAREN);
+            return null;
+        }
+        if (token instanceof PrimFun || token instanceof Variable) return parseApp((AST) token);
+        error(token, "expect paren");
+        return null;
+    }
+
+    /** Completes a factor, which may be applied to an argument list.  Returns
+     *  the finished term, or null if an argument <exp> is to be parsed next.
+     */
+    private AST parseApp(AST factor) {
+        if (in.peek() != LeftParen.ONLY) return factor;
+        in.readToken();
+        pushOperand(factor);
+        pushMark();
+        if (in.peek() == RightParen.ONLY) {
+            in.readToken();
+            return closeApp();
+        }
+        pushKont(K_ARG);
+        return null;
+    }
+
+    /** Builds the App whose rator and args are on top of the operand stack */
+    private AST closeApp() {
+        AST[] args = new AST[operandTop - marks[--markTop]];
+        popOperands(args);
+        AST rator = (AST) popOperand();
+        return factory.makeApp(rator, args);
+    }
+
+    /** Starts a <def> whose first token is token */
+    private void startDef(Token token) {
+        if (! (token instanceof Variable)) error(token, "expect let");
+        pushOperand(token);
+        expect(ReservedWords.DEFINE, "expect :=");
+        pushKont(K_DEF);
+    }
+
+    /** Parses the <id-list> of a map, including its closing `to' */
+    private Variable[] parseIds() {
+        int mark = operandTop;
+        Token token = in.readToken();
+        while (token instanceof Variable) {
+            pushOperand(token);
+            token = in.readToken();
+        }
+        if (token != ReservedWords.TO) error(token, "expect map to");
+        Variable[] vars = new Variable[operandTop - mark];
+        popOperands(vars);
+        return vars;
+    }
+
+    /** Reads the next token, which must be key */
+    private void expect(KeyWord key, String message) {
+        Token token = in.readToken();
+        if (token != key) error(token, message);
+    }
+
+    private void pushKont(int k) {
+        if (kontTop == konts.length) konts = Arrays.copyOf(konts, 2 * kontTop);
+        konts[kontTop++] = k;
+    }
+
+    private void pushOperand(Object o) {
+        if (operandTop == operands.length) operands = Arrays.copyOf(operands, 2 * operandTop);
+        operands[operandTop++] = o;
+    }
+
+    private Object popOperand() {
+        Object o = operands[--operandTop];
+        operands[operandTop] = null;
+        return o;
+    }
+
+    /** Moves the top a.length operands into a, in stack order */
+    private void popOperands(Object[] a) {
+        operandTop -= a.length;
+        System.arraycopy(operands, operandTop, a, 0, a.length);
+        Arrays.fill(operands, operandTop, operandTop + a.length, null);
+    }
+
+    private void pushMark() {
+        if (markTop == marks.length) marks = Arrays.copyOf(marks, 2 * markTop);
+        marks[markTop++] = operandTop;
+    }
+
+    private void error(Token token, String message) throws ParseException {
+        throw new ParseException(token + " + " + message, in.line(), in.column());
+    }
+}
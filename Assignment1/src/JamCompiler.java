@@ -0,0 +1,941 @@
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.*;
+import java.util.*;
+
+/** Compiler from Jam programs to JVM classes.  A program, once resolved
+ *  by Resolver, becomes one class whose static method m0 evaluates the
+ *  program and whose method mk evaluates the body of the k-th Map in it.
+ *  The class is loaded as a hidden class when the JVM provides them, and
+ *  by a class loader of its own otherwise; either way it is unloaded with
+ *  its Program.
+ *
+ *  Compiled code keeps Evaluator's frames and values, so a variable is an
+ *  aaload from a frame.  Integer operations whose operands are themselves
+ *  integer operations or constants are done on unboxed ints, comparisons
+ *  and boolean operators in conditions become branches, and a call to a
+ *  let-bound Map that is known to be initialized invokes its method
+ *  directly.  Other calls go through a generated dispatcher.
+ *
+ *  Programs too large for a class file are run by Evaluator instead.
+ *  The public members below are called by compiled code.
+ */
+public class JamCompiler implements ASTVisitor<Void> {
+
+    private static final String SELF = "JamCode";
+    private static final String FRAME = "[Ljava/lang/Object;";
+    private static final String METHOD = "(" + FRAME + ")Ljava/lang/Object;";
+    private static final String CLOSURE = "JamCompiler$CompiledClosure";
+
+    /** The code of a compiled program */
+    public interface Code {
+        /** Runs method k of the program on frame */
+        Object run(int k, Object[] frame);
+    }
+
+    /** Jam function value made by compiled code evaluating a Map */
+    public static final class CompiledClosure implements JamFunction {
+        public final int index;       // of the method running the Map's body
+        public final Object[] env;
+        private final Map map;
+
+        public CompiledClosure(int i, Object[] e, Object m) {
+            index = i;
+            env = e;
+            map = (Map) m;
+        }
+
+        public int arity() { return map.getVars().length; }
+        public String toString() { return "closure: " + map; }
+    }
+
+    /** A program prepared for running */
+    static class Program {
+        private final AST resolved;
+        private final Code code;   // null if the program is too large to compile
+
+        Program(AST r, Code c) {
+            resolved = r;
+            code = c;
+        }
+
+        /** Returns whether the program runs as compiled code */
+        public boolean isCompiled() { return code != null; }
+
+        /** Evaluates the program
+         * @throws EvalException if it raises a run-time error
+         */
+        public Object run() { return code != null ? code.run(0, null) : resolved.accept(new Evaluator()); }
+    }
+
+    /** Compiled programs, by the AST they were compiled from */
+    private static final java.util.Map<AST,Program> cache =
+        Collections.synchronizedMap(new WeakHashMap<AST,Program>());
+
+    /** Returns ast compiled, reusing an earlier compilation of the same AST
+     * @throws EvalException if ast has a free variable
+     */
+    public static Program compile(AST ast) {
+        Program p = cache.get(ast);
+        if (p == null) {
+            AST resolved = Resolver.resolve(ast);
+            p = new Program(resolved, new JamCompiler().generate(resolved));
+            if (resolved != ast) cache.put(ast, p);  // a lone leaf would keep itself alive
+        }
+        return p;
+    }
+
+    /** Evaluates the closed program ast as compiled code
+     * @throws EvalException if ast has a free variable or raises a run-time error
+     */
+    public static Object eval(AST ast) { return compile(ast).run(); }
+
+    // run-time support for compiled code
+
+    public static int integer(Object v, String context) { return Evaluator.integer(v, context); }
+    public static boolean bool(Object v, String context) { return Evaluator.bool(v, context); }
+    public static boolean equal(Object a, Object b) { return Evaluator.equal(a, b); }
+
+    public static int div(int a, int b) {
+        if (b == 0) throw new EvalException("division by zero");
+        return a / b;
+    }
+
+    public static Object defined(Object v, String name) {
+        if (v == null) throw new EvalException("variable " + name + " used before it is defined");
+        return v;
+    }
+
+    /** Returns a frame for applying f to n arguments, linked to f's
+     *  environment if f is a CompiledClosure */
+    public static Object[] frame(Object f, int n) {
+        Object[] frame = new Object[n + 1];
+        if (f instanceof CompiledClosure) {
+            CompiledClosure c = (CompiledClosure) f;
+            if (c.arity() != n) throw new EvalException(c + " expects " + c.arity() + " arguments, got " + n);
+            frame[0] = c.env;
+        }
+        else if (! (f instanceof PrimFun)) throw new EvalException(Evaluator.show(f) + " is not a function");
+        return frame;
+    }
+
+    public static Object applyPrim(Object f, Object[] frame) {
+        return Evaluator.applyPrim((PrimFun) f, Arrays.copyOfRange(frame, 1, frame.length));
+    }
+
+    public static Object unsupported(String op) { throw new EvalException("unsupported operator " + op); }
+
+    // code generation
+
+    /** Compile-time view of a frame: where it is and what is known of its variables */
+    private static class Scope {
+        final Bytecode method;  // whose local holds the frame
+        final int local;
+        final int[] known;      // for a Map bound by a let, its method; otherwise -1
+        final int[] arity;
+        final boolean[] set;    // whether the slot is surely filled when read
+
+        Scope(Bytecode m, int l, int n, boolean filled) {
+            method = m;
+            local = l;
+            known = new int[n];
+            arity = new int[n];
+            set = new boolean[n];
+            Arrays.fill(known, -1);
+            Arrays.fill(set, filled);
+        }
+    }
+
+    private final ClassFile cf = new ClassFile(SELF, "java/lang/Object", "JamCompiler$Code");
+    private final ArrayList<Bytecode> methods = new ArrayList<Bytecode>();
+    private final ArrayList<Object> constants = new ArrayList<Object>();
+    private final IdentityHashMap<Object,Integer> constantIndex = new IdentityHashMap<Object,Integer>();
+    private final ArrayList<Scope> scopes = new ArrayList<Scope>();  // innermost last
+    private Bytecode code;  // method being generated
+
+    private JamCompiler() { }
+
+    /** Returns the compiled code of the resolved program, or null if it is too large */
+    private Code generate(AST resolved) {
+        try {
+            code = methods.get(newMethod());
+            code.newLocal();  // m0's unused frame
+            resolved.accept(this);
+            code.op(Bytecode.ARETURN, -1);
+            return (Code) define(writeClass()).getConstructor(Object[].class).newInstance((Object) constants.toArray());
+        } catch (IllegalStateException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Void forBoolConstant(BoolConstant b) {
+        code.op2(Bytecode.GETSTATIC, cf.field("java/lang/Boolean", b.getValue() ? "TRUE" : "FALSE", "Ljava/lang/Boolean;"), 1);
+        return null;
+    }
+
+    public Void forIntConstant(IntConstant i) { return box(i); }
+    public Void forNullConstant(NullConstant n) { return constant(n); }
+    public Void forPrimFun(PrimFun f) { return constant(f); }
+
+    public Void forVariable(Variable v) {
+        LexicalVariable lv = (LexicalVariable) v;
+        loadFrame(lv.getDepth());
+        code.iconst(lv.getIndex(), cf);
+        code.op(Bytecode.AALOAD, -1);
+        if (! scope(lv.getDepth()).set[lv.getIndex() - 1]) {
+            code.ldc(cf.string(v.getName()));
+            invokestatic("JamCompiler", "defined", "(Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/Object;");
+        }
+        return null;
+    }
+
+    public Void forUnOpApp(UnOpApp u) {
+        String op = u.getRator().getSymbol();
+        if (op.equals("+") || op.equals("-")) return box(u);
+        if (op.equals("~") || op.equals("!")) return materialize(u);
+        u.getArg().accept(this);
+        code.op(Bytecode.POP, -1);
+        return throwUnsupported(op);
+    }
+
+    public Void forBinOpApp(BinOpApp b) {
+        String op = b.getRator().getSymbol();
+        if (isInt(b)) return box(b);
+        if (op.equals("&") || op.equals("|")) {
+            // the value of the right operand is the result, whatever its type
+            boolean and = op.equals("&");
+            Label shortCut = new Label(), end = new Label();
+            cond(b.getArg1(), ! and, shortCut, op);
+            b.getArg2().accept(this);
+            code.jump(Bytecode.GOTO, end);
+            code.place(shortCut);
+            code.op2(Bytecode.GETSTATIC, cf.field("java/lang/Boolean", and ? "FALSE" : "TRUE", "Ljava/lang/Boolean;"), 1);
+            code.place(end);
+            return null;
+        }
+        if (comparison(op) >= 0) return materialize(b);
+        b.getArg1().accept(this);
+        b.getArg2().accept(this);
+        code.op(Bytecode.POP, -1);
+        code.op(Bytecode.POP, -1);
+        return throwUnsupported(op);
+    }
+
+    public Void forApp(App a) {
+        AST rator = a.getRator();
+        AST[] args = a.getArgs();
+        if (rator instanceof LexicalVariable) {
+            LexicalVariable f = (LexicalVariable) rator;
+            Scope s = scope(f.getDepth());
+            int i = f.getIndex() - 1;
+            if (s.known[i] >= 0 && s.set[i] && s.arity[i] == args.length) {
+                // the closure's environment is the let's frame
+                newFrame(args.length);
+                code.op(Bytecode.DUP, 1);
+                code.iconst(0, cf);
+                loadFrame(f.getDepth());
+                code.op(Bytecode.AASTORE, -3);
+                storeArgs(args);
+                invokestatic(SELF, "m" + s.known[i], METHOD);
+                return null;
+            }
+        }
+        rator.accept(this);
+        code.op(Bytecode.DUP, 1);
+        code.iconst(args.length, cf);
+        invokestatic("JamCompiler", "frame", "(Ljava/lang/Object;I)" + FRAME);
+        storeArgs(args);
+        invokestatic(SELF, "call", "(Ljava/lang/Object;" + FRAME + ")Ljava/lang/Object;");
+        return null;
+    }
+
+    public Void forMap(Map m) { return closure(m, newMethod()); }
+
+    public Void forIf(If i) {
+        Label alt = new Label(), end = new Label();
+        cond(i.getTest(), false, alt, "if");
+        i.getConseq().accept(this);
+        code.jump(Bytecode.GOTO, end);
+        code.place(alt);
+        i.getAlt().accept(this);
+        code.place(end);
+        return null;
+    }
+
+    public Void forLet(Let l) {
+        Def[] defs = l.getDefs();
+        Scope s = new Scope(code, code.newLocal(), defs.length, false);
+        newFrame(defs.length);
+        code.op(Bytecode.DUP, 1);
+        code.iconst(0, cf);
+        loadFrame(0);
+        code.op(Bytecode.AASTORE, -3);
+        code.astore(s.local);
+        scopes.add(s);
+        for (int i = 0; i < defs.length; i++) {
+            AST rhs = defs[i].getRhs();
+            code.aload(s.local);
+            code.iconst(i + 1, cf);
+            if (rhs instanceof Map) {
+                // the closure can only be called once it is in its slot
+                s.known[i] = newMethod();
+                s.arity[i] = ((Map) rhs).getVars().length;
+                s.set[i] = true;
+                closure((Map) rhs, s.known[i]);
+            }
+            else rhs.accept(this);
+            code.op(Bytecode.AASTORE, -3);
+            s.set[i] = true;
+        }
+        l.getBody().accept(this);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    /** Generates method k from the body of m and code making its closure */
+    private Void closure(Map m, int k) {
+        Bytecode outer = code;
+        code = methods.get(k);
+        code.newLocal();
+        scopes.add(new Scope(code, 0, m.getVars().length, true));
+        m.getBody().accept(this);
+        code.op(Bytecode.ARETURN, -1);
+        scopes.remove(scopes.size() - 1);
+        code = outer;
+
+        code.op2(Bytecode.NEW, cf.cls(CLOSURE), 1);
+        code.op(Bytecode.DUP, 1);
+        code.iconst(k, cf);
+        loadFrame(0);
+        constant(m);
+        code.op2(Bytecode.INVOKESPECIAL, cf.method(CLOSURE, "<init>", "(I" + FRAME + "Ljava/lang/Object;)V"), -4);
+        return null;
+    }
+
+    /** Generates code leaving the int value of ast on the stack */
+    private void integer(AST ast, String context) {
+        if (ast instanceof IntConstant) {
+            code.iconst(((IntConstant) ast).getValue(), cf);
+            return;
+        }
+        if (isInt(ast) && ast instanceof UnOpApp) {
+            UnOpApp u = (UnOpApp) ast;
+            integer(u.getArg(), u.getRator().getSymbol());
+            if (u.getRator().getSymbol().equals("-")) code.op(Bytecode.INEG, 0);
+            return;
+        }
+        if (isInt(ast)) {
+            BinOpApp b = (BinOpApp) ast;
+            String op = b.getRator().getSymbol();
+            operands(b);
+            if (op.equals("+")) code.op(Bytecode.IADD, -1);
+            else if (op.equals("-")) code.op(Bytecode.ISUB, -1);
+            else if (op.equals("*")) code.op(Bytecode.IMUL, -1);
+            else invokestatic("JamCompiler", "div", "(II)I");
+            return;
+        }
+        ast.accept(this);
+        code.ldc(cf.string(context));
+        invokestatic("JamCompiler", "integer", "(Ljava/lang/Object;Ljava/lang/String;)I");
+    }
+
+    /** Generates code leaving the int values of b's operands on the stack.
+     *  Like Evaluator, evaluates both operands before checking the first,
+     *  and checks the first before the second.  An integer operation needs
+     *  no check, as evaluating it checks its own operands. */
+    private void operands(BinOpApp b) {
+        String op = b.getRator().getSymbol();
+        if (isInt(b.getArg1())) {
+            integer(b.getArg1(), op);
+            integer(b.getArg2(), op);
+            return;
+        }
+        b.getArg1().accept(this);
+        boolean checked = isInt(b.getArg2());
+        if (checked) integer(b.getArg2(), op);
+        else b.getArg2().accept(this);
+        code.op(Bytecode.SWAP, 0);
+        code.ldc(cf.string(op));
+        invokestatic("JamCompiler", "integer", "(Ljava/lang/Object;Ljava/lang/String;)I");
+        code.op(Bytecode.SWAP, 0);
+        if (! checked) {
+            code.ldc(cf.string(op));
+            invokestatic("JamCompiler", "integer", "(Ljava/lang/Object;Ljava/lang/String;)I");
+        }
+    }
+
+    /** Generates code that jumps to target if ast evaluates to when */
+    private void cond(AST ast, boolean when, Label target, String context) {
+        if (ast instanceof BoolConstant) {
+            if (((BoolConstant) ast).getValue() == when) code.jump(Bytecode.GOTO, target);
+            return;
+        }
+        if (ast instanceof UnOpApp) {
+            String op = ((UnOpApp) ast).getRator().getSymbol();
+            if (op.equals("~") || op.equals("!")) {
+                cond(((UnOpApp) ast).getArg(), ! when, target, op);
+                return;
+            }
+        }
+        if (ast instanceof BinOpApp) {
+            BinOpApp b = (BinOpApp) ast;
+            String op = b.getRator().getSymbol();
+            int compare = comparison(op);
+            if (compare >= 0 && (compare > Bytecode.IF_ICMPNE || isInt(b.getArg1()) && isInt(b.getArg2()))) {
+                operands(b);
+                code.jump(when ? compare : Bytecode.negate(compare), target);
+                return;
+            }
+            if (compare >= 0) {
+                b.getArg1().accept(this);
+                b.getArg2().accept(this);
+                invokestatic("JamCompiler", "equal", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+                code.jump(when == (compare == Bytecode.IF_ICMPEQ) ? Bytecode.IFNE : Bytecode.IFEQ, target);
+                return;
+            }
+            if (op.equals("&") || op.equals("|")) {
+                // jump out as soon as the left operand decides the result
+                boolean and = op.equals("&");
+                if (when == and) {
+                    Label decided = new Label();
+                    cond(b.getArg1(), ! and, decided, op);
+                    cond(b.getArg2(), when, target, context);
+                    code.place(decided);
+                }
+                else {
+                    cond(b.getArg1(), when, target, op);
+                    cond(b.getArg2(), when, target, context);
+                }
+                return;
+            }
+        }
+        ast.accept(this);
+        code.ldc(cf.string(context));
+        invokestatic("JamCompiler", "bool", "(Ljava/lang/Object;Ljava/lang/String;)Z");
+        code.jump(when ? Bytecode.IFNE : Bytecode.IFEQ, target);
+    }
+
+    /** Returns whether ast is an integer operation or constant */
+    private static boolean isInt(AST ast) {
+        if (ast instanceof IntConstant) return true;
+        String op;
+        if (ast instanceof UnOpApp) {
+            op = ((UnOpApp) ast).getRator().getSymbol();
+            return op.equals("+") || op.equals("-");
+        }
+        if (! (ast instanceof BinOpApp)) return false;
+        op = ((BinOpApp) ast).getRator().getSymbol();
+        return op.equals("+") || op.equals("-") || op.equals("*") || op.equals("/");
+    }
+
+    /** Returns the if_icmp instruction jumping when op holds, or -1 */
+    private static int comparison(String op) {
+        if (op.equals("=")) return Bytecode.IF_ICMPEQ;
+        if (op.equals("!=")) return Bytecode.IF_ICMPNE;
+        if (op.equals("<")) return Bytecode.IF_ICMPLT;
+        if (op.equals(">=")) return Bytecode.IF_ICMPGE;
+        if (op.equals(">")) return Bytecode.IF_ICMPGT;
+        if (op.equals("<=")) return Bytecode.IF_ICMPLE;
+        return -1;
+    }
+
+    private Void box(AST ast) {
+        integer(ast, null);
+        invokestatic("java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+        return null;
+    }
+
+    private Void materialize(AST ast) {
+        Label no = new Label(), end = new Label();
+        cond(ast, false, no, null);
+        code.op2(Bytecode.GETSTATIC, cf.field("java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;"), 1);
+        code.jump(Bytecode.GOTO, end);
+        code.place(no);
+        code.op2(Bytecode.GETSTATIC, cf.field("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;"), 1);
+        code.place(end);
+        return null;
+    }
+
+    private Void throwUnsupported(String op) {
+        code.ldc(cf.string(op));
+        invokestatic("JamCompiler", "unsupported", "(Ljava/lang/String;)Ljava/lang/Object;");
+        return null;
+    }
+
+    private Void constant(Object o) {
+        Integer i = constantIndex.get(o);
+        if (i == null) {
+            i = constants.size();
+            constants.add(o);
+            constantIndex.put(o, i);
+        }
+        code.op2(Bytecode.GETSTATIC, cf.field(SELF, "K", FRAME), 1);
+        code.iconst(i, cf);
+        code.op(Bytecode.AALOAD, -1);
+        return null;
+    }
+
+    private Scope scope(int depth) { return scopes.get(scopes.size() - 1 - depth); }
+
+    /** Generates code pushing the frame depth links up from the current one */
+    private void loadFrame(int depth) {
+        if (scopes.isEmpty()) {
+            code.op(Bytecode.ACONST_NULL, 1);
+            return;
+        }
+        Scope target = scope(depth);
+        if (target.method == code) {
+            code.aload(target.local);
+            return;
+        }
+        int base = scopes.size() - 1;  // the Map frame in local 0
+        while (scopes.get(base - 1).method == code) base--;
+        code.aload(0);
+        for (int s = base; s > scopes.size() - 1 - depth; s--) {
+            code.iconst(0, cf);
+            code.op(Bytecode.AALOAD, -1);
+            code.op2(Bytecode.CHECKCAST, cf.cls(FRAME), 0);
+        }
+    }
+
+    private void newFrame(int n) {
+        code.iconst(n + 1, cf);
+        code.op2(Bytecode.ANEWARRAY, cf.cls("java/lang/Object"), 0);
+    }
+
+    private void storeArgs(AST[] args) {
+        for (int i = 0; i < args.length; i++) {
+            code.op(Bytecode.DUP, 1);
+            code.iconst(i + 1, cf);
+            args[i].accept(this);
+            code.op(Bytecode.AASTORE, -3);
+        }
+    }
+
+    private void invokestatic(String owner, String name, String desc) {
+        code.op2(Bytecode.INVOKESTATIC, cf.method(owner, name, desc), Bytecode.stackEffect(desc, false));
+    }
+
+    private int newMethod() {
+        methods.add(new Bytecode());
+        return methods.size() - 1;
+    }
+
+    /** Returns the class file holding the generated methods */
+    private byte[] writeClass() {
+        cf.addField(ClassFile.ACC_STATIC, "K", FRAME);
+
+        Bytecode init = new Bytecode();
+        init.newLocal();
+        init.newLocal();
+        init.aload(0);
+        init.op2(Bytecode.INVOKESPECIAL, cf.method("java/lang/Object", "<init>", "()V"), -1);
+        init.aload(1);
+        init.op2(Bytecode.PUTSTATIC, cf.field(SELF, "K", FRAME), -1);
+        init.op(Bytecode.RETURN, 0);
+        cf.addMethod(ClassFile.ACC_PUBLIC, "<init>", "(" + FRAME + ")V", init);
+
+        String dispatchDesc = "(I" + FRAME + ")Ljava/lang/Object;";
+        Bytecode run = new Bytecode();
+        for (int i = 0; i < 3; i++) run.newLocal();
+        run.iload(1);
+        run.aload(2);
+        run.op2(Bytecode.INVOKESTATIC, cf.method(SELF, "dispatch", dispatchDesc), -1);
+        run.op(Bytecode.ARETURN, -1);
+        cf.addMethod(ClassFile.ACC_PUBLIC, "run", dispatchDesc, run);
+
+        Bytecode dispatch = new Bytecode();
+        dispatch.newLocal();
+        dispatch.newLocal();
+        Label[] cases = new Label[methods.size()];
+        for (int k = 0; k < cases.length; k++) cases[k] = new Label();
+        Label none = new Label();
+        dispatch.iload(0);
+        dispatch.tableswitch(none, cases);
+        for (int k = 0; k < cases.length; k++) {
+            dispatch.place(cases[k]);
+            dispatch.aload(1);
+            dispatch.op2(Bytecode.INVOKESTATIC, cf.method(SELF, "m" + k, METHOD), 0);
+            dispatch.op(Bytecode.ARETURN, -1);
+        }
+        dispatch.place(none);
+        dispatch.op(Bytecode.ACONST_NULL, 1);
+        dispatch.op(Bytecode.ARETURN, -1);
+        cf.addMethod(ClassFile.ACC_STATIC, "dispatch", dispatchDesc, dispatch);
+
+        // applies f, checked by JamCompiler.frame, to the arguments in frame
+        Bytecode call = new Bytecode();
+        call.newLocal();
+        call.newLocal();
+        Label prim = new Label();
+        call.aload(0);
+        call.op2(Bytecode.INSTANCEOF, cf.cls(CLOSURE), 0);
+        call.jump(Bytecode.IFEQ, prim);
+        call.aload(0);
+        call.op2(Bytecode.CHECKCAST, cf.cls(CLOSURE), 0);
+        call.op2(Bytecode.GETFIELD, cf.field(CLOSURE, "index", "I"), 0);
+        call.aload(1);
+        call.op2(Bytecode.INVOKESTATIC, cf.method(SELF, "dispatch", dispatchDesc), -1);
+        call.op(Bytecode.ARETURN, -1);
+        call.place(prim);
+        call.aload(0);
+        call.aload(1);
+        call.op2(Bytecode.INVOKESTATIC, cf.method("JamCompiler", "applyPrim", "(Ljava/lang/Object;" + FRAME + ")Ljava/lang/Object;"), -1);
+        call.op(Bytecode.ARETURN, -1);
+        cf.addMethod(ClassFile.ACC_STATIC, "call", "(Ljava/lang/Object;" + FRAME + ")Ljava/lang/Object;", call);
+
+        for (int k = 0; k < methods.size(); k++) cf.addMethod(ClassFile.ACC_STATIC, "m" + k, METHOD, methods.get(k));
+        return cf.toByteArray();
+    }
+
+    /** Lookup.defineHiddenClass, or null before Java 15 */
+    private static final Method defineHidden;
+    private static final Object noOptions;
+
+    static {
+        Method m = null;
+        Object none = null;
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            none = Array.newInstance(option, 0);
+            m = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, none.getClass());
+        } catch (ReflectiveOperationException e) {
+        }
+        defineHidden = m;
+        noOptions = none;
+    }
+
+    /** Loads a generated class */
+    private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        if (defineHidden == null) return new CodeLoader().define(bytes);
+        try {
+            Object lookup = defineHidden.invoke(MethodHandles.lookup(), bytes, true, noOptions);
+            return ((MethodHandles.Lookup) lookup).lookupClass();
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    /** Loader of a single generated class */
+    private static class CodeLoader extends ClassLoader {
+        CodeLoader() { super(JamCompiler.class.getClassLoader()); }
+
+        Class<?> define(byte[] bytes) { return defineClass(SELF, bytes, 0, bytes.length); }
+    }
+}
+
+/** Position in a Bytecode method that jumps refer to */
+class Label {
+    int target = -1;
+    int stack = -1;        // operand stack depth on arrival
+    int[] refs = new int[4];  // pairs of instruction and offset positions
+    int count;
+}
+
+/** Code of one method under construction.  Tracks the operand stack depth
+ *  to find max_stack: each instruction is emitted with its effect on the
+ *  depth, and placing a label restores the depth recorded by jumps to it,
+ *  so code after a goto continues at the depth before it.
+ *  @throws IllegalStateException when the method is too large
+ */
+class Bytecode {
+    static final int ACONST_NULL = 1, ICONST_0 = 3, BIPUSH = 16, SIPUSH = 17, LDC = 18, LDC_W = 19,
+        ILOAD = 21, ALOAD = 25, AALOAD = 50, ASTORE = 58, AASTORE = 83, POP = 87, DUP = 89, SWAP = 95,
+        IADD = 96, ISUB = 100, IMUL = 104, INEG = 116, IFEQ = 153, IFNE = 154,
+        IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161, IF_ICMPGE = 162, IF_ICMPGT = 163, IF_ICMPLE = 164,
+        GOTO = 167, TABLESWITCH = 170, ARETURN = 176, RETURN = 177, GETSTATIC = 178, PUTSTATIC = 179,
+        GETFIELD = 180, INVOKESPECIAL = 183, INVOKESTATIC = 184, NEW = 187, ANEWARRAY = 189,
+        CHECKCAST = 192, INSTANCEOF = 193;
+
+    private byte[] code = new byte[256];
+    private int length;
+    private int stack;
+    private int maxStack;
+    private int maxLocals;
+
+    /** Returns the if_icmp instruction testing the opposite condition */
+    static int negate(int compare) { return IF_ICMPEQ + ((compare - IF_ICMPEQ) ^ 1); }
+
+    /** Returns the stack effect of invoking a method with descriptor desc,
+     *  whose arguments and result are all one word */
+    static int stackEffect(String desc, boolean receiver) {
+        int words = receiver ? 1 : 0;
+        for (int i = 1; desc.charAt(i) != ')'; i++) {
+            char c = desc.charAt(i);
+            while (c == '[') c = desc.charAt(++i);
+            if (c == 'L') i = desc.indexOf(';', i);
+            words++;
+        }
+        return (desc.endsWith(")V") ? 0 : 1) - words;
+    }
+
+    int newLocal() { return maxLocals++; }
+
+    void op(int opcode, int effect) {
+        put(opcode);
+        adjust(effect);
+    }
+
+    void op2(int opcode, int operand, int effect) {
+        put(opcode);
+        put(operand >> 8);
+        put(operand);
+        adjust(effect);
+    }
+
+    void aload(int n) { local(ALOAD, n); }
+    void astore(int n) { local(ASTORE, n); }
+    void iload(int n) { local(ILOAD, n); }
+
+    void iconst(int v, ClassFile cf) {
+        if (v >= -1 && v <= 5) op(ICONST_0 + v, 1);
+        else if (v == (byte) v) {
+            put(BIPUSH);
+            put(v);
+            adjust(1);
+        }
+        else if (v == (short) v) op2(SIPUSH, v, 1);
+        else ldc(cf.integer(v));
+    }
+
+    void ldc(int index) {
+        if (index < 256) {
+            put(LDC);
+            put(index);
+            adjust(1);
+        }
+        else op2(LDC_W, index, 1);
+    }
+
+    void jump(int opcode, Label l) {
+        int effect = opcode == GOTO ? 0 : opcode >= IF_ICMPEQ ? -2 : -1;
+        adjust(effect);
+        l.stack = stack;
+        ref(l, length, length + 1);
+        op2(opcode, 0, 0);
+    }
+
+    void tableswitch(Label dflt, Label[] cases) {
+        adjust(-1);
+        int at = length;
+        put(TABLESWITCH);
+        while (length % 4 != 0) put(0);
+        dflt.stack = stack;
+        ref(dflt, at, -1 - length);
+        put4(0);
+        put4(0);
+        put4(cases.length - 1);
+        for (Label l : cases) {
+            l.stack = stack;
+            ref(l, at, -1 - length);
+            put4(0);
+        }
+    }
+
+    void place(Label l) {
+        l.target = length;
+        if (l.stack >= 0) stack = l.stack;
+        for (int i = 0; i < l.count; i += 2) {
+            int offset = l.target - l.refs[i];
+            int at = l.refs[i + 1];
+            if (at < 0) {
+                at = -1 - at;
+                code[at] = (byte) (offset >> 24);
+                code[at + 1] = (byte) (offset >> 16);
+                code[at + 2] = (byte) (offset >> 8);
+                code[at + 3] = (byte) offset;
+            }
+            else {
+                if (offset != (short) offset) throw new IllegalStateException("jump too long");
+                code[at] = (byte) (offset >> 8);
+                code[at + 1] = (byte) offset;
+            }
+        }
+    }
+
+    /** Writes the Code attribute body */
+    void write(DataOutputStream out) throws IOException {
+        if (length > 65535) throw new IllegalStateException("method too large");
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeShort(0);  // exception table
+        out.writeShort(0);  // attributes
+    }
+
+    int size() { return length; }
+
+    private void local(int opcode, int n) {
+        put(opcode);
+        put(n);
+        if (n > 255) throw new IllegalStateException("too many locals");
+        adjust(opcode == ASTORE ? -1 : 1);
+    }
+
+    private void ref(Label l, int instruction, int offset) {
+        if (l.target >= 0) throw new IllegalStateException("backward jump");
+        if (l.count == l.refs.length) l.refs = Arrays.copyOf(l.refs, 2 * l.count);
+        l.refs[l.count++] = instruction;
+        l.refs[l.count++] = offset;
+    }
+
+    private void adjust(int effect) {
+        stack += effect;
+        if (stack > maxStack) maxStack = stack;
+    }
+
+    private void put(int b) {
+        if (length == code.length) code = Arrays.copyOf(code, 2 * length);
+        code[length++] = (byte) b;
+    }
+
+    private void put4(int v) {
+        put(v >> 24);
+        put(v >> 16);
+        put(v >> 8);
+        put(v);
+    }
+}
+
+/** Writer of a class file, holding what JamCompiler generates.  Classes are
+ *  written in the version 49 format, which the JVM verifies by inferring
+ *  types, so methods need no stack map frames.
+ *  @throws IllegalStateException when the class is too large
+ */
+class ClassFile {
+    static final int ACC_PUBLIC = 0x1, ACC_STATIC = 0x8, ACC_FINAL = 0x10, ACC_SUPER = 0x20;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final HashMap<String,Integer> entries = new HashMap<String,Integer>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream members = new ByteArrayOutputStream();
+    private final DataOutputStream membersOut = new DataOutputStream(members);
+    private int fieldCount;
+    private int methodCount;
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    ClassFile(String name, String superName, String... interfaceNames) {
+        thisClass = cls(name);
+        superClass = cls(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaces.length; i++) interfaces[i] = cls(interfaceNames[i]);
+    }
+
+    int utf8(String s) {
+        Integer i = entries.get("U" + s);
+        if (i != null) return i;
+        try {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add("U" + s);
+    }
+
+    int cls(String name) { return entry(7, "C" + name, utf8(name), -1); }
+    int string(String s) { return entry(8, "S" + s, utf8(s), -1); }
+    int field(String owner, String name, String desc) { return member(9, owner, name, desc); }
+    int method(String owner, String name, String desc) { return member(10, owner, name, desc); }
+
+    int integer(int v) {
+        Integer i = entries.get("I" + v);
+        if (i != null) return i;
+        try {
+            poolOut.writeByte(3);
+            poolOut.writeInt(v);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add("I" + v);
+    }
+
+    void addField(int access, String name, String desc) {
+        try {
+            membersOut.writeShort(access);
+            membersOut.writeShort(utf8(name));
+            membersOut.writeShort(utf8(desc));
+            membersOut.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fieldCount++;
+    }
+
+    void addMethod(int access, String name, String desc, Bytecode code) {
+        try {
+            methodsOut.writeShort(access);
+            methodsOut.writeShort(utf8(name));
+            methodsOut.writeShort(utf8(desc));
+            methodsOut.writeShort(1);
+            methodsOut.writeShort(utf8("Code"));
+            methodsOut.writeInt(code.size() + 12);
+            code.write(methodsOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        if (poolCount > 65535) throw new IllegalStateException("constant pool too large");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(pool.size() + members.size() + methods.size() + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces) out.writeShort(i);
+            out.writeShort(fieldCount);
+            members.writeTo(out);
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int member(int tag, String owner, String name, String desc) {
+        int type = entry(12, "N" + name + " " + desc, utf8(name), utf8(desc));
+        return entry(tag, tag + owner + "." + name + " " + desc, cls(owner), type);
+    }
+
+    private int entry(int tag, String key, int a, int b) {
+        Integer i = entries.get(key);
+        if (i != null) return i;
+        try {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(a);
+            if (b >= 0) poolOut.writeShort(b);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add(key);
+    }
+
+    private int add(String key) {
+        if (poolCount > 65535) throw new IllegalStateException("constant pool too large");
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+}
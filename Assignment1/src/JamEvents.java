@@ -0,0 +1,102 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/** Flight Recorder events of the parsers, used by ParserMetrics only where
+ *  the JVM has Flight Recorder, so that nothing else refers to jdk.jfr.
+ *
+ *    jam.Parse        a parse() or check() call, with its tokens, nodes,
+ *                     deepest nesting, input offset reached and error
+ *    jam.SymbolTable  the size of SymbolTable.GLOBAL, every second
+ *
+ *  Both are enabled by a recording's settings like the JDK's own events,
+ *  for example
+ *
+ *    java -XX:StartFlightRecording=settings=profile,jam.Parse#threshold=10ms ...
+ *
+ *  records the calls taking 10 ms or more.  While no recording enables
+ *  jam.Parse, a call only checks that it is disabled, and while Flight
+ *  Recorder has not been started, not even that.
+ */
+class JamEvents {
+
+    @Name("jam.Parse")
+    @Label("Jam Parse")
+    @Category("Jam")
+    @Description("A call of Parser.parse() or check()")
+    @StackTrace(false)
+    static final class Parse extends Event {
+        @Label("Tokens") long tokens;
+        @Label("AST Nodes") long nodes;
+        @Label("Maximum Depth") int depth;
+        @Label("Input Offset") @DataAmount long offset;
+        @Label("Error") String error;
+    }
+
+    @Name("jam.SymbolTable")
+    @Label("Jam Symbol Table")
+    @Category("Jam")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class Symbols extends Event {
+        @Label("Variables") int variables;
+        @Label("Insertions") long insertions;
+        @Label("Evictions") long evictions;
+    }
+
+    // the type of jam.Parse, once Flight Recorder is running
+    private static volatile EventType parse;
+
+    /** Registers the events as soon as Flight Recorder is started, which
+     *  may be now or later, as by jcmd JFR.start; until then using them
+     *  would start it, which takes a good part of a second */
+    static void register() {
+        if (FlightRecorder.isInitialized()) start();
+        else FlightRecorder.addListener(new FlightRecorderListener() {
+            public void recorderInitialized(FlightRecorder recorder) { start(); }
+        });
+    }
+
+    private static synchronized void start() {
+        if (parse != null) return;
+        parse = EventType.getEventType(Parse.class);
+        FlightRecorder.addPeriodicEvent(Symbols.class, new Runnable() {
+            public void run() {
+                Symbols e = new Symbols();
+                e.variables = SymbolTable.GLOBAL.size();
+                e.insertions = SymbolTable.GLOBAL.misses();
+                e.evictions = SymbolTable.GLOBAL.evictions();
+                e.commit();
+            }
+        });
+    }
+
+    /** Returns a started jam.Parse event, or null if none is being recorded */
+    static Object beginParse() {
+        EventType type = parse;
+        if (type == null || ! type.isEnabled()) return null;
+        Parse e = new Parse();
+        e.begin();
+        return e;
+    }
+
+    static void endParse(Object event, long tokens, long nodes, int depth, long offset, String error) {
+        Parse e = (Parse) event;
+        e.end();
+        if (! e.shouldCommit()) return;  // under the threshold
+        e.tokens = tokens;
+        e.nodes = nodes;
+        e.depth = depth;
+        e.offset = offset;
+        e.error = error;
+        e.commit();
+    }
+}
@@ -2,6 +2,8 @@
  * Created by kerui_000 on 2017/1/20.
  */
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /** Jam general AST type */
@@ -45,9 +47,23 @@ interface Token {
     public TokenType getType();
 }
 
+/** Source of Jam tokens consumed by the Parser */
+interface TokenSource {
+    /** Returns the next token without consuming it, or null at end of input */
+    public Token peek();
+    /** Returns the next token (consuming it), or null at end of input */
+    public Token readToken();
+    /** Describes the source position of the token most recently returned */
+    public String position();
+    /** Returns the line of the token most recently returned, counting from 1 */
+    public int line();
+    /** Returns the column of the token most recently returned, counting from 1 */
+    public int column();
+}
+
 /** Jam Boolean constant class */
 class BoolConstant implements Token, Constant {
-    private boolean value;
+    private final boolean value;
     private BoolConstant(boolean b) { value = b; }
 
     // ** singleton pattern **
@@ -63,12 +79,13 @@ class BoolConstant implements Token, Constant {
 
 /** Jam integer constant class */
 class IntConstant implements Token, Constant {
-    private int value;
+    private final int value;
 
     IntConstant(int i) { value = i; }
     // duplicates can occur!
 
     public int getValue() { return value; }
+    public int hashCode() { return value; }
 
     public <T> T accept(ASTVisitor<T> v) { return v.forIntConstant(this); }
     public String toString() { return String.valueOf(value); }
@@ -86,7 +103,7 @@ class NullConstant implements Token, Constant {
 
 /** Jam primitive function Class */
 class PrimFun implements Token, Term {
-    private String name;
+    private final String name;
 
     PrimFun(String n) { name = n; }
 
@@ -98,7 +115,7 @@ class PrimFun implements Token, Term {
 
 /** Jam variable class */
 class Variable implements Token, Term {
-    private String name;
+    private final String name;
     Variable(String n) { name = n; }
 
     public String getName() { return name; }
@@ -109,9 +126,9 @@ class Variable implements Token, Term {
 
 /** Jam operator class */
 class Op implements Token {
-    private String symbol;
-    private boolean isUnOp;
-    private boolean isBinOp;
+    private final String symbol;
+    private final boolean isUnOp;
+    private final boolean isBinOp;
     Op(String s, boolean iu, boolean ib) {
         symbol = s; isUnOp = iu; isBinOp = ib;
     }
@@ -127,7 +144,7 @@ class Op implements Token {
 }
 
 class KeyWord implements Token {
-    private String name;
+    private final String name;
 
     KeyWord(String n) { name = n; }
     public String getName() { return name; }
@@ -201,106 +218,184 @@ class SemiColon implements Token {
 
 
 // AST class definitions
+// The composite classes cache a structural hash code, computed from those of
+// their parts when they are built, so hashing a tree is O(1).  equals() is
+// identity: for the canonical nodes made by a HashConser, that is structural
+// equality.
+// Nodes are immutable, their fields all final: the arrays passed to the
+// constructors and returned by getVars(), getArgs() and getDefs() must not be
+// modified, so a finished tree can be handed to other threads as it is.
+// toString() of the composite classes is implemented by ASTPrinter, which
+// prints a tree in one pass without recursion; the formats it produces are
+//   UnOpApp   <rator> <arg>
+//   BinOpApp  (<arg1> <rator> <arg2>)
+//   Map       map <var>,...,<var> to <body>
+//   App       <rator>(<arg>, ..., <arg>)   or  (<rator>)(<arg>, ..., <arg>)
+//             when the rator is not a Variable or PrimFun
+//   If        if <test> then <conseq> else <alt>
+//   Let       let <def> ... <def> in <body>
 
 /** Jam unary operator application class */
 class UnOpApp implements AST {
-    private Op rator;
-    private AST arg;
+    private final Op rator;
+    private final AST arg;
+    private final int hash;
 
-    UnOpApp(Op r, AST a) { rator = r; arg = a; }
+    UnOpApp(Op r, AST a) { rator = r; arg = a; hash = 31 * r.hashCode() + a.hashCode(); }
 
     public Op getRator() { return rator; }
     public AST getArg() { return arg; }
+    public int hashCode() { return hash; }
     public <T> T accept(ASTVisitor<T> v) { return v.forUnOpApp(this); }
-    public String toString() { return rator + " " + arg; }
+    public String toString() { return ASTPrinter.toString(this); }
 }
 
 /** Jam binary operator application class */
 class BinOpApp implements AST {
-    private Op rator;
-    private AST arg1, arg2;
+    private final Op rator;
+    private final AST arg1, arg2;
+    private final int hash;
 
-    BinOpApp(Op r, AST a1, AST a2) { rator = r; arg1 = a1; arg2 = a2; }
+    BinOpApp(Op r, AST a1, AST a2) {
+        rator = r; arg1 = a1; arg2 = a2;
+        hash = (31 * r.hashCode() + a1.hashCode()) * 31 + a2.hashCode();
+    }
 
     public Op getRator() { return rator; }
     public AST getArg1() { return arg1; }
     public AST getArg2() { return arg2; }
+    public int hashCode() { return hash; }
     public <T> T accept(ASTVisitor<T> v) { return v.forBinOpApp(this); }
-    public String toString() {
-        return "(" + arg1 + " " + rator + " " + arg2 + ")";
-    }
+    public String toString() { return ASTPrinter.toString(this); }
 }
 
 /** Jam map (closure) class */
 class Map implements AST {
-    private Variable[] vars;
-    private AST body;
+    private final Variable[] vars;
+    private final AST body;
+    private final int hash;
 
-    Map(Variable[] v, AST b) { vars = v; body = b; }
+    Map(Variable[] v, AST b) { vars = v; body = b; hash = 31 * Arrays.hashCode(v) + b.hashCode() + 1; }
+    /** For a LazyMap, whose body is not there yet */
+    Map(Variable[] v, int h) { vars = v; body = null; hash = h; }
     public Variable[] getVars() { return vars; }
     public AST getBody() { return body; }
+    public int hashCode() { return hash; }
     public <T> T accept(ASTVisitor<T> v) { return v.forMap(this); }
-    public String toString() {
-        return "map " + ToString.toString(vars,",") + " to " + body ;
+    public String toString() { return ASTPrinter.toString(this); }
+}
+
+/** Jam map whose body is kept as a span of source text, made by a Parser in
+ *  lazy mode, and parsed into an AST the first time getBody() is called,
+ *  by whichever thread calls it first.  The body is then kept, and the
+ *  source released.  Until then the map holds only the span, the position
+ *  of its start and the input it is in, so a map that is never called
+ *  costs no more than that.  A syntax error in the body is thrown by
+ *  getBody() rather than by the parser.
+ *
+ *  Its hash code is computed from the tokens of the body rather than from
+ *  the tree, which is not there to hash; a HashConser never shares it.
+ */
+class LazyMap extends Map {
+    private volatile AST body;
+    private ByteBuffer input;  // null once body is parsed
+    private final int start, end, line, lineStart;
+    private final ASTFactory factory;
+
+    /** Constructs a map of v whose body is in input from offset start to
+     *  end, where scanning starts on the line with number line that starts
+     *  at offset lineStart; h is the hash of the tokens of the body */
+    LazyMap(Variable[] v, int h, ByteBuffer input, int start, int end, int line, int lineStart, ASTFactory factory) {
+        super(v, 31 * Arrays.hashCode(v) + h + 1);
+        this.input = input;
+        this.start = start;
+        this.end = end;
+        this.line = line;
+        this.lineStart = lineStart;
+        this.factory = factory;
     }
+
+    /** Returns the body, parsing it if this is the first call
+     * @throws ParseException if the body has a syntax error
+     */
+    public AST getBody() {
+        AST b = body;
+        if (b == null) {
+            synchronized (this) {
+                b = body;
+                if (b == null) {
+                    Parser parser = new Parser(new Lexer(input, start, end, line, lineStart));
+                    parser.setFactory(factory);
+                    parser.setLazy(true);  // the maps inside stay lazy
+                    body = b = parser.parse();
+                    input = null;
+                }
+            }
+        }
+        return b;
+    }
+
+    /** Returns whether the body has been parsed */
+    public boolean isParsed() { return body != null; }
 }
 
 /** Jam function (PrimFun or Map) application class */
 class App implements AST {
-    private AST rator;
-    private AST[] args;
+    private final AST rator;
+    private final AST[] args;
+    private final int hash;
 
-    App(AST r, AST[] a) { rator = r; args = a; }
+    App(AST r, AST[] a) { rator = r; args = a; hash = 31 * r.hashCode() + Arrays.hashCode(a) + 2; }
 
     public AST getRator() { return rator; }
     public AST[] getArgs() { return args; }
+    public int hashCode() { return hash; }
 
     public <T> T accept(ASTVisitor<T> v) { return v.forApp(this); }
-    public String toString() {
-        if ((rator instanceof Variable) || (rator instanceof PrimFun))
-            return rator + "(" + ToString.toString(args,", ") + ")";
-        else
-            return "(" +  rator + ")(" + ToString.toString(args,", ") + ")";
-    }
+    public String toString() { return ASTPrinter.toString(this); }
 }
 
 /** Jam if expression class */
 class If implements AST {
-    private AST test, conseq, alt;
-    If(AST t, AST c, AST a) { test = t; conseq = c; alt = a; }
+    private final AST test, conseq, alt;
+    private final int hash;
+    If(AST t, AST c, AST a) {
+        test = t; conseq = c; alt = a;
+        hash = (31 * t.hashCode() + c.hashCode()) * 31 + a.hashCode() + 3;
+    }
 
     public AST getTest() { return test; }
+    public int hashCode() { return hash; }
     public AST getConseq() { return conseq; }
     public AST getAlt() { return alt; }
     public <T> T accept(ASTVisitor<T> v) { return v.forIf(this); }
-    public String toString() {
-        return "if " + test + " then " + conseq + " else " + alt ;
-    }
+    public String toString() { return ASTPrinter.toString(this); }
 }
 
 /** Jam let expression class */
 class Let implements AST {
-    private Def[] defs;
-    private AST body;
-    Let(Def[] d, AST b) { defs = d; body = b; }
+    private final Def[] defs;
+    private final AST body;
+    private final int hash;
+    Let(Def[] d, AST b) { defs = d; body = b; hash = 31 * Arrays.hashCode(d) + b.hashCode() + 4; }
 
     public <T> T accept(ASTVisitor<T> v) { return v.forLet(this); }
     public Def[] getDefs() { return defs; }
     public AST getBody() { return body; }
-    public String toString() {
-        return "let " + ToString.toString(defs," ") + " in " + body;
-    }
+    public int hashCode() { return hash; }
+    public String toString() { return ASTPrinter.toString(this); }
 }
 
 
 /** Jam definition class */
 class Def {
-    private Variable lhs;
-    private AST rhs;
+    private final Variable lhs;
+    private final AST rhs;
 
     Def(Variable l, AST r) { lhs = l; rhs = r; }
     public Variable getLhs() { return lhs; }
     public AST getRhs() { return rhs; }
+    public int hashCode() { return 31 * lhs.hashCode() + rhs.hashCode(); }
 
     public String toString() { return lhs + " := " + rhs + ";"; }
 }
@@ -312,7 +407,7 @@ class ToString {
      *  this method does NOT accept a == null, since null
      *  is NOT an array */
     public static String toString(Object[] a, String s) {
-        StringBuffer result = new StringBuffer();
+        StringBuilder result = new StringBuilder();
         for (int i = 0; i < a.length; i++) {
             if (i > 0) result.append(s);
             Object elt = a[i];
@@ -324,10 +419,34 @@ class ToString {
     }
 }
 
-/** Parsing error class */
+/** Parsing error class.  A ParseException describes an error in the
+ *  program text, so it does not capture a (costly and uninformative) Java
+ *  stack trace.  It records the line and column of the error, when known,
+ *  and adds them to its message only when the message is asked for. */
 class ParseException extends RuntimeException {
-    ParseException(String s) {
-        super(s);
+    private static final long serialVersionUID = 1L;
+    private final int line, column;  // 0 when unknown
+
+    ParseException(String s) { this(s, 0, 0); }
+
+    ParseException(String s, int line, int column) {
+        super(s, null, false, false);
+        this.line = line;
+        this.column = column;
+    }
+
+    /** Returns the line of the error, counting from 1, or 0 if unknown */
+    public int getLine() { return line; }
+
+    /** Returns the column of the error, counting from 1, or 0 if unknown */
+    public int getColumn() { return column; }
+
+    /** Returns the description of the error without its position */
+    public String getDescription() { return super.getMessage(); }
+
+    public String getMessage() {
+        if (line == 0) return super.getMessage();
+        return super.getMessage() + " at line " + line + ", column " + column;
     }
 }
 
@@ -340,71 +459,219 @@ class ParseException extends RuntimeException {
 
  *  The static method peek() in the Lexer class has the same behavior as
  *  readToken() except for the fact that it does not advance the cursor.
+ *
+ *  The lexer scans a char[] window over its input directly.  Integers are
+ *  converted straight to int, words are looked up in place without building
+ *  a String, and operators are recognized by a switch on the current char.
+ *  Clients that want to avoid Token objects altogether can call scan(),
+ *  which returns one of the T_ codes below and leaves the literal value in
+ *  intValue().
+ *
+ *  The remaining tokens can also be read in bulk into a TokenStream by
+ *  tokenize(), which records each token as a kind, an int payload and a
+ *  source span rather than as an object.
+ *
+ *  A Lexer constructed from a file name memory-maps the file and scans its
+ *  bytes in place.  Jam source is pure ASCII, so no decoding is needed; the
+ *  name of an identifier is decoded only when a new Variable is created.
  */
-class Lexer extends StreamTokenizer {
+class Lexer implements TokenSource {
+
+    // codes kept from the StreamTokenizer this lexer used to extend
+
+    public static final int WORD = -3;
+    public static final int NUMBER = -2;
+    public static final int EOF = -1;
+    public static final int EOL = '\n';
+
+    // token codes returned by scan()
+
+    public static final int T_EOF = 0;
+    public static final int T_INT = 1;
+    public static final int T_WORD = 2;
+    public static final int T_LEFT_PAREN = 3;
+    public static final int T_RIGHT_PAREN = 4;
+    public static final int T_LEFT_BRACK = 5;
+    public static final int T_RIGHT_BRACK = 6;
+    public static final int T_COMMA = 7;
+    public static final int T_SEMICOLON = 8;
+    public static final int T_PLUS = 9;
+    public static final int T_MINUS = 10;
+    public static final int T_TIMES = 11;
+    public static final int T_DIVIDE = 12;
+    public static final int T_TILDE = 13;
+    public static final int T_EQUALS = 14;
+    public static final int T_NOT_EQUALS = 15;
+    public static final int T_LESS = 16;
+    public static final int T_GREATER = 17;
+    public static final int T_LESS_EQUALS = 18;
+    public static final int T_GREATER_EQUALS = 19;
+    public static final int T_AND = 20;
+    public static final int T_OR = 21;
+    public static final int T_DEFINE = 22;
+    static final int T_COUNT = 23;
+
+    // character classes of the Jam lexical alphabet
+
+    private static final byte OTHER = 0;
+    private static final byte SPACE = 1;
+    private static final byte ALPHA = 2;
+    private static final byte DIGIT = 3;
+    private static final byte DOT = 4;
+    private static final byte[] charClass = new byte[256];
+    static {
+        for (int c = 0; c <= ' '; c++) charClass[c] = SPACE;
+        for (int c = 'a'; c <= 'z'; c++) charClass[c] = ALPHA;
+        for (int c = 'A'; c <= 'Z'; c++) charClass[c] = ALPHA;
+        for (int c = '0'; c <= '9'; c++) charClass[c] = DIGIT;
+        charClass['_'] = ALPHA;
+        charClass['?'] = ALPHA;
+        charClass['.'] = DOT;
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final long MAP_WINDOW = 1L << 30;
 
-    // short names for StreamTokenizer codes
+    // the process-wide table of reserved words (constants/operators/keywords)
+    public final java.util.Map<String,Token> wordTable = ReservedWords.TABLE;
 
-    public static final int WORD = StreamTokenizer.TT_WORD;
-    public static final int NUMBER = StreamTokenizer.TT_NUMBER;
-    public static final int EOF = StreamTokenizer.TT_EOF;
-    public static final int EOL = StreamTokenizer.TT_EOL;
+    // recently seen variable names, indexed so that they can be found
+    // without a String; reserved words are found by ReservedWords.get()
+    private WordIndex wordIndex = new WordIndex();
 
-    // wordtable for classifying words (identifiers/operators) in token stream
-    public HashMap<String,Token>  wordTable = new HashMap<String,Token>();
+    // number of variable names the wordIndex holds before it is emptied
+    private static final int VARIABLE_CACHE_SIZE = 4096;
 
-    // Lexer peek cannot be implemented using StreamTokenizer pushBack
-    // because some Tokens are composed of two StreamTokenizer tokens
+    // Tokens by symbol id: ids below T_COUNT are the fixed token codes, ids
+    // below ReservedWords.COUNT the reserved words, and the rest are
+    // assigned to cached Variables
+    private Token[] symbols = ReservedWords.symbols(128);
+    private int[] symbolKinds = ReservedWords.kinds(128);  // TokenType ordinal of each symbol
+    private int symbolCount = ReservedWords.COUNT;
 
     Token buffer;  // holds token for peek() operation
 
+    long[] tally;  // counts of the tokens read by TokenType ordinal, while a Parser records metrics
+
+    private Reader reader;         // null once the input is exhausted
+    private char[] chars;          // window over reader input
+    private FileChannel channel;   // open while unmapped file input remains
+    private ByteBuffer bytes;      // window over file input, if mapped
+    private long windowBase;       // input offset of the start of the window
+    private long fileSize;
+    private int pos;               // next unread char in the window
+    private int limit;             // end of valid chars
+    private int tokenStart;        // start of the last scanned token
+    private int wordHash;          // String.hashCode() of the last word
+    private int value;             // value of the last T_INT
+    private int line = 1;          // current line number
+    private long lineStart;        // input offset of the current line
+    private TokenStream lineSink;  // records line starts during tokenize()
+
   /* constructors */
 
     /** Constructs a Lexer for the specified inputStream */
     Lexer(Reader inputStream) {
-        super(new BufferedReader(inputStream));
+        reader = inputStream;
+        chars = new char[BUFFER_SIZE];
         initLexer();
-
     }
 
-    /** Constructs a Lexer for the contents of the specified file */
+    /** Constructs a Lexer for the contents of the specified file, which is
+     *  memory-mapped rather than read */
     Lexer(String fileName) throws IOException {
-        this(new FileReader(fileName));
+        channel = new RandomAccessFile(fileName, "r").getChannel();
+        fileSize = channel.size();
+        map(0);
+        initLexer();
+    }
+
+    /** Constructs a Lexer for the bytes of buf from 0 to its limit, which
+     *  are scanned in place like those of a mapped file */
+    Lexer(ByteBuffer buf) {
+        bytes = buf;
+        fileSize = limit = buf.limit();
+        initLexer();
+    }
+
+    /** Constructs a Lexer for the bytes of buf from offset start to end,
+     *  positioned as if it had scanned buf from 0 and reached start on the
+     *  line with number line, which starts at offset lineStart */
+    Lexer(ByteBuffer buf, int start, int end, int line, int lineStart) {
+        this(buf);
+        limit = end;
+        pos = tokenStart = start;
+        this.line = line;
+        this.lineStart = lineStart;
     }
 
     /** Constructs a Lexer for the default console input stream System.in */
     Lexer() {
-        super(new BufferedReader(new InputStreamReader(System.in)));
-        initLexer();
+        this(new InputStreamReader(System.in));
     }
 
-    /* Initializes lexer tables and the StreamTokenizer that the lexer extends */
-    private void initLexer() {
+  /* reuse */
+
+    // A reset Lexer keeps its buffers and its cache of variable names, so
+    // that one Lexer can scan many inputs without allocating.
+
+    /** Rebinds this lexer to inputStream */
+    public void reset(Reader inputStream) {
+        restart();
+        reader = inputStream;
+        if (chars == null) chars = new char[BUFFER_SIZE];
+    }
+
+    /** Rebinds this lexer to the chars of s, which are copied */
+    public void reset(CharSequence s) {
+        restart();
+        int n = s.length();
+        if (chars == null || chars.length < n) chars = new char[Math.max(n, BUFFER_SIZE)];
+        if (s instanceof String) ((String) s).getChars(0, n, chars, 0);
+        else for (int i = 0; i < n; i++) chars[i] = s.charAt(i);
+        limit = n;
+    }
 
-        // configure StreamTokenizer portion of this
-        resetSyntax();
-        parseNumbers();
-        ordinaryChar('-');
-        commentChar('#');
-        wordChars('0','9');
-        wordChars('a','z');
-        wordChars('A','Z');
-        wordChars('_','_');
-        wordChars('?','?');
-        whitespaceChars(0,' ');
+    /** Rebinds this lexer to the bytes of buf from 0 to its limit */
+    public void reset(ByteBuffer buf) {
+        restart();
+        bytes = buf;
+        fileSize = limit = buf.limit();
+    }
+
+    /** Detaches this lexer from its input and returns it to the start state */
+    private void restart() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the input is abandoned anyway
+            }
+            channel = null;
+        }
+        reader = null;
+        bytes = null;
+        buffer = null;
+        windowBase = fileSize = lineStart = 0;
+        pos = limit = tokenStart = 0;
+        line = 1;
+    }
+
+    /* Initializes lexer tables */
+    private void initLexer() {
 
         // `+' `-' `*' `/' `~' `=' `<' `>' `&' `|' `:' `;' `,' '!'
         // `(' `)' `[' `]' are ordinary characters (self-delimiting)
 
-        initWordTable();
         buffer = null;  // buffer initially empty
     }
 
     /** Reads tokens until next end-of-line */
     public void flush() throws IOException {
-        eolIsSignificant(true);
-        while (nextToken() != EOL) ; // eat tokens until EOL
-        eolIsSignificant(false);
+        for (;;) {
+            if (pos == limit && !skipFill()) return;
+            if (lineEnd(charAt(pos++))) return;
+        }
     }
 
     /** Returns the next token in the input stream without consuming it */
@@ -413,29 +680,16 @@ class Lexer extends StreamTokenizer {
         return buffer;
     }
 
-    /** Reads the next token as defined by StreamTokenizer in the input stream
-     (consuming it).
-     */
-    private int getToken() {
-        // synonymous with nextToken() except for throwing an unchecked
-        // ParseException instead of a checked IOException
-        try {
-            int tokenType = nextToken();
-            return tokenType;
-        } catch(IOException e) {
-            throw new ParseException("IOException " + e + "thrown by nextToken()");
-        }
-    }
-
     /** Reads the next Token in the input stream (consuming it) */
     public Token readToken() {
 
-        // uses getToken() to read next token
+        // uses scan() to read next token
         // constructs Token object representing that token
         // NOTE: token representations for all Token classes except
-        //   IntConstant are unique; a HashMap is used to avoid duplication
-        //   Hence, == can safely be used to compare all Tokens except IntConstants
-        //   for equality
+        //   IntConstant are unique; reserved words come from the wordTable
+        //   and Variables are interned in SymbolTable.GLOBAL, which is
+        //   shared by all lexers.  Hence, == can safely be used to compare
+        //   all Tokens except IntConstants for equality
 
         if (buffer != null) {
             Token token = buffer;
@@ -443,140 +697,384 @@ class Lexer extends StreamTokenizer {
             return token;
         }
 
-        int tokenType = getToken();
-        switch (tokenType) {
-            case NUMBER:
-                int value = (int) nval;
-                if (nval == (double) value) return new IntConstant(value);
-                throw
-                        new ParseException("The number " + nval + " is not a 32 bit integer");
-            case WORD:
-                Token regToken = wordTable.get(sval);
-                if (regToken == null) {
-                    // must be new variable name
-                    Variable newVar = new Variable(sval);
-                    wordTable.put(sval,newVar);
-                    return newVar;
-                }
-                return regToken;
-            case EOF: return null;
-            case '(': return LeftParen.ONLY;
-            case ')': return RightParen.ONLY;
-            case '[': return LeftBrack.ONLY;
-            case ']': return RightBrack.ONLY;
-            // case '{': return LeftBrace.ONLY;
-            // case '}': return RightBrace.ONLY;
-            case ',': return Comma.ONLY;
-            case ';': return SemiColon.ONLY;
-
-            case '+': return wordTable.get("+");
-            case '-': return wordTable.get("-");
-            case '*': return wordTable.get("*");
-            case '/': return wordTable.get("/");
-            case '~': return wordTable.get("~");
-            case '=': return wordTable.get("=");
+        int code = scan();
+        if (tally != null) return tallied(code);
+        switch (code) {
+            case T_EOF: return null;
+            case T_INT: return new IntConstant(value);
+            case T_WORD: return wordToken();
+            default: return symbols[code];
+        }
+    }
+
+    /** Returns the Token for code, as readToken() does, counting it in tally */
+    private Token tallied(int code) {
+        if (code == T_EOF) return null;
+        if (code == T_INT) {
+            tally[TokenType.INT.ordinal()]++;
+            return new IntConstant(value);
+        }
+        int id = code == T_WORD ? wordSymbol() : code;
+        tally[symbolKinds[id]]++;
+        return symbols[id];
+    }
+
+    /** Scans the next token in the input stream (consuming it) and returns
+     *  its T_ code without constructing a Token.  The value of a T_INT is
+     *  left in intValue(); the Token for a T_WORD is given by wordToken()
+     *  and the Token for any other code by token(code).  Must not be called
+     *  while a token is buffered by peek().
+     */
+    public int scan() {
+        if (buffer != null) throw new IllegalStateException("scan() called after peek()");
+
+        // skip white space and comments
+        char c;
+        for (;;) {
+            if (pos == limit && !skipFill()) return T_EOF;
+            c = charAt(pos);
+            if (c <= ' ') {
+                pos++;
+                lineEnd(c);
+            }
+            else if (c == '#') skipComment();
+            else break;
+        }
+
+        tokenStart = pos++;
+        switch (c) {
+            case '(': return T_LEFT_PAREN;
+            case ')': return T_RIGHT_PAREN;
+            case '[': return T_LEFT_BRACK;
+            case ']': return T_RIGHT_BRACK;
+            // case '{': return T_LEFT_BRACE;
+            // case '}': return T_RIGHT_BRACE;
+            case ',': return T_COMMA;
+            case ';': return T_SEMICOLON;
+
+            case '+': return T_PLUS;
+            case '-': return T_MINUS;
+            case '*': return T_TIMES;
+            case '/': return T_DIVIDE;
+            case '~': return T_TILDE;
+            case '=': return T_EQUALS;
+            case '&': return T_AND;
+            case '|': return T_OR;
             case '<':
-                tokenType = getToken();
-                if (tokenType == '=') return wordTable.get("<=");
-                // if (tokenType == '-') return wordTable.get("<-");
-                pushBack();
-                return wordTable.get("<");
+                if (skipIf('=')) return T_LESS_EQUALS;
+                // if (skipIf('-')) return T_ASSIGN;
+                return T_LESS;
             case '>':
-                tokenType = getToken();
-                if (tokenType == '=') return wordTable.get(">=");
-                pushBack();
-                return wordTable.get(">");
+                if (skipIf('=')) return T_GREATER_EQUALS;
+                return T_GREATER;
             case '!':
-                tokenType = getToken();
-                if (tokenType == '=') return wordTable.get("!=");
-                else throw new ParseException("!" + ((char) tokenType) + " is not a legal token");
-
-        /*
-         * // this alternate else clause will be added in later assignments
-         * pushBack();
-         * return wordTable.get("!");
-         */
-            case '&': return wordTable.get("&");
-            case '|': return wordTable.get("|");
-            case ':': {
-                tokenType = getToken();
-                if (tokenType == '=') return wordTable.get(":=");
-                pushBack();
-                throw new ParseException("`:' is not a legalken");
-            }
+                if (skipIf('=')) return T_NOT_EQUALS;
+                throw error("!" + (pos < limit ? String.valueOf(charAt(pos)) : "") + " is not a legal token");
+            case ':':
+                if (skipIf('=')) return T_DEFINE;
+                throw error("`:' is not a legal token");
             default:
-                throw new
-                        ParseException("`" + ((char) tokenType) + "' is not a legal token");
+                int cls = c < 256 ? charClass[c] : ALPHA;
+                if (cls == ALPHA) return scanWord(c);
+                if (cls == DIGIT || cls == DOT) return scanNumber();
+                throw error("`" + c + "' is not a legal token");
         }
     }
 
-    /** Initializes the table of Strings used to recognize Tokens */
-    private void initWordTable() {
-        // initialize wordTable
+    /** Returns the value of the T_INT most recently returned by scan() */
+    public int intValue() { return value; }
 
-        // constants
-        // <null>  ::= null
-        // <bool>  ::= true | false
+    /** Returns the Token for the T_WORD most recently returned by scan(),
+     *  entering a new Variable in the word table if the word is new.
+     */
+    public Token wordToken() {
+        int id = wordSymbol();  // may grow symbols
+        return symbols[id];
+    }
 
-        wordTable.put("null",  NullConstant.ONLY);
-        wordTable.put("true",  BoolConstant.TRUE);
-        wordTable.put("false", BoolConstant.FALSE);
+    /** Returns the symbol id of the T_WORD most recently returned by scan(),
+     *  interning the Variable it names if this lexer has not seen it lately.
+     */
+    public int wordSymbol() {
+        int len = pos - tokenStart;
+        int id = bytes == null ? ReservedWords.get(chars, tokenStart, len, wordHash)
+                               : ReservedWords.get(bytes, tokenStart, len, wordHash);
+        if (id >= 0) return id;
+        id = bytes == null ? wordIndex.get(chars, tokenStart, len, wordHash)
+                           : wordIndex.get(bytes, tokenStart, len, wordHash);
+        if (id < 0) {
+            // must be variable name; ids stay valid while tokenizing
+            if (lineSink == null) forgetVariablesIfFull();
+            String name = text(tokenStart, pos);
+            id = addWord(name, SymbolTable.GLOBAL.intern(name));
+        }
+        return id;
+    }
 
-        //  Install symbols constructed from self-delimiting characters
+    /** Empties the cache of variable names, keeping the reserved words, once
+     *  it holds VARIABLE_CACHE_SIZE names.  The symbols are replaced, not
+     *  cleared, since a TokenStream filled by tokenize() shares them. */
+    private void forgetVariablesIfFull() {
+        if (symbolCount - ReservedWords.COUNT < VARIABLE_CACHE_SIZE) return;
+        symbols = ReservedWords.symbols(128);
+        symbolKinds = ReservedWords.kinds(128);
+        symbolCount = ReservedWords.COUNT;
+        wordIndex = new WordIndex();
+    }
 
-        // operators
-        // <unop>  ::= <sign> | ~   | !
-        // <binop> ::= <sign> | "*" | / | = | != | < | > | <= | >= | & | "|" |
-        //             <-
-        // <sign>  ::= "+" | -
+    /** Returns the number of variable names cached */
+    int variableCount() { return symbolCount - ReservedWords.COUNT; }
 
-        //  Note: there is no class distinction between <unop> and <binop> at
-        //  lexical level because of ambiguity; <sign> belongs to both
+    /** Returns the unique Token with the given symbol id; the id of a T_ code
+     *  other than T_EOF, T_INT and T_WORD is the code itself */
+    public Token token(int id) { return symbols[id]; }
 
-        wordTable.put("+",   new Op("+",true,true));
-        wordTable.put("-",   new Op("-",true,true));
-        wordTable.put("~",   new Op("~",true,false));
-        wordTable.put("!",   new Op("!",true,false));
-        // wordTable.put("ref", new Op("ref",true,false));
-
-        wordTable.put("*",  new Op("*"));
-        wordTable.put("/",  new Op("/"));
-        wordTable.put("=",  new Op("="));
-        wordTable.put("!=", new Op("!="));
-        wordTable.put("<",  new Op("<"));
-        wordTable.put(">",  new Op(">"));
-        wordTable.put("<=", new Op("<="));
-        wordTable.put(">=", new Op(">="));
-        wordTable.put("&",  new Op("&"));
-        wordTable.put("|",  new Op("|"));
-        wordTable.put("<-", new Op("<-"));
-
-
-        // Install primitive functions
-        // <prim>  ::= number? | function? | list? | null?
-        //           | cons? | cons | first | rest | arity
+    /** Returns the number of symbol ids reserved for fixed tokens and reserved
+     *  words; every id from this number on is a Variable */
+    public int reservedCount() { return ReservedWords.COUNT; }
 
-        wordTable.put("number?",   new PrimFun("number?"));
-        wordTable.put("function?", new PrimFun("function?"));
-        // wordTable.put("ref?",      new PrimFun("ref?"));
-        wordTable.put("list?",     new PrimFun("list?"));
-        wordTable.put("null?",     new PrimFun("null?"));
-        wordTable.put("cons?",     new PrimFun("cons?"));
-        wordTable.put("arity",     new PrimFun("arity"));
-        wordTable.put("cons",      new PrimFun("cons"));
-        wordTable.put("first",     new PrimFun("first"));
-        wordTable.put("rest",      new PrimFun("rest"));
+    /** Returns the input offset of the token most recently scanned */
+    public long startOffset() { return windowBase + tokenStart; }
 
-        // keywords: if then else let in map to :=
-        wordTable.put("if",   new KeyWord("if"));
-        wordTable.put("then", new KeyWord("then"));
-        wordTable.put("else", new KeyWord("else"));
-        wordTable.put("let",  new KeyWord("let"));
-        wordTable.put("in",   new KeyWord("in"));
-        wordTable.put("map",  new KeyWord("map"));
-        wordTable.put("to",   new KeyWord("to"));
-        wordTable.put(":=",   new KeyWord(":="));
+    /** Returns the input offset just past the token most recently scanned */
+    public long endOffset() { return windowBase + pos; }
+
+    /** Returns the input, if it is all held in one buffer rather than read
+     *  or mapped a window at a time, or null */
+    ByteBuffer input() { return bytes != null && channel == null && windowBase == 0 ? bytes : null; }
+
+    /** Returns the input offset scanning goes on from; a token buffered by
+     *  peek() has been scanned already */
+    long offset() { return windowBase + pos; }
+
+    /** Returns the input offset of the start of the current line */
+    long lineStart() { return lineStart; }
 
+    /** Returns the line of the token most recently scanned */
+    public int line() { return line; }
+
+    /** Returns the column of the token most recently scanned */
+    public int column() { return (int) (startOffset() - lineStart) + 1; }
+
+    public String position() { return "line " + line + ", column " + column(); }
+
+    /** Returns a ParseException at the token being scanned, which has been
+     *  skipped, so scanning can go on after the error */
+    private ParseException error(String message) {
+        ParserMetrics.error("lexical");
+        return new ParseException(message, line, column());
+    }
+
+    /** Reads all remaining tokens into out, replacing its contents.  Symbol
+     *  ids in out refer to the words of this Lexer.
+     */
+    public void tokenize(TokenStream out) { tokenize(out, false); }
+
+    /** Reads all remaining tokens into out, as tokenize(out) does; if
+     *  recover is true, a lexical error is recorded in out in place of the
+     *  bad token, rather than thrown, and scanning goes on after it.
+     */
+    public void tokenize(TokenStream out, boolean recover) {
+        forgetVariablesIfFull();  // a reused lexer's cache is bounded between inputs
+        out.clear();
+        out.addLine(lineStart);
+        lineSink = out;
+        try {
+            for (int code = scan(recover, out); code != T_EOF; code = scan(recover, out)) {
+                int id;
+                switch (code) {
+                    case T_INT:
+                        out.add(TokenType.INT.ordinal(), value, startOffset(), endOffset());
+                        continue;
+                    case T_WORD: id = wordSymbol(); break;
+                    default: id = code;
+                }
+                out.add(symbolKinds[id], id, startOffset(), endOffset());
+            }
+        } finally {
+            lineSink = null;
+        }
+        out.setSymbols(symbols, ReservedWords.COUNT);
+    }
+
+    /** Scans the next token, recording lexical errors in out if recover */
+    private int scan(boolean recover, TokenStream out) {
+        for (;;) {
+            try {
+                return scan();
+            } catch (ParseException e) {
+                if (! recover) throw e;
+                out.addError(e);
+            }
+        }
+    }
+
+    /** Scans the rest of a word whose first character is c */
+    private int scanWord(char c) {
+        int h = c;
+        for (;;) {
+            if (pos == limit && !fill()) break;
+            c = charAt(pos);
+            if (c < 256 && charClass[c] < ALPHA) break;
+            h = 31 * h + c;
+            pos++;
+        }
+        wordHash = h;
+        return T_WORD;
+    }
+
+    /** Scans a number starting at tokenStart, converting it directly to int.
+     *  As with the StreamTokenizer this lexer replaces, a number may contain
+     *  one decimal point; it is legal only if its fractional part is zero.
+     */
+    private int scanNumber() {
+        pos = tokenStart;
+        int v = 0;
+        boolean inRange = true;
+        boolean seenDot = false;
+        boolean integral = true;
+        for (;;) {
+            if (pos == limit && !fill()) break;
+            char c = charAt(pos);
+            if (c == '.' && !seenDot) seenDot = true;
+            else if (c >= '0' && c <= '9') {
+                int d = c - '0';
+                if (seenDot) integral &= d == 0;
+                else if (v > (Integer.MAX_VALUE - d) / 10) inRange = false;
+                else v = v * 10 + d;
+            }
+            else break;
+            pos++;
+        }
+        if (! (inRange && integral)) throw error("The number " + text(tokenStart, pos) + " is not a 32 bit integer");
+        value = v;
+        return T_INT;
+    }
+
+    /** Skips a comment running from `#' to the end of the line */
+    private void skipComment() {
+        for (;;) {
+            if (pos == limit && !skipFill()) return;
+            if (lineEnd(charAt(pos++))) return;
+        }
+    }
+
+    /** Records a new line if c, the char just consumed, ends one.  As in
+     *  StreamTokenizer, a line ends at `\n', `\r' or `\r\n', the last
+     *  counting as one line end and consumed whole.
+     */
+    private boolean lineEnd(char c) {
+        if (c == '\r') {
+            if ((pos < limit || skipFill()) && charAt(pos) == EOL) pos++;
+        }
+        else if (c != EOL) return false;
+        newLine();
+        return true;
+    }
+
+    /** Records that a line starts at the current position */
+    private void newLine() {
+        line++;
+        lineStart = windowBase + pos;
+        if (lineSink != null) lineSink.addLine(lineStart);
+    }
+
+    /** Consumes the next char if it is c */
+    private boolean skipIf(char c) {
+        if (pos == limit && !fill()) return false;
+        if (charAt(pos) != c) return false;
+        pos++;
+        return true;
+    }
+
+    /** Returns the char at index i of the current window */
+    private char charAt(int i) {
+        return bytes == null ? chars[i] : (char) (bytes.get(i) & 0xFF);
+    }
+
+    /** Returns the window contents from start to end as a String */
+    private String text(int start, int end) {
+        if (bytes == null) return new String(chars, start, end - start);
+        char[] c = new char[end - start];
+        for (int i = 0; i < c.length; i++) c[i] = (char) (bytes.get(start + i) & 0xFF);
+        return new String(c);
+    }
+
+    /** Maps the window of the input file starting at offset base */
+    private void map(long base) throws IOException {
+        long size = Math.min(Math.max(MAP_WINDOW, 2L * (pos - tokenStart)), fileSize - base);
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, base, size);
+        windowBase = base;
+        limit = (int) size;
+        if (base + size == fileSize) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /** Reads more input into the window, preserving the chars of the token
+     *  being scanned; returns false at end of input.
+     */
+    private boolean fill() {
+        if (bytes != null) return remap();
+        if (reader == null) return false;
+        int keep = pos - tokenStart;
+        if (keep == chars.length) chars = Arrays.copyOf(chars, 2 * chars.length);
+        System.arraycopy(chars, tokenStart, chars, 0, keep);
+        windowBase += tokenStart;
+        pos = keep;
+        limit = keep;
+        tokenStart = 0;
+        try {
+            int n = reader.read(chars, limit, chars.length - limit);
+            if (n <= 0) {
+                reader.close();
+                reader = null;
+                return false;
+            }
+            limit += n;
+            return true;
+        } catch(IOException e) {
+            throw new ParseException("IOException " + e + "thrown by nextToken()");
+        }
+    }
+
+    /** Refills the window while no token is being scanned */
+    private boolean skipFill() {
+        tokenStart = pos;
+        return fill();
+    }
+
+    /** Slides the mapped window forward to start at the token being scanned;
+     *  returns false at end of file.
+     */
+    private boolean remap() {
+        if (channel == null) return false;
+        try {
+            map(windowBase + tokenStart);
+        } catch(IOException e) {
+            throw new ParseException("IOException " + e + "thrown by nextToken()");
+        }
+        pos -= tokenStart;
+        tokenStart = 0;
+        return pos < limit;
+    }
+
+    /** Enters word name with Token t under a new symbol id */
+    private int addWord(String name, Token t) {
+        if (symbolCount == symbols.length) {
+            symbols = Arrays.copyOf(symbols, 2 * symbolCount);
+            symbolKinds = Arrays.copyOf(symbolKinds, 2 * symbolCount);
+        }
+        int id = symbolCount++;
+        setSymbol(id, t);
+        wordIndex.put(name, id);
+        return id;
+    }
+
+    private void setSymbol(int id, Token t) {
+        symbols[id] = t;
+        symbolKinds[id] = t.getType().ordinal();
     }
 
     /** Provides a command line interface to the lexer */
@@ -593,4 +1091,259 @@ class Lexer extends StreamTokenizer {
             System.out.println("Token " + t + " in " + t.getClass());
         } while (true);
     }
-}
\ No newline at end of file
+}
+
+/** The reserved words of Jam (constants, operators, primitive functions
+ *  and keywords), built once and shared by every Lexer and parser.  Each
+ *  reserved word has a fixed symbol id from Lexer.T_COUNT on, so Lexers
+ *  start from a copy of one symbol array instead of building a table.
+ *
+ *  Words are recognized by a perfect hash of their String.hashCode(): the
+ *  multiplier is chosen when the class is initialized so that no two
+ *  reserved words share a slot, and a lookup probes a single slot.
+ */
+final class ReservedWords {
+
+    static final KeyWord IF = new KeyWord("if");
+    static final KeyWord THEN = new KeyWord("then");
+    static final KeyWord ELSE = new KeyWord("else");
+    static final KeyWord LET = new KeyWord("let");
+    static final KeyWord IN = new KeyWord("in");
+    static final KeyWord MAP = new KeyWord("map");
+    static final KeyWord TO = new KeyWord("to");
+    static final KeyWord DEFINE = new KeyWord(":=");
+
+    /** the reserved words and their Tokens, in symbol id order */
+    static final java.util.Map<String,Token> TABLE;
+
+    /** the number of symbol ids taken by fixed tokens and reserved words */
+    static final int COUNT;
+
+    private static final Token[] SYMBOLS;
+    private static final int[] KINDS;
+
+    private static final int SHIFT = 24;  // 256 slots
+    private static final int MULTIPLIER;
+    private static final String[] keys = new String[1 << (32 - SHIFT)];
+    private static final int[] hashes = new int[keys.length];
+    private static final int[] ids = new int[keys.length];
+
+    static {
+        LinkedHashMap<String,Token> t = new LinkedHashMap<String,Token>();
+
+        // constants
+        // <null>  ::= null
+        // <bool>  ::= true | false
+
+        t.put("null",  NullConstant.ONLY);
+        t.put("true",  BoolConstant.TRUE);
+        t.put("false", BoolConstant.FALSE);
+
+        // operators
+        // <unop>  ::= <sign> | ~   | !
+        // <binop> ::= <sign> | "*" | / | = | != | < | > | <= | >= | & | "|" |
+        //             <-
+        // <sign>  ::= "+" | -
+
+        //  Note: there is no class distinction between <unop> and <binop> at
+        //  lexical level because of ambiguity; <sign> belongs to both
+
+        t.put("+",   new Op("+",true,true));
+        t.put("-",   new Op("-",true,true));
+        t.put("~",   new Op("~",true,false));
+        t.put("!",   new Op("!",true,false));
+        // t.put("ref", new Op("ref",true,false));
+
+        t.put("*",  new Op("*"));
+        t.put("/",  new Op("/"));
+        t.put("=",  new Op("="));
+        t.put("!=", new Op("!="));
+        t.put("<",  new Op("<"));
+        t.put(">",  new Op(">"));
+        t.put("<=", new Op("<="));
+        t.put(">=", new Op(">="));
+        t.put("&",  new Op("&"));
+        t.put("|",  new Op("|"));
+        t.put("<-", new Op("<-"));
+
+        // primitive functions
+        // <prim>  ::= number? | function? | list? | null?
+        //           | cons? | cons | first | rest | arity
+
+        t.put("number?",   new PrimFun("number?"));
+        t.put("function?", new PrimFun("function?"));
+        // t.put("ref?",      new PrimFun("ref?"));
+        t.put("list?",     new PrimFun("list?"));
+        t.put("null?",     new PrimFun("null?"));
+        t.put("cons?",     new PrimFun("cons?"));
+        t.put("arity",     new PrimFun("arity"));
+        t.put("cons",      new PrimFun("cons"));
+        t.put("first",     new PrimFun("first"));
+        t.put("rest",      new PrimFun("rest"));
+
+        // keywords: if then else let in map to :=
+        for (KeyWord k : new KeyWord[] { IF, THEN, ELSE, LET, IN, MAP, TO, DEFINE })
+            t.put(k.getName(), k);
+
+        TABLE = Collections.unmodifiableMap(t);
+        COUNT = Lexer.T_COUNT + t.size();
+        SYMBOLS = new Token[COUNT];
+        KINDS = new int[COUNT];
+        int id = Lexer.T_COUNT;
+        for (Token token : t.values()) setSymbol(id++, token);
+
+        // Tokens for the self-delimiting symbols recognized by Lexer.scan()
+        setSymbol(Lexer.T_LEFT_PAREN, LeftParen.ONLY);
+        setSymbol(Lexer.T_RIGHT_PAREN, RightParen.ONLY);
+        setSymbol(Lexer.T_LEFT_BRACK, LeftBrack.ONLY);
+        setSymbol(Lexer.T_RIGHT_BRACK, RightBrack.ONLY);
+        setSymbol(Lexer.T_COMMA, Comma.ONLY);
+        setSymbol(Lexer.T_SEMICOLON, SemiColon.ONLY);
+        setSymbol(Lexer.T_PLUS, t.get("+"));
+        setSymbol(Lexer.T_MINUS, t.get("-"));
+        setSymbol(Lexer.T_TIMES, t.get("*"));
+        setSymbol(Lexer.T_DIVIDE, t.get("/"));
+        setSymbol(Lexer.T_TILDE, t.get("~"));
+        setSymbol(Lexer.T_EQUALS, t.get("="));
+        setSymbol(Lexer.T_NOT_EQUALS, t.get("!="));
+        setSymbol(Lexer.T_LESS, t.get("<"));
+        setSymbol(Lexer.T_GREATER, t.get(">"));
+        setSymbol(Lexer.T_LESS_EQUALS, t.get("<="));
+        setSymbol(Lexer.T_GREATER_EQUALS, t.get(">="));
+        setSymbol(Lexer.T_AND, t.get("&"));
+        setSymbol(Lexer.T_OR, t.get("|"));
+        setSymbol(Lexer.T_DEFINE, DEFINE);
+
+        MULTIPLIER = perfectMultiplier(t.keySet());
+        id = Lexer.T_COUNT;
+        for (String k : t.keySet()) {
+            int i = (k.hashCode() * MULTIPLIER) >>> SHIFT;
+            keys[i] = k;
+            hashes[i] = k.hashCode();
+            ids[i] = id++;
+        }
+    }
+
+    private ReservedWords() { }
+
+    private static void setSymbol(int id, Token t) {
+        SYMBOLS[id] = t;
+        KINDS[id] = t.getType().ordinal();
+    }
+
+    /** Returns an odd multiplier that maps the hashes of words to distinct slots */
+    private static int perfectMultiplier(Collection<String> words) {
+        boolean[] used = new boolean[keys.length];
+        for (int m = 0x9E3779B9; ; m += 0x6A09E666) {  // even steps keep m odd
+            Arrays.fill(used, false);
+            boolean ok = true;
+            for (String w : words) {
+                int i = (w.hashCode() * m) >>> SHIFT;
+                if (used[i]) {
+                    ok = false;
+                    break;
+                }
+                used[i] = true;
+            }
+            if (ok) return m;
+        }
+    }
+
+    /** Returns a copy of the Tokens by symbol id, with room for capacity ids */
+    static Token[] symbols(int capacity) { return Arrays.copyOf(SYMBOLS, Math.max(capacity, COUNT)); }
+
+    /** Returns a copy of the TokenType ordinals by symbol id, with room for capacity ids */
+    static int[] kinds(int capacity) { return Arrays.copyOf(KINDS, Math.max(capacity, COUNT)); }
+
+    /** Returns the Token with symbol id id, which must be below COUNT */
+    static Token symbol(int id) { return SYMBOLS[id]; }
+
+    /** Returns the id of the reserved word chars[off..off+len) with hash h, or -1 */
+    static int get(char[] chars, int off, int len, int h) {
+        int i = (h * MULTIPLIER) >>> SHIFT;
+        String k = keys[i];
+        return k != null && hashes[i] == h && k.length() == len && WordIndex.matches(k, chars, off) ? ids[i] : -1;
+    }
+
+    /** Returns the id of the reserved word in the ASCII bytes[off..off+len) with hash h, or -1 */
+    static int get(ByteBuffer bytes, int off, int len, int h) {
+        int i = (h * MULTIPLIER) >>> SHIFT;
+        String k = keys[i];
+        return k != null && hashes[i] == h && k.length() == len && WordIndex.matches(k, bytes, off) ? ids[i] : -1;
+    }
+}
+
+/** Open-addressed table from the variable names cached by a Lexer to their symbol
+ *  ids.  Words are found from a range of chars and its String.hashCode(),
+ *  so that looking up a word that is already known never builds a String.
+ */
+class WordIndex {
+    private String[] keys = new String[128];
+    private int[] values = new int[128];
+    private int[] hashes = new int[128];
+    private int size;
+
+    /** Returns the id of chars[off..off+len) with hash h, or -1 */
+    int get(char[] chars, int off, int len, int h) {
+        int mask = keys.length - 1;
+        for (int i = slot(h, mask); ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if (k == null) return -1;
+            if (hashes[i] == h && k.length() == len && matches(k, chars, off)) return values[i];
+        }
+    }
+
+    /** Enters word k, replacing any previous id for it */
+    void put(String k, int t) {
+        if (2 * (size + 1) > keys.length) grow();
+        int h = k.hashCode();
+        int mask = keys.length - 1;
+        int i = slot(h, mask);
+        while (keys[i] != null) {
+            if (hashes[i] == h && keys[i].equals(k)) { values[i] = t; return; }
+            i = (i + 1) & mask;
+        }
+        keys[i] = k; values[i] = t; hashes[i] = h;
+        size++;
+    }
+
+    /** Returns the id of the ASCII bytes[off..off+len) with hash h, or -1 */
+    int get(ByteBuffer bytes, int off, int len, int h) {
+        int mask = keys.length - 1;
+        for (int i = slot(h, mask); ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if (k == null) return -1;
+            if (hashes[i] == h && k.length() == len && matches(k, bytes, off)) return values[i];
+        }
+    }
+
+    /** Returns the first slot probed for hash h; the bits are mixed, as
+     *  names that differ only in their last char have nearby hashes */
+    private static int slot(int h, int mask) {
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    static boolean matches(String k, ByteBuffer bytes, int off) {
+        for (int j = 0; j < k.length(); j++)
+            if (k.charAt(j) != (bytes.get(off + j) & 0xFF)) return false;
+        return true;
+    }
+
+    static boolean matches(String k, char[] chars, int off) {
+        for (int j = 0; j < k.length(); j++)
+            if (k.charAt(j) != chars[off + j]) return false;
+        return true;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[2 * oldKeys.length];
+        values = new int[keys.length];
+        hashes = new int[keys.length];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != null) put(oldKeys[i], oldValues[i]);
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+/** TokenSource that lexes a large input in chunks on a fork-join pool and
+ *  returns their tokens in order, exactly as a Lexer reading the whole
+ *  input would, lexical errors and positions included.
+ *
+ *  No Jam token spans white space, so the input is split just after a
+ *  white space char near every chunkSize bytes, preferring a line end but
+ *  never splitting a `\r\n', and each chunk is tokenized into a TokenStream
+ *  by a Lexer of its own.  A
+ *  chunk therefore never starts inside a token, not even a two char
+ *  operator such as <=, but it may start inside a comment: a comment runs
+ *  from `#' to the end of the line, and whether an earlier `#' on the same
+ *  line begins one depends on the chunks before.  Each chunk is lexed as
+ *  if it starts outside a comment.  At the first newline of a chunk the
+ *  lexer is back in step whatever the case, so when the chunks are joined
+ *  in order, one found to start inside a comment just drops the tokens
+ *  and errors of its first line.  Lines and columns are shifted by the
+ *  lines and columns of the chunks before.
+ *
+ *  Chunks are lexed at most a few per worker ahead of the reader, so the
+ *  memory held does not grow with the input.
+ */
+class ParallelLexer implements TokenSource, Closeable {
+
+    static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+
+    /** Chunks lexed ahead of the reader, per worker of the pool */
+    private static final int AHEAD = 4;
+
+    /** Distance past the split point searched for a line end */
+    private static final int NEWLINE_REACH = 1 << 12;
+
+    /** The tokens of one chunk, with what is needed to place them */
+    private static final class Chunk {
+        final TokenStream stream = new TokenStream();
+        int lines;        // lines the chunk starts, plus one, as counted by its lexer
+        int endColumn;    // column of its end, on its last line
+        int mark;         // the last `#' or line end char in it, or 0 if neither
+    }
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private final ByteBuffer buf;       // the input, if in memory
+    private final FileChannel channel;  // or the file holding it
+    private final long size;
+    private long split;                 // start of the next chunk to submit
+    private final ArrayDeque<ForkJoinTask<Chunk>> ahead = new ArrayDeque<ForkJoinTask<Chunk>>();
+
+    // reader state
+    private Chunk chunk;         // being read
+    private int index;           // of the next token of chunk
+    private int errorIndex;      // of the next error of chunk
+    private int lineBase;        // line before the first line of chunk
+    private int columnBase;      // column before the first column of chunk
+    private boolean inComment;   // whether chunk starts inside a comment
+    private Token buffer;        // holds token for peek() operation
+    private int line = 1, column = 1;
+
+    /** Constructs a ParallelLexer for the contents of the file fileName,
+     *  lexed in chunks of about chunkSize bytes on pool */
+    ParallelLexer(String fileName, ForkJoinPool pool, int chunkSize) throws IOException {
+        this(null, new RandomAccessFile(fileName, "r").getChannel(), pool, chunkSize);
+    }
+
+    /** Constructs a ParallelLexer for the contents of the file fileName,
+     *  lexed on the common pool */
+    ParallelLexer(String fileName) throws IOException {
+        this(fileName, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /** Constructs a ParallelLexer for the bytes of buf from 0 to its limit,
+     *  lexed in chunks of about chunkSize bytes on pool */
+    ParallelLexer(ByteBuffer buf, ForkJoinPool pool, int chunkSize) {
+        this(buf, null, pool, chunkSize);
+    }
+
+    private ParallelLexer(ByteBuffer buf, FileChannel channel, ForkJoinPool pool, int chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunk size must be positive");
+        this.buf = buf;
+        this.channel = channel;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        try {
+            size = buf != null ? buf.limit() : channel.size();
+        } catch (IOException e) {
+            throw new ParseException("IOException " + e + " thrown by ParallelLexer");
+        }
+        int n = Math.max(1, AHEAD * pool.getParallelism());
+        for (int i = 0; i < n && split < size; i++) submit();
+        if (ahead.isEmpty()) submit();  // an empty input is one empty chunk
+    }
+
+    public Token peek() {
+        if (buffer == null) buffer = next();
+        return buffer;
+    }
+
+    public Token readToken() {
+        Token token = peek();
+        buffer = null;
+        return token;
+    }
+
+    public int line() { return line; }
+    public int column() { return column; }
+    public String position() { return "line " + line + ", column " + column; }
+
+    /** Closes the input file, if any, and cancels the chunks not yet lexed */
+    public void close() throws IOException {
+        for (ForkJoinTask<Chunk> t : ahead) t.cancel(false);
+        ahead.clear();
+        if (channel != null) channel.close();
+    }
+
+    /** Returns the next token, or null at the end of input
+     * @throws ParseException for a lexical error, which is then skipped
+     */
+    private Token next() {
+        for (;;) {
+            if (chunk == null) {
+                if (ahead.isEmpty()) return null;  // stays at the end
+                start(ahead.poll().join());
+                if (split < size) submit();
+            }
+            TokenStream s = chunk.stream;
+            if (errorIndex < s.errorCount() && s.errorIndex(errorIndex) == index) {
+                ParseException e = s.error(errorIndex++);
+                if (inComment && e.getLine() == 1) continue;
+                place(e.getLine(), e.getColumn());
+                throw new ParseException(e.getDescription(), line, column);
+            }
+            if (index < s.size()) {
+                int i = index++, offset = s.start(i), l = s.line(offset);
+                if (inComment && l == 1) continue;
+                place(l, s.column(offset));
+                return s.token(i);
+            }
+            // the end of the chunk
+            place(chunk.lines, chunk.endColumn);
+            if (ahead.isEmpty()) return null;
+            finish();
+        }
+    }
+
+    /** Makes c the chunk read */
+    private void start(Chunk c) {
+        chunk = c;
+        index = errorIndex = 0;
+    }
+
+    /** Moves the bases past the chunk read */
+    private void finish() {
+        if (chunk.lines > 1) columnBase = chunk.endColumn - 1;
+        else columnBase += chunk.endColumn - 1;
+        lineBase += chunk.lines - 1;
+        if (chunk.mark != 0) inComment = chunk.mark == '#';
+        chunk = null;
+    }
+
+    /** Sets the position to that of chunk line l, column c */
+    private void place(int l, int c) {
+        line = lineBase + l;
+        column = l == 1 ? columnBase + c : c;
+    }
+
+    /** Submits the lexing of the next chunk */
+    private void submit() {
+        final long start = split;
+        final long end = boundary(Math.min(start + chunkSize, size));
+        split = end;
+        ahead.add(pool.submit(new Callable<Chunk>() {
+            public Chunk call() throws IOException { return lex(region(start, end)); }
+        }));
+    }
+
+    /** Returns the bytes of the input from start to end */
+    private ByteBuffer region(long start, long end) throws IOException {
+        if (buf == null) return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        ByteBuffer b = buf.duplicate();
+        b.limit((int) end).position((int) start);
+        return b.slice();
+    }
+
+    /** Tokenizes the chunk held in bytes */
+    private static Chunk lex(ByteBuffer bytes) {
+        Chunk c = new Chunk();
+        Lexer lexer = new Lexer(bytes);
+        lexer.tokenize(c.stream, true);
+        c.lines = lexer.line();
+        c.endColumn = lexer.column();
+        for (int i = bytes.limit() - 1; i >= 0 && c.mark == 0; i--) {
+            byte b = bytes.get(i);
+            if (b == '#' || b == '\n' || b == '\r') c.mark = b;
+        }
+        return c;
+    }
+
+    /** Returns the offset just past the first line end, or failing that the
+     *  first white space char, at or after offset, or the end of input.  A
+     *  split just past the `\r' of a `\r\n' would have both halves count a
+     *  line, so a `\r' is split after only when the next char is known to be
+     *  something else. */
+    private long boundary(long offset) {
+        if (offset >= size) return size;
+        try {
+            ByteBuffer b = region(offset, Math.min(offset + NEWLINE_REACH, size));
+            for (int i = 0; i < b.limit(); i++)
+                if (b.get(i) == '\n' || b.get(i) == '\r' && i + 1 < b.limit() && b.get(i + 1) != '\n')
+                    return offset + i + 1;
+            for (long o = offset; ; o += b.limit()) {
+                if (o > offset) {
+                    if (o >= size) return size;
+                    b = region(o, Math.min(o + NEWLINE_REACH, size));
+                }
+                for (int i = 0; i < b.limit(); i++)
+                    if ((b.get(i) & 0xFF) <= ' ' && b.get(i) != '\r') return o + i + 1;
+            }
+        } catch (IOException e) {
+            throw new ParseException("IOException " + e + " thrown by ParallelLexer");
+        }
+    }
+
+    /** Prints the time taken to lex the file args[0] with a Lexer and with
+     *  ParallelLexers of 1, 2, 4, ... workers, and checks their tokens agree */
+    public static void main(String[] args) throws IOException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            Lexer lexer = new Lexer(args[0]);
+            long tokens = 0;
+            for (;;) {
+                try {
+                    if (lexer.readToken() == null) break;
+                } catch (ParseException e) { }
+                tokens++;
+            }
+            long sequential = System.nanoTime() - start;
+            System.out.println(tokens + " tokens, Lexer " + sequential / 1000000 + " ms");
+            for (int p = 1; p <= processors; p = p < processors && 2 * p > processors ? processors : 2 * p) {
+                ForkJoinPool pool = new ForkJoinPool(p);
+                start = System.nanoTime();
+                ParallelLexer parallel = new ParallelLexer(args[0], pool, DEFAULT_CHUNK_SIZE);
+                long n = 0;
+                try {
+                    for (;;) {
+                        try {
+                            if (parallel.readToken() == null) break;
+                        } catch (ParseException e) { }
+                        n++;
+                    }
+                } finally {
+                    parallel.close();
+                    pool.shutdown();
+                }
+                long time = System.nanoTime() - start;
+                System.out.println("  " + p + " workers " + time / 1000000 + " ms, "
+                                   + String.format("%.2f", (double) sequential / time) + "x"
+                                   + (n == tokens ? "" : ", but " + n + " tokens"));
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/** On-disk cache of parsed programs.  The AST of a program is stored in
+ *  the binary form of BinaryAST, in a file named by the SHA-256 hash of
+ *  the program text and the format version, so a program is parsed once
+ *  however many files hold it and whichever file it is read from.  A
+ *  cached tree is loaded by mapping its file and decoding it in place.
+ *
+ *  Entries are written to a temporary file and renamed into place, so
+ *  readers never see a partial entry and several processes can share a
+ *  directory.  An entry that cannot be read or decoded is reparsed and
+ *  rewritten; failures to write only cost the next reader a parse.
+ */
+class ParseCache {
+
+    /** Entries smaller than this are read rather than mapped */
+    private static final int MIN_MAPPED = 1 << 16;
+
+    private final Path dir;
+    private ASTFactory factory = ASTFactory.PLAIN;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** Constructs a cache keeping its entries in dir, which is created if needed */
+    ParseCache(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+    }
+
+    /** Makes the nodes of the ASTs parsed or loaded from now on with factory */
+    public void setFactory(ASTFactory factory) { this.factory = factory; }
+
+    /** Returns the AST of the program in the file fileName, as Parser does
+     * @throws ParseException if the program has a syntax error
+     */
+    public AST parse(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName));
+        try {
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** Returns the AST of the program in the bytes of source from 0 to its
+     *  limit, as Parser does
+     * @throws ParseException if the program has a syntax error
+     */
+    public AST parse(ByteBuffer source) throws IOException {
+        Path entry = entry(source);
+        AST ast = load(entry);
+        if (ast != null) {
+            hits.increment();
+            return ast;
+        }
+        misses.increment();
+        Parser parser = new Parser(new Lexer(source));
+        parser.setFactory(factory);
+        ast = parser.parse();
+        store(entry, ast);
+        return ast;
+    }
+
+    /** Returns the number of parse() calls answered from the cache */
+    public long hits() { return hits.sum(); }
+
+    /** Returns the number of parse() calls that parsed the program */
+    public long misses() { return misses.sum(); }
+
+    /** Returns the path of the entry for source, whose position is unchanged */
+    private Path entry(ByteBuffer source) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // every JVM provides SHA-256
+        }
+        sha.update((byte) BinaryAST.VERSION);
+        ByteBuffer all = source.duplicate();
+        all.position(0);
+        sha.update(all);
+        StringBuilder name = new StringBuilder(70);
+        for (byte b : sha.digest()) name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return dir.resolve(name.append(".ast").toString());
+    }
+
+    /** Returns the AST stored in entry, or null if there is none or it is damaged */
+    private AST load(Path entry) {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(entry);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            long size = channel.size();
+            ByteBuffer in;
+            if (size >= MIN_MAPPED) in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            else {
+                in = ByteBuffer.allocate((int) size);
+                while (in.hasRemaining() && channel.read(in) >= 0) { }
+                in.flip();
+            }
+            return new BinaryAST.Reader(in, factory).read();
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void store(Path entry, AST ast) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir, "parse", ".tmp");
+            OutputStream out = Files.newOutputStream(tmp);
+            try {
+                new BinaryAST.Writer(out).write(ast).flush();
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -8,59 +8,143 @@ import java.util.*;
 /** Each parser object in this class contains an embedded lexer which contains an embedded input stream.  The
  * class include a parse() method that will translate the program text in the input stream to the corresponding
  * AST assuming that the program text forms a syntactically valid Jam program.
+ *
+ * The check() method instead reports every syntax error in the program in one pass.  After an error it skips
+ * to the next token that can end the phrase being parsed, a ; or in of a definition, the then or else of an
+ * if, or a , or ) of an argument list or parenthesized expression, and goes on parsing from there.
  */
 
 class Parser {
 
-    private Lexer in;
-    private KeyWord ifKey;
-    private KeyWord thenKey;
-    private KeyWord elseKey;
-    private KeyWord letKey;
-    private KeyWord inKey;
-    private KeyWord mapKey;
-    private KeyWord toKey;
-    private KeyWord defKey;
+    private TokenSource in;
+    private ASTFactory factory = ASTFactory.PLAIN;
 
+    // scratch stack collecting the elements of the lists being parsed; the
+    // elements of a nested list are pushed above those of the list around it
+    private Object[] scratch = new Object[32];
+    private int scratchTop;
+
+    // the errors found so far by check(), or null when parsing
+    private List<ParseException> errors;
+
+    // whether map bodies are only scanned, and parsed when first used
+    private boolean lazy;
+
+    // nesting of the <exp> being parsed, and the deepest reached in this call
+    private int depth, maxDepth;
+
+    // tokens at which check() resumes after an error
+    private static final int S_SEMI = 1, S_IN = 2, S_THEN = 4, S_ELSE = 8, S_COMMA = 16, S_RPAREN = 32;
 
-    Parser(Lexer i) {
-        in = i;
-        initParser();
-    }
+
+    Parser(Lexer i) { in = i; }
+
+    /** Constructs a Parser that consumes a tokenized stream by index */
+    Parser(TokenStream s) { in = s; }
+
+    /** Constructs a Parser that consumes tokens from another source, such as a TokenPipeline */
+    Parser(TokenSource s) { in = s; }
 
     Parser(Reader inputStream) { this(new Lexer(inputStream)); }
 
-    Parser(String fileName) throws IOException { this(new FileReader(fileName)); }
+    Parser(String fileName) throws IOException { this(new Lexer(fileName)); }
+
+    Lexer lexer() { return (in instanceof Lexer) ? (Lexer) in : null; }
+
+    /** Makes the nodes of the ASTs parsed from now on with factory */
+    public void setFactory(ASTFactory factory) { this.factory = factory; }
 
-    Lexer lexer() { return in; }
+    /** Sets whether parse() leaves map bodies unparsed, making LazyMaps that
+     *  parse their bodies when they are first used.  Only the extent of a
+     *  lazy body is found, by scanning its tokens.  Bodies are parsed eagerly
+     *  anyway unless the Lexer holds its whole input in one buffer, as it
+     *  does for a ByteBuffer and for a file under a gigabyte; the input must
+     *  not change while a LazyMap in it is unparsed.
+     */
+    public void setLazy(boolean lazy) { this.lazy = lazy; }
+
+    /** Rebinds this parser to the program text in inputStream, reusing its
+     *  Lexer if it has one, so that one Parser can parse many programs */
+    public void reset(Reader inputStream) {
+        Lexer lexer = lexer();
+        if (lexer != null) lexer.reset(inputStream);
+        else in = new Lexer(inputStream);
+    }
 
-    private void initParser() {
-        ifKey = (KeyWord)in.wordTable.get("if");
-        thenKey = (KeyWord)in.wordTable.get("then");
-        elseKey = (KeyWord)in.wordTable.get("else");
-        letKey = (KeyWord)in.wordTable.get("let");
-        inKey = (KeyWord)in.wordTable.get("in");
-        mapKey = (KeyWord)in.wordTable.get("map");
-        toKey = (KeyWord)in.wordTable.get("to");
-        defKey = (KeyWord)in.wordTable.get(":=");
+    /** Rebinds this parser to the program text s, reusing its Lexer if it
+     *  has one */
+    public void reset(CharSequence s) {
+        Lexer lexer = lexer();
+        if (lexer == null) in = lexer = new Lexer(new StringReader(""));
+        lexer.reset(s);
     }
 
     /** Parses the program text in the lexer bound to 'in' and returns the corresponding AST.
      * @throws ParseException if a syntax error is encountered (including lexical errors).
      */
     public AST parse() throws ParseException {
-        AST result = null;
-        try{
-            result = parseExp();
-        } catch (Exception e){
-            throw new ParseException("");
-        }
-        Token token = in.peek();
-        if(token == null){
+        ParserMetrics.Call call = begin();
+        ParseException failure = null;
+        try {
+            AST result = parseExp();
+            Token token = in.peek();
+            if (token != null) error(token, "expect end of input");
             return result;
-        } else {
-            return null;
+        } catch (ParseException e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (call != null) end(call, failure);
+        }
+    }
+
+    /** Parses the program text as parse() does, but returns the syntax errors in it, in the order of their
+     *  positions, rather than an AST; an empty list means the program is valid.  An error is recorded once
+     *  per position, and errors caused by an earlier one may follow it.
+     */
+    public List<ParseException> check() {
+        ParserMetrics.Call call = begin();
+        List<ParseException> found = errors = new ArrayList<ParseException>();
+        try {
+            parseExp(0);
+            Token token = peek();
+            if (token != null) {
+                record(exception(token, "expect end of input"));
+                // find the errors in the rest too
+                while (peek() != null) parseExp(0);
+            }
+        } finally {
+            errors = null;
+            if (call != null) end(call, found.isEmpty() ? null : found.get(0));
+        }
+        return found;
+    }
+
+    /** Clears what a failed call left and returns the tallies for metrics
+     *  of a call starting now, or null if they are not being recorded */
+    private ParserMetrics.Call begin() {
+        Arrays.fill(scratch, 0, scratchTop, null);  // left by a failed parse
+        scratchTop = 0;
+        depth = maxDepth = 0;
+        ParserMetrics.Call call = ParserMetrics.begin();
+        if (call != null) {
+            factory = new ParserMetrics.Counting(factory, call);
+            Lexer lexer = lexer();
+            if (lexer != null) lexer.tally = call.tokens;
+        }
+        return call;
+    }
+
+    /** Records the metrics of call, which failed with error unless it is null */
+    private void end(ParserMetrics.Call call, ParseException error) {
+        factory = ((ParserMetrics.Counting) factory).base;
+        Lexer lexer = lexer();
+        if (lexer != null) lexer.tally = null;
+        else if (in instanceof TokenStream) {
+            TokenStream s = (TokenStream) in;
+            for (int i = 0; i < s.size(); i++) call.tokens[s.kind(i)]++;
         }
+        ParserMetrics.end(call, maxDepth, lexer != null ? lexer.offset() : -1, error);
     }
 
 
@@ -75,16 +159,17 @@ class Parser {
         if (token instanceof Op) {
             Op op = (Op) token;
             if (! op.isUnOp()) error(op,"unary operator");
-            return new UnOpApp(op, parseTerm(in.readToken()));
+            return factory.makeUnOpApp(op, parseTerm(in.readToken()));
         }
 
+        if (token instanceof IntConstant) return factory.makeInt((IntConstant) token);
         if (token instanceof Constant) return (Constant) token;
         AST factor = parseFactor(token);
         Token next = in.peek();
         if (next == LeftParen.ONLY) {
             in.readToken();  // remove next from input stream
             AST[] exps = parseArgs();  // including closing paren
-            return new App(factor,exps);
+            return factory.makeApp(factor,exps);
         }
         return factor;
     }
@@ -98,8 +183,16 @@ class Parser {
      * @return  the corresponding AST.
      */
     private AST parseExp() {
+        if (++depth > maxDepth) maxDepth = depth;
+        AST exp = parseAnyExp();
+        depth--;
+        return exp;
+    }
+
+    private AST parseAnyExp() {
         AST result = null;
-        Token token = in.readToken();
+        Token token = in.peek();  // left in the input if it cannot start an <exp>, for check() to resume at
+        if (token == null) error(token, "expect an expression");
         TokenType type = token.getType();
         switch (type) {
             case BOOL:
@@ -107,19 +200,23 @@ class Parser {
             case NULL:
             case PRIM_FUN:
             case VAR:
-                return parseVar(result,token);
             case OPERATOR:
+            case LEFT_PAREN:
+                in.readToken();
+                return parseVar(result,token);
             case KEYWORD:
-                if(token == ifKey){
+                if(token == ReservedWords.IF){
+                    in.readToken();
                     return parseIf();
                 }
-                if(token == letKey){
+                if(token == ReservedWords.LET){
+                    in.readToken();
                     return parseLet();
                 }
-                if(token == mapKey){
+                if(token == ReservedWords.MAP){
+                    in.readToken();
                     return parseMap();
                 }
-            case LEFT_PAREN:
             case RIGHT_PAREN:
             case LEFT_BRACK:
             case RIGHT_BRACK:
@@ -128,17 +225,35 @@ class Parser {
             case COMMA:
             case SEMICOLON:
             default:
-                throw new
-                        ParseException("illegal token");
+                error(token, "illegal token");
+                return null;
+        }
+    }
+
+    /** Parses an <exp>.  In check(), a syntax error in it is recorded instead and the input is skipped to the
+     *  next token in sync outside any parens, let or if in the skipped text; a placeholder is returned.
+     */
+    private AST parseExp(int sync) {
+        if (errors == null) return parseExp();
+        int mark = scratchTop, outer = depth;
+        try {
+            return parseExp();
+        } catch (ParseException e) {
+            depth = outer;
+            record(e);
+            Arrays.fill(scratch, mark, scratchTop, null);
+            scratchTop = mark;
+            skip(sync);
+            return NullConstant.ONLY;  // stands for the <exp> in error
         }
     }
 
 
     private AST parseIf(){
-        AST t = parseExp();
+        AST t = parseExp(S_THEN);
         Token token1 = in.peek();
         if (token1 instanceof KeyWord){
-            if (token1 == thenKey){
+            if (token1 == ReservedWords.THEN){
                 in.readToken();
             } else {
                 error(token1,"expecting if, then");
@@ -146,10 +261,10 @@ class Parser {
         } else {
             error(token1,"expecting a keyword");
         }
-        AST c = parseExp();
+        AST c = parseExp(S_ELSE);
         Token token2 = in.peek();
         if (token2 instanceof KeyWord){
-            if (token2 == elseKey){
+            if (token2 == ReservedWords.ELSE){
                 in.readToken();
             } else {
                 error(token2,"expecting if, then, else");
@@ -158,45 +273,45 @@ class Parser {
             error(token2,"expecting keyWord");
         }
         AST a = parseExp();
-        return new If(t,c,a);
+        return factory.makeIf(t,c,a);
     }
 
     private AST parseLet() {
-        LinkedList<Def> link = new LinkedList<Def>();
-        Token token = in.peek();
+        int mark = scratchTop;
+        Token token = in.readToken();
         if (token instanceof Variable){
             while (token instanceof Variable) {
                 Variable var = (Variable) token;
                 token = in.readToken();
-                if (token instanceof KeyWord) {
-                    if (token == defKey){
-                        token = parseDef(link, var);
-                    } else {
-                        error(token,"expect :=");
-                    }
+                if (token == ReservedWords.DEFINE){
+                    token = parseDef(var);
+                } else {
+                    error(token,"expect :=");
                 }
             }
             if (token instanceof KeyWord){
-                if (!(token == inKey)) {
+                if (!(token == ReservedWords.IN)) {
                     error(token,"expect let, in");
                 }
             } else {
                 error(token,"expect in");
             }
-            Def[] arr = new Def[link.size()];
-            link.toArray(arr);
-            return new Let(arr,parseExp());
+            Def[] arr = pop(mark, new Def[scratchTop - mark]);
+            return factory.makeLet(arr,parseExp());
         }else error(token, "expect let");
         return null;
     }
 
-    private Token parseDef(LinkedList<Def> link, Variable var){
-        Def def = new Def(var,parseExp());
-        link.add(def);
+    private Token parseDef(Variable var){
+        Def def = new Def(var,parseExp(S_SEMI | S_IN));
+        push(def);
         Token token = in.peek();
         if (token instanceof SemiColon){
-            token = in.readToken();
-            return token;
+            in.readToken();
+            return in.readToken();
+        } else if (errors != null && token == ReservedWords.IN) {
+            record(exception(token, "expect ;"));  // and take the in as the end of the definitions
+            return in.readToken();
         } else {
             error(token,"expect ;");
         }
@@ -205,34 +320,74 @@ class Parser {
 
     private AST parseMap() {
         Token token = in.readToken();
-        LinkedList<Variable> link = new LinkedList<Variable>();
+        int mark = scratchTop;
 
         if (token instanceof Variable) {
             while (token instanceof Variable) {
                 Variable var = (Variable) token;
-                link.add(var);
+                push(var);
                 token = in.readToken();
             }
             if (token instanceof KeyWord) {
-                if (!(token == toKey)) {
+                if (!(token == ReservedWords.TO)) {
                     error(token, "expect map to");
                 }
             } else {
                 error(token, "expect to");
             }
         } else if (token instanceof KeyWord) {
-            if (!(token == toKey)) {
+            if (!(token == ReservedWords.TO)) {
                 error(token, "expect map to");
             }
+        } else {
+            error(token, "expect to");
         }
 
-        Variable[] varArray = new Variable[link.size()];
-
-        link.toArray(varArray);
+        Variable[] varArray = pop(mark, new Variable[scratchTop - mark]);
+        Lexer lexer = lazy && errors == null ? lexer() : null;
+        java.nio.ByteBuffer input = lexer == null ? null : lexer.input();
+        if (input != null) return lazyMap(varArray, lexer, input);
         AST body = parseExp();
-        Map map = new Map(varArray, body);
+        Map map = factory.makeMap(varArray, body);
         return map;
     }
+
+    /** Returns a LazyMap of vars whose body is the <exp> next in input, which
+     *  is scanned to find where it ends: before the first ), then, else or in
+     *  that closes nothing opened in the body, the first ; or , outside
+     *  everything opened there, or the end of input.
+     */
+    private AST lazyMap(Variable[] vars, Lexer lexer, java.nio.ByteBuffer input) {
+        long start = lexer.offset(), lineStart = lexer.lineStart();
+        int line = lexer.line();
+        int mark = scratchTop;  // the (, if, then and let open in the body
+        int hash = 0, count = 0;
+        Token token;
+        for (token = in.peek(); token != null; token = in.peek()) {
+            Object open = scratchTop > mark ? scratch[scratchTop - 1] : null;
+            if (token == LeftParen.ONLY || token == ReservedWords.IF || token == ReservedWords.LET) push(token);
+            else if (token == RightParen.ONLY || token == ReservedWords.ELSE || token == ReservedWords.IN) {
+                if (open != (token == RightParen.ONLY ? LeftParen.ONLY
+                             : token == ReservedWords.ELSE ? ReservedWords.THEN : ReservedWords.LET)) break;
+                scratch[--scratchTop] = null;
+            }
+            else if (token == ReservedWords.THEN) {
+                if (open != ReservedWords.IF) break;
+                scratch[scratchTop - 1] = token;
+            }
+            else if ((token == SemiColon.ONLY || token == Comma.ONLY) && open == null) break;
+            in.readToken();
+            hash = 31 * hash + token.hashCode();
+            count++;
+        }
+        Arrays.fill(scratch, mark, scratchTop, null);
+        scratchTop = mark;
+        if (count == 0) parseExp();  // no body: reports the error
+        // up to the token after the body, where an error at its end is reported
+        long end = token == null ? lexer.offset() : lexer.startOffset();
+        return factory.makeLazyMap(vars, hash, input, (int) start, (int) end, line, (int) lineStart);
+    }
+
     private AST parseVar(AST result, Token token) {
         AST term = parseTerm(token);
         Token next = in.peek();
@@ -241,7 +396,7 @@ class Parser {
             Op op = (Op) token;
             if (op.isBinOp()){
                 AST exp = parseExp();
-                result = new BinOpApp(op,term,exp);
+                result = factory.makeBinOpApp(op,term,exp);
             } else {
                 error(token,"expect binary OP");
             }
@@ -255,7 +410,7 @@ class Parser {
     private AST parseFactor(Token token) {
         AST exp = null;
         if (token == LeftParen.ONLY){
-            exp = parseExp();
+            exp = parseExp(S_RPAREN);
             token = in.readToken();
             if (token == RightParen.ONLY){
                 return exp;
@@ -277,29 +432,114 @@ class Parser {
 
 
     private AST[] parseArgs() {
-        LinkedList<AST> link = new LinkedList<AST>();
+        int mark = scratchTop;
         Token token = in.peek();
         if (token != RightParen.ONLY){
-            link.add(parseExp());
+            push(parseExp(S_COMMA | S_RPAREN));
             token = in.peek();
             while (token != RightParen.ONLY) {
                 if (token instanceof Comma){
                     in.readToken();
+                } else if (errors != null && token != null) {
+                    record(exception(token, "expect , or )"));  // and read on as if the comma were there
+                } else {
+                    error(token, "expect , or )");
                 }
-                link.add(parseExp());
+                push(parseExp(S_COMMA | S_RPAREN));
                 token = in.peek();
             }
         }
         in.readToken();
-        AST[] arr = new AST[link.size()];
-        link.toArray(arr);
-        return arr;
+        return pop(mark, new AST[scratchTop - mark]);
+    }
+
+    private void push(Object o) {
+        if (scratchTop == scratch.length) scratch = Arrays.copyOf(scratch, 2 * scratchTop);
+        scratch[scratchTop++] = o;
+    }
+
+    /** Moves the list elements pushed since mark into a, which has exactly
+     *  that many slots */
+    private <T> T[] pop(int mark, T[] a) {
+        System.arraycopy(scratch, mark, a, 0, a.length);
+        Arrays.fill(scratch, mark, scratchTop, null);
+        scratchTop = mark;
+        return a;
     }
 
 
 
     private void error(Token token, String message) throws ParseException{
-        System.out.println(in.readToken());
-        throw new ParseException(token + " + " + message);
+        throw exception(token, message);
+    }
+
+    /** Returns the error message about token, the token most recently read or peeked */
+    private ParseException exception(Token token, String message) {
+        ParserMetrics.error(message);
+        return new ParseException(token + " + " + message, in.line(), in.column());
+    }
+
+    /** Records e unless an error was recorded at its position already */
+    private void record(ParseException e) {
+        if (! errors.isEmpty()) {
+            ParseException last = errors.get(errors.size() - 1);
+            if (last.getLine() == e.getLine() && last.getColumn() == e.getColumn()) return;
+        }
+        errors.add(e);
+    }
+
+    /** Returns the next token, recording and skipping lexical errors */
+    private Token peek() {
+        for (;;) {
+            try {
+                return in.peek();
+            } catch (ParseException e) {
+                record(e);
+            }
+        }
+    }
+
+    /** Skips tokens up to the next one in sync, or the end of input, that is not inside parens, a let or an
+     *  if opened in the skipped text */
+    private void skip(int sync) {
+        int parens = 0, lets = 0, ifs = 0;
+        for (Token token = peek(); token != null; token = peek()) {
+            if (token == LeftParen.ONLY) parens++;
+            else if (token == RightParen.ONLY) {
+                if (parens == 0) {
+                    if ((sync & S_RPAREN) != 0) return;
+                }
+                else parens--;
+            }
+            else if (parens == 0) {
+                if (token == ReservedWords.LET) lets++;
+                else if (token == ReservedWords.IF) ifs++;
+                else if (token == ReservedWords.IN && lets > 0) lets--;
+                else if (token == ReservedWords.ELSE && ifs > 0) ifs--;
+                else if (lets == 0 && ifs == 0 && matches(token, sync)) return;
+            }
+            in.readToken();
+        }
+    }
+
+    private static boolean matches(Token token, int sync) {
+        return token instanceof SemiColon ? (sync & S_SEMI) != 0
+             : token == ReservedWords.IN ? (sync & S_IN) != 0
+             : token == ReservedWords.THEN ? (sync & S_THEN) != 0
+             : token == ReservedWords.ELSE ? (sync & S_ELSE) != 0
+             : token instanceof Comma && (sync & S_COMMA) != 0;
+    }
+
+    /** Checks the Jam programs in the files named by args, printing each syntax error as
+     *  file:line:column: description; exits with status 1 if any has an error */
+    public static void main(String[] args) throws IOException {
+        boolean failed = false;
+        for (String fileName : args) {
+            for (ParseException e : new Parser(fileName).check()) {
+                System.out.println(fileName + ":" + e.getLine() + ":" + e.getColumn() + ": " + e.getDescription());
+                failed = true;
+            }
+        }
+        if (failed) System.exit(1);
     }
 }
@@ -0,0 +1,227 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/** Benchmarks of the Lexer, Parser, lazy Parser and AST printing over a fixed corpus of
+ *  small, medium, deeply nested and very wide programs, reported as JSON
+ *  in the layout written by JMH, so that results from different versions
+ *  can be compared by the same tools.
+ *
+ *  Each benchmark runs on one program at a time: a number of warmup
+ *  iterations are run and discarded, then the measured ones, each as many
+ *  operations as fit in a fixed time.  The score is the mean time per
+ *  operation with a 99.9% confidence interval, as JMH's average time mode
+ *  gives; the bytes allocated per operation, as JMH's gc profiler reports
+ *  them, are measured where the JVM can count allocation per thread.  The
+ *  benchmarks run on a thread with a large stack, as Parser recurses on
+ *  the deep program.
+ *
+ *    java ParserBench [-wi n] [-i n] [-r millis] [-rf results.json] [name...]
+ *
+ *  runs the benchmarks whose names contain one of the names given, or all.
+ */
+class ParserBench {
+
+    /** One operation of a benchmark on a program */
+    private abstract static class Op {
+        /** Performs the operation, returning a value that depends on its work */
+        abstract long run();
+    }
+
+    private static final String[] PROGRAMS = { "small", "medium", "deep", "wide" };
+    private static final String[] BENCHMARKS = { "lex", "parse", "lazy", "print" };
+
+    private int warmups = 5, iterations = 5;
+    private long iterationNanos = 200000000L;
+    private final List<String> results = new ArrayList<String>();
+
+    /** Consumes the value of every operation, so none can be optimized away */
+    private static volatile long sink;
+
+    /** Returns the corpus program named name */
+    static String program(String name) {
+        StringBuilder s = new StringBuilder();
+        if (name.equals("small"))
+            return "let f := map x to if x = 0 then 1 else x * f(x - 1); in f(5)";
+        if (name.equals("medium")) {
+            // a library of functions over lists, about 10 KB
+            s.append("let\n");
+            for (int i = 0; i < 80; i++) {
+                s.append("  f").append(i).append(" := map l acc to if null?(l) then acc else f")
+                 .append(i).append("(rest(l), cons(first(l) * ").append(i).append(" + acc, null));\n");
+            }
+            s.append("in f0(cons(1, cons(2, null)), 0)");
+            return s.toString();
+        }
+        if (name.equals("deep")) {
+            // 5000 nested parenthesized sums
+            for (int i = 0; i < 5000; i++) s.append("(x").append(i % 10).append(" + ");
+            s.append('1');
+            for (int i = 0; i < 5000; i++) s.append(')');
+            return s.toString();
+        }
+        if (name.equals("wide")) {
+            // one application with 20000 arguments
+            s.append("f(");
+            for (int i = 0; i < 20000; i++) s.append(i == 0 ? "" : ", ").append(i % 3 == 0 ? "x" + i : "" + i);
+            return s.append(')').toString();
+        }
+        throw new IllegalArgumentException("no program " + name);
+    }
+
+    /** Returns the operation of benchmark on the program text */
+    private static Op op(String benchmark, final String text) {
+        if (benchmark.equals("lex")) {
+            final Lexer lexer = new Lexer(new StringReader(""));
+            return new Op() {
+                long run() {
+                    lexer.reset(text);
+                    long n = 0;
+                    while (lexer.readToken() != null) n++;
+                    return n;
+                }
+            };
+        }
+        if (benchmark.equals("parse")) {
+            final Parser parser = new Parser(new StringReader(""));
+            return new Op() {
+                long run() {
+                    parser.reset(text);
+                    return parser.parse().hashCode();
+                }
+            };
+        }
+        if (benchmark.equals("lazy")) {
+            // map bodies left unparsed
+            final java.nio.ByteBuffer bytes = java.nio.ByteBuffer.wrap(text.getBytes());
+            return new Op() {
+                long run() {
+                    Parser parser = new Parser(new Lexer(bytes));
+                    parser.setLazy(true);
+                    return parser.parse().hashCode();
+                }
+            };
+        }
+        if (benchmark.equals("print")) {
+            final AST ast = new Parser(new StringReader(text)).parse();
+            return new Op() {
+                long run() { return ast.toString().length(); }
+            };
+        }
+        throw new IllegalArgumentException("no benchmark " + benchmark);
+    }
+
+    /** Runs op on the named program and records the result */
+    private void measure(String benchmark, String program, Op op) {
+        double[] nanosPerOp = new double[iterations];
+        double bytesPerOp = Double.NaN;
+        for (int i = 0; i < warmups; i++) iteration(op);
+        long bytes = allocatedBytes(), ops = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] r = iteration(op);
+            nanosPerOp[i] = (double) r[1] / r[0];
+            ops += r[0];
+        }
+        if (bytes >= 0) bytesPerOp = (double) (allocatedBytes() - bytes) / ops;
+
+        double mean = 0, var = 0;
+        for (double x : nanosPerOp) mean += x / iterations;
+        for (double x : nanosPerOp) var += (x - mean) * (x - mean) / Math.max(1, iterations - 1);
+        double error = iterations > 1 ? studentT999(iterations - 1) * Math.sqrt(var / iterations) : Double.NaN;
+        System.err.printf("%-6s %-7s %14.1f +- %10.1f ns/op %14.1f B/op%n", benchmark, program, mean, error, bytesPerOp);
+
+        StringBuilder raw = new StringBuilder();
+        for (double x : nanosPerOp) raw.append(raw.length() == 0 ? "" : ", ").append(json(x));
+        results.add("  {\n"
+                + "    \"benchmark\" : \"ParserBench." + benchmark + "\",\n"
+                + "    \"mode\" : \"avgt\",\n"
+                + "    \"threads\" : 1,\n"
+                + "    \"warmupIterations\" : " + warmups + ",\n"
+                + "    \"measurementIterations\" : " + iterations + ",\n"
+                + "    \"measurementTime\" : \"" + iterationNanos / 1000000 + " ms\",\n"
+                + "    \"params\" : { \"program\" : \"" + program + "\" },\n"
+                + "    \"primaryMetric\" : {\n"
+                + "      \"score\" : " + json(mean) + ",\n"
+                + "      \"scoreError\" : " + json(error) + ",\n"
+                + "      \"scoreUnit\" : \"ns/op\",\n"
+                + "      \"rawData\" : [ [ " + raw + " ] ]\n"
+                + "    },\n"
+                + "    \"secondaryMetrics\" : {\n"
+                + "      \"gc.alloc.rate.norm\" : { \"score\" : " + json(bytesPerOp) + ", \"scoreUnit\" : \"B/op\" }\n"
+                + "    }\n"
+                + "  }");
+    }
+
+    /** Runs op for iterationNanos, returning the operations run and the time taken */
+    private long[] iteration(Op op) {
+        long start = System.nanoTime(), now = start, n = 0, sum = 0;
+        do {
+            sum += op.run();
+            n++;
+            if ((n & 0xF) == 0 || n < 16) now = System.nanoTime();
+        } while (now - start < iterationNanos);
+        now = System.nanoTime();
+        sink += sum;
+        return new long[] { n, now - start };
+    }
+
+    /** Returns the bytes allocated by this thread so far, or -1 if the JVM
+     *  does not count them */
+    private static long allocatedBytes() {
+        try {
+            Object bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        } catch (UnsupportedOperationException e) {
+        } catch (LinkageError e) {
+        }
+        return -1;
+    }
+
+    /** Returns the 99.95th percentile of Student's t distribution with df
+     *  degrees of freedom, which bounds a two-sided 99.9% interval */
+    private static double studentT999(int df) {
+        double[] t = { 636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+                       4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850 };
+        return df <= t.length ? t[df - 1] : 3.291;
+    }
+
+    private static String json(double x) { return Double.isNaN(x) ? "\"NaN\"" : String.valueOf(x); }
+
+    /** Returns the results as a JSON array */
+    String toJson() {
+        StringBuilder s = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) s.append(results.get(i)).append(i + 1 < results.size() ? ",\n" : "\n");
+        return s.append("]\n").toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final ParserBench bench = new ParserBench();
+        String out = "jmh-result.json";
+        final List<String> filters = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-wi")) bench.warmups = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-i")) bench.iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-r")) bench.iterationNanos = Long.parseLong(args[++i]) * 1000000;
+            else if (args[i].equals("-rf")) out = args[++i];
+            else filters.add(args[i]);
+        }
+        Thread runner = new Thread(null, new Runnable() {
+            public void run() {
+                for (String benchmark : BENCHMARKS) {
+                    for (String program : PROGRAMS) {
+                        String name = benchmark + ":" + program;
+                        boolean selected = filters.isEmpty();
+                        for (String f : filters) selected |= name.contains(f);
+                        if (selected) bench.measure(benchmark, program, op(benchmark, program(program)));
+                    }
+                }
+            }
+        }, "bench", 1L << 28);
+        runner.start();
+        runner.join();
+        Writer w = new FileWriter(out);
+        w.write(bench.toJson());
+        w.close();
+    }
+}
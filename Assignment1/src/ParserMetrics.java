@@ -0,0 +1,247 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counters and histograms of the work done by Parsers and their Lexers:
+ *  the tokens lexed by TokenType, the AST nodes made by class, the time
+ *  taken by each parse() and check() call and the deepest nesting of
+ *  <exp>s it reached, the syntax and lexical errors by kind, and the
+ *  Variables interned in SymbolTable.GLOBAL.
+ *
+ *  Recording is off until setEnabled(true) is called or the JVM is started
+ *  with -Djam.metrics=true.  While it is off, a call costs one read of a
+ *  flag, plus a check of whether Flight Recorder is recording the jam.Parse
+ *  event of JamEvents; where Flight Recorder is not available, the events
+ *  are left out.  While it is on, a call tallies its tokens and nodes in
+ *  arrays of its own and adds them to the shared counters once, when it
+ *  returns.
+ */
+class ParserMetrics {
+
+    /** AST classes counted, in the order of the ASTFactory methods */
+    static final String[] NODE_KINDS = { "IntConstant", "UnOpApp", "BinOpApp", "App", "Map", "If", "Let", "LazyMap" };
+
+    private static final int INT = 0, UNOP = 1, BINOP = 2, APP = 3, MAP = 4, IF = 5, LET = 6, LAZY_MAP = 7;
+    private static final TokenType[] TYPES = TokenType.values();
+
+    /** whether Flight Recorder, and so JamEvents, can be used */
+    private static final boolean JFR = jfrAvailable();
+
+    private static volatile boolean enabled = Boolean.getBoolean("jam.metrics");
+
+    /** The metrics every Parser records */
+    static final ParserMetrics GLOBAL = new ParserMetrics();
+
+    private final LongAdder[] tokens = adders(TYPES.length);
+    private final LongAdder[] nodes = adders(NODE_KINDS.length);
+    private final ConcurrentHashMap<String,LongAdder> errors = new ConcurrentHashMap<String,LongAdder>();
+    private final LongAdder calls = new LongAdder();
+    private final Histogram nanos = new Histogram();
+    private final Histogram depths = new Histogram();
+
+    /** Histogram of non-negative values in buckets of powers of two: bucket
+     *  i holds the values with i significant bits */
+    static final class Histogram {
+        private final LongAdder[] buckets = adders(65);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long v) {
+            buckets[64 - Long.numberOfLeadingZeros(v)].increment();
+            sum.add(v);
+            for (long m = max.get(); v > m && ! max.compareAndSet(m, v); m = max.get()) { }
+        }
+
+        public long count() {
+            long n = 0;
+            for (LongAdder b : buckets) n += b.sum();
+            return n;
+        }
+
+        public double mean() {
+            long n = count();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        public long max() { return max.get(); }
+
+        /** Returns a bound below which at least a fraction p of the values
+         *  fall, exact to within a factor of two */
+        public long percentile(double p) {
+            long n = count(), rank = Math.max(1, (long) Math.ceil(p * n)), seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) return i == 0 ? 0 : i == 64 ? max() : Math.min(max(), (1L << i) - 1);
+            }
+            return max();
+        }
+
+        void reset() {
+            for (LongAdder b : buckets) b.reset();
+            sum.reset();
+            max.set(0);
+        }
+
+        public String toString() {
+            return "count " + count() + ", mean " + (long) mean() + ", p50 " + percentile(0.5)
+                    + ", p99 " + percentile(0.99) + ", max " + max();
+        }
+    }
+
+    /** The tallies of one parse() or check() call */
+    static final class Call {
+        final long start = System.nanoTime();
+        final long[] tokens = new long[TYPES.length];
+        final int[] nodes = new int[NODE_KINDS.length];
+        final Object event;  // the JamEvents.Parse being timed, if recording
+
+        Call(Object event) { this.event = event; }
+    }
+
+    /** ASTFactory that counts the nodes made by another for a Call */
+    static final class Counting extends ASTFactory {
+        final ASTFactory base;
+        private final int[] counts;
+
+        Counting(ASTFactory base, Call call) {
+            this.base = base;
+            counts = call.nodes;
+        }
+
+        IntConstant makeInt(IntConstant i) { counts[INT]++; return base.makeInt(i); }
+        UnOpApp makeUnOpApp(Op rator, AST arg) { counts[UNOP]++; return base.makeUnOpApp(rator, arg); }
+        BinOpApp makeBinOpApp(Op rator, AST arg1, AST arg2) { counts[BINOP]++; return base.makeBinOpApp(rator, arg1, arg2); }
+        App makeApp(AST rator, AST[] args) { counts[APP]++; return base.makeApp(rator, args); }
+        Map makeMap(Variable[] vars, AST body) { counts[MAP]++; return base.makeMap(vars, body); }
+        If makeIf(AST test, AST conseq, AST alt) { counts[IF]++; return base.makeIf(test, conseq, alt); }
+        Let makeLet(Def[] defs, AST body) { counts[LET]++; return base.makeLet(defs, body); }
+
+        LazyMap makeLazyMap(Variable[] vars, int hash, ByteBuffer input, int start, int end, int line, int lineStart) {
+            counts[LAZY_MAP]++;
+            return base.makeLazyMap(vars, hash, input, start, end, line, lineStart);
+        }
+    }
+
+    /** Turns recording on or off for every Parser */
+    public static void setEnabled(boolean on) { enabled = on; }
+
+    public static boolean isEnabled() { return enabled; }
+
+    /** Returns the tallies for a call starting now, or null if neither the
+     *  metrics nor Flight Recorder are recording it */
+    static Call begin() {
+        Object event = JFR ? JamEvents.beginParse() : null;
+        if (! enabled && event == null) return null;
+        return new Call(event);
+    }
+
+    /** Adds the tallies of call, which reached nesting depth and read input
+     *  up to offset, or -1 if unknown, and failed with error unless it is
+     *  null */
+    static void end(Call call, int depth, long offset, ParseException error) {
+        long time = System.nanoTime() - call.start;
+        long tokenCount = 0, nodeCount = 0;
+        for (long n : call.tokens) tokenCount += n;
+        for (int n : call.nodes) nodeCount += n;
+        if (call.event != null)
+            JamEvents.endParse(call.event, tokenCount, nodeCount, depth, offset, error == null ? null : error.getMessage());
+        if (! enabled) return;
+        ParserMetrics m = GLOBAL;
+        m.calls.increment();
+        m.nanos.record(time);
+        m.depths.record(depth);
+        for (int i = 0; i < call.tokens.length; i++) if (call.tokens[i] != 0) m.tokens[i].add(call.tokens[i]);
+        for (int i = 0; i < call.nodes.length; i++) if (call.nodes[i] != 0) m.nodes[i].add(call.nodes[i]);
+    }
+
+    /** Counts an error of the given kind, if recording */
+    static void error(String kind) {
+        if (! enabled) return;
+        LongAdder n = GLOBAL.errors.get(kind);
+        if (n == null) {
+            LongAdder fresh = new LongAdder();
+            n = GLOBAL.errors.putIfAbsent(kind, fresh);
+            if (n == null) n = fresh;
+        }
+        n.increment();
+    }
+
+    /** Returns the number of parse() and check() calls recorded */
+    public long calls() { return calls.sum(); }
+
+    /** Returns the number of tokens of type t read by the parsers */
+    public long tokens(TokenType t) { return tokens[t.ordinal()].sum(); }
+
+    /** Returns the number of nodes of the class named kind, one of NODE_KINDS, made */
+    public long nodes(String kind) {
+        for (int i = 0; i < NODE_KINDS.length; i++) if (NODE_KINDS[i].equals(kind)) return nodes[i].sum();
+        throw new IllegalArgumentException("no node kind " + kind);
+    }
+
+    /** Returns the number of errors of kind: the message of a syntax error,
+     *  such as "expect , or )", or "lexical" */
+    public long errors(String kind) {
+        LongAdder n = errors.get(kind);
+        return n == null ? 0 : n.sum();
+    }
+
+    /** Returns the kinds of the errors counted so far */
+    public Set<String> errorKinds() { return new TreeSet<String>(errors.keySet()); }
+
+    /** Returns the histogram of the nanoseconds taken by each call */
+    public Histogram parseNanos() { return nanos; }
+
+    /** Returns the histogram of the deepest nesting of <exp>s in each call */
+    public Histogram depths() { return depths; }
+
+    /** Returns the number of Variables interned in SymbolTable.GLOBAL */
+    public int variables() { return SymbolTable.GLOBAL.size(); }
+
+    /** Returns the number of new Variables entered in SymbolTable.GLOBAL */
+    public long variableInsertions() { return SymbolTable.GLOBAL.misses(); }
+
+    /** Sets the counters to zero; the SymbolTable figures are its own */
+    public void reset() {
+        for (LongAdder n : tokens) n.reset();
+        for (LongAdder n : nodes) n.reset();
+        errors.clear();
+        calls.reset();
+        nanos.reset();
+        depths.reset();
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder("ParserMetrics[calls=").append(calls());
+        s.append("\n  nanos: ").append(nanos).append("\n  depth: ").append(depths).append("\n  tokens:");
+        for (TokenType t : TYPES) if (tokens(t) != 0) s.append(' ').append(t).append('=').append(tokens(t));
+        s.append("\n  nodes:");
+        for (int i = 0; i < NODE_KINDS.length; i++)
+            if (nodes[i].sum() != 0) s.append(' ').append(NODE_KINDS[i]).append('=').append(nodes[i].sum());
+        s.append("\n  errors:");
+        for (String kind : errorKinds()) s.append(" \"").append(kind).append("\"=").append(errors(kind));
+        s.append("\n  variables=").append(variables()).append(", insertions=").append(variableInsertions());
+        return s.append(']').toString();
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    private static boolean jfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            JamEvents.register();
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;  // a JVM without Flight Recorder
+        } catch (LinkageError e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+}
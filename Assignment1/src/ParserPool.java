@@ -0,0 +1,44 @@
+import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Pool of Parsers for parsing many small programs, such as one-line
+ *  expressions, from any number of threads.  A Parser is taken from the
+ *  pool, reset to the program text and returned after parsing, so its Lexer
+ *  buffers and cached variable names are reused and a parse costs little
+ *  more than scanning and parsing the text itself.
+ */
+class ParserPool {
+
+    private final ConcurrentLinkedQueue<Parser> idle = new ConcurrentLinkedQueue<Parser>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int maxIdle;
+
+    /** Constructs a pool that keeps at most maxIdle Parsers between uses */
+    ParserPool(int maxIdle) { this.maxIdle = maxIdle; }
+
+    /** Returns an idle Parser, or a new one if there is none */
+    public Parser acquire() {
+        Parser p = idle.poll();
+        if (p == null) return new Parser(new StringReader(""));
+        idleCount.decrementAndGet();
+        return p;
+    }
+
+    /** Returns p, which must not be used afterwards, to the pool */
+    public void release(Parser p) {
+        if (idleCount.incrementAndGet() <= maxIdle) idle.offer(p);
+        else idleCount.decrementAndGet();
+    }
+
+    /** Parses program with a pooled Parser; see Parser.parse() */
+    public AST parse(CharSequence program) throws ParseException {
+        Parser p = acquire();
+        try {
+            p.reset(program);
+            return p.parse();
+        } finally {
+            release(p);
+        }
+    }
+}
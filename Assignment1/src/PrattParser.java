@@ -0,0 +1,482 @@
+import java.io.*;
+import java.util.*;
+
+/** Table-driven Jam parser using precedence climbing (Pratt parsing).
+ *  Tokens are read as symbol ids from Lexer.scan() or from a TokenStream,
+ *  and every decision is made by indexing dense per-symbol tables rather
+ *  than by instanceof tests on Token objects:
+ *    kinds[id]     the syntactic class of the symbol (C_ codes below),
+ *    leftBP[id]    the binding power of a binary operator, 0 otherwise,
+ *    rightBP[id]   the power its right operand is parsed at,
+ *    prefix[id]    whether the symbol is a unary operator.
+ *
+ *  The binding powers come from a Precedence.  Precedence.UNIFORM gives
+ *  every binary operator the same power, associating to the right, and
+ *  yields exactly the ASTs built by Parser; Precedence.STANDARD gives the
+ *  conventional levels | < & < comparisons < + - < * /, associating to
+ *  the left.
+ */
+class PrattParser {
+
+    /** Binding powers of the binary operators, by symbol */
+    static class Precedence {
+        /** all binary operators bind equally, to the right, as in Parser */
+        static final Precedence UNIFORM = new Precedence(true)
+                .level(1, "+", "-", "*", "/", "=", "!=", "<", ">", "<=", ">=", "&", "|", "<-");
+        /** conventional precedence levels, associating to the left */
+        static final Precedence STANDARD = new Precedence(false)
+                .level(1, "<-").level(2, "|").level(3, "&")
+                .level(4, "=", "!=", "<", ">", "<=", ">=")
+                .level(5, "+", "-").level(6, "*", "/");
+
+        private final HashMap<String,Integer> levels = new HashMap<String,Integer>();
+        private final boolean rightAssoc;
+
+        private Precedence(boolean r) { rightAssoc = r; }
+
+        private Precedence level(int level, String... symbols) {
+            for (String s : symbols) levels.put(s, level);
+            return this;
+        }
+
+        /** Returns the left binding power of the binary operator symbol */
+        int leftBP(String symbol) {
+            Integer level = levels.get(symbol);
+            if (level == null) throw new IllegalArgumentException("no precedence for " + symbol);
+            return 2 * level;
+        }
+
+        /** Returns the power at which the right operand of symbol is parsed */
+        int rightBP(String symbol) { return rightAssoc ? leftBP(symbol) - 1 : leftBP(symbol); }
+
+        private int[] leftTable;   // binding powers by symbol id, built on first use
+        private int[] rightTable;
+
+        private synchronized void buildTables() {
+            if (leftTable != null) return;
+            int[] left = new int[ReservedWords.COUNT];
+            int[] right = new int[ReservedWords.COUNT];
+            for (int id = 0; id < ReservedWords.COUNT; id++) {
+                Token t = ReservedWords.symbol(id);
+                if (t instanceof Op && ((Op) t).isBinOp()) {
+                    left[id] = leftBP(((Op) t).getSymbol());
+                    right[id] = rightBP(((Op) t).getSymbol());
+                }
+            }
+            rightTable = right;
+            leftTable = left;
+        }
+    }
+
+    /** Syntactic categories that parsePhrase() can parse */
+    enum Phrase { EXP, TERM, FACTOR }
+
+    /** Receives the composite nodes built by a parse together with the
+     *  source spans of their children: bounds holds a start and an end
+     *  offset for each child, in the order the AST constructor takes them
+     *  (the right hand sides of a Let's defs precede its body).  A child's
+     *  span covers its whole phrase, including any enclosing parentheses.
+     */
+    interface SpanListener {
+        void node(AST n, int[] bounds);
+    }
+
+    // syntactic classes of symbols
+
+    private static final byte C_OTHER = 0;
+    private static final byte C_EOF = 1;
+    private static final byte C_INT = 2;
+    private static final byte C_CONST = 3;
+    private static final byte C_PRIM = 4;
+    private static final byte C_VAR = 5;
+    private static final byte C_OP = 6;
+    private static final byte C_LEFT_PAREN = 7;
+    private static final byte C_RIGHT_PAREN = 8;
+    private static final byte C_COMMA = 9;
+    private static final byte C_SEMICOLON = 10;
+    private static final byte C_IF = 11;
+    private static final byte C_THEN = 12;
+    private static final byte C_ELSE = 13;
+    private static final byte C_LET = 14;
+    private static final byte C_IN = 15;
+    private static final byte C_MAP = 16;
+    private static final byte C_TO = 17;
+    private static final byte C_DEFINE = 18;
+
+    private static final int INT_KIND = TokenType.INT.ordinal();
+
+    private Lexer lexer;        // token source, unless stream is
+    private TokenStream stream;
+    private int next;           // index of the next token of stream
+
+    // syntactic class and prefix flag of each symbol id below ReservedWords.COUNT;
+    // the ids from there on are Variables
+    private static final byte[] kinds = new byte[ReservedWords.COUNT];
+    private static final boolean[] prefix = new boolean[ReservedWords.COUNT];
+    private static final int reserved = ReservedWords.COUNT;
+
+    private final int[] leftBP;  // binding powers by symbol id, 0 if not a binary operator
+    private final int[] rightBP;
+
+    private int sym;            // symbol id of the current token
+    private int kind;           // its syntactic class
+    private int value;          // its value if it is an int
+
+    private ASTFactory factory = ASTFactory.PLAIN;
+    private SpanListener spans; // reported to if not null
+    private int tokenStart;     // source span of the current token,
+    private int tokenEnd;       //   maintained only when reporting spans
+    private int lastEnd;        // end of the previous token
+    private int[] bounds = new int[64];  // child spans awaiting their node
+    private int boundTop;
+
+    // scratch stacks for list elements, reused across lists
+    private ArrayList<Object> items = new ArrayList<Object>();
+
+    static {
+        kinds[Lexer.T_EOF] = C_EOF;
+        kinds[Lexer.T_INT] = C_INT;
+        for (int id = 0; id < reserved; id++) {
+            Token t = ReservedWords.symbol(id);
+            if (t == null) continue;
+            switch (t.getType()) {
+                case BOOL:
+                case NULL: kinds[id] = C_CONST; break;
+                case PRIM_FUN: kinds[id] = C_PRIM; break;
+                case VAR: kinds[id] = C_VAR; break;
+                case LEFT_PAREN: kinds[id] = C_LEFT_PAREN; break;
+                case RIGHT_PAREN: kinds[id] = C_RIGHT_PAREN; break;
+                case COMMA: kinds[id] = C_COMMA; break;
+                case SEMICOLON: kinds[id] = C_SEMICOLON; break;
+                case OPERATOR:
+                    kinds[id] = C_OP;
+                    prefix[id] = ((Op) t).isUnOp();
+                    break;
+                case KEYWORD: {
+                    String name = ((KeyWord) t).getName();
+                    if (name.equals("if")) kinds[id] = C_IF;
+                    else if (name.equals("then")) kinds[id] = C_THEN;
+                    else if (name.equals("else")) kinds[id] = C_ELSE;
+                    else if (name.equals("let")) kinds[id] = C_LET;
+                    else if (name.equals("in")) kinds[id] = C_IN;
+                    else if (name.equals("map")) kinds[id] = C_MAP;
+                    else if (name.equals("to")) kinds[id] = C_TO;
+                    else if (name.equals(":=")) kinds[id] = C_DEFINE;
+                    break;
+                }
+                default: kinds[id] = C_OTHER;
+            }
+        }
+    }
+
+    PrattParser(Lexer l, Precedence p) {
+        lexer = l;
+        p.buildTables();
+        leftBP = p.leftTable;
+        rightBP = p.rightTable;
+    }
+
+    PrattParser(TokenStream s, Precedence p) {
+        stream = s;
+        p.buildTables();
+        leftBP = p.leftTable;
+        rightBP = p.rightTable;
+    }
+
+    PrattParser(Lexer l) { this(l, Precedence.UNIFORM); }
+
+    PrattParser(TokenStream s) { this(s, Precedence.UNIFORM); }
+
+    PrattParser(Reader inputStream) { this(new Lexer(inputStream)); }
+
+    PrattParser(String fileName) throws IOException { this(new Lexer(fileName)); }
+
+    /** Parses the program text and returns the corresponding AST.
+     * @throws ParseException if a syntax error is encountered (including
+     *  lexical errors) or if tokens remain after the program.
+     */
+    public AST parse() throws ParseException {
+        if (stream != null) next = 0;
+        boundTop = tokenEnd = 0;
+        advance();
+        AST result = parseExp(0);
+        if (kind != C_EOF) error("expect end of input");
+        return result;
+    }
+
+    /** Parses the whole input as a single phrase of the given category:
+     *  an <exp>, a <term>, or a <factor> that is not applied.
+     * @throws ParseException if the input is not exactly one such phrase
+     */
+    AST parsePhrase(Phrase category) throws ParseException {
+        if (stream != null) next = 0;
+        boundTop = tokenEnd = 0;
+        advance();
+        AST result;
+        switch (category) {
+            case EXP: result = parseExp(0); break;
+            case TERM: result = parseTerm(); break;
+            default: result = parseFactor();
+        }
+        if (kind != C_EOF) error("expect end of input");
+        return result;
+    }
+
+    /** Reports the source span of each composite node built from now on
+     *  to listener, or stops reporting if listener is null */
+    void setSpanListener(SpanListener listener) { spans = listener; }
+
+    /** Makes the nodes of the ASTs parsed from now on with factory.  A
+     *  HashConser shares equal subtrees, so spans reported for its nodes
+     *  are those of the nodes' latest occurrences. */
+    void setFactory(ASTFactory factory) { this.factory = factory; }
+
+    /** Returns the end offset of the last token consumed, if spans are
+     *  being reported */
+    int lastTokenEnd() { return tokenEnd; }
+
+    /** Parses an <exp> whose binary operators all bind tighter than minBP */
+    private AST parseExp(int minBP) {
+        int mark = boundTop;
+        switch (kind) {
+            case C_IF: {
+                advance();
+                int start = tokenStart;
+                AST test = parseExp(0);
+                bound(start);
+                expect(C_THEN, "expecting if, then");
+                start = tokenStart;
+                AST conseq = parseExp(0);
+                bound(start);
+                expect(C_ELSE, "expecting if, then, else");
+                start = tokenStart;
+                AST alt = parseExp(0);
+                bound(start);
+                return node(factory.makeIf(test, conseq, alt), mark);
+            }
+            case C_LET: return parseLet();
+            case C_MAP: return parseMap();
+            default: {
+                int start = tokenStart;
+                AST left = parseTerm();
+                for (;;) {
+                    if (kind != C_OP) return left;
+                    int bp = leftBP[sym];
+                    if (bp == 0) error("expect binary OP");
+                    if (bp <= minBP) return left;
+                    int opSym = sym;
+                    bound(start);
+                    advance();
+                    int rightStart = tokenStart;
+                    AST right = parseExp(rightBP[opSym]);
+                    bound(rightStart);
+                    left = node(factory.makeBinOpApp((Op) symbol(opSym), left, right), mark);
+                }
+            }
+        }
+    }
+
+    /** Parses:
+     *  <term>     ::= { <unop> } <term> | <constant> | <factor> {( <exp-list> )}
+     */
+    private AST parseTerm() {
+        int mark = boundTop;
+        int start = tokenStart;
+        switch (kind) {
+            case C_OP: {
+                if (! prefix[sym]) error("unary operator");
+                Op op = (Op) symbol(sym);
+                advance();
+                int argStart = tokenStart;
+                AST arg = parseTerm();
+                bound(argStart);
+                return node(factory.makeUnOpApp(op, arg), mark);
+            }
+            case C_INT: {
+                AST i = factory.makeInt(new IntConstant(value));
+                advance();
+                return i;
+            }
+            case C_CONST: {
+                AST c = (Constant) symbol(sym);
+                advance();
+                return c;
+            }
+        }
+        AST factor = parseFactor();
+        if (kind != C_LEFT_PAREN) return factor;
+        bound(start);
+        advance();
+        int itemMark = items.size();
+        if (kind != C_RIGHT_PAREN) {
+            start = tokenStart;
+            items.add(parseExp(0));
+            bound(start);
+            while (kind != C_RIGHT_PAREN) {
+                expect(C_COMMA, "expect , or )");
+                start = tokenStart;
+                items.add(parseExp(0));
+                bound(start);
+            }
+        }
+        advance();
+        return node(factory.makeApp(factor, drain(itemMark, new AST[items.size() - itemMark])), mark);
+    }
+
+    /** Parses <factor> ::= ( <exp> ) | <prim> | <id> */
+    private AST parseFactor() {
+        AST factor;
+        switch (kind) {
+            case C_LEFT_PAREN:
+                advance();
+                factor = parseExp(0);
+                expect(C_RIGHT_PAREN, "expect rightParen");
+                return factor;
+            case C_PRIM:
+            case C_VAR:
+                factor = (AST) symbol(sym);
+                advance();
+                return factor;
+            default:
+                error("expect paren");
+                return null;
+        }
+    }
+
+    /** Parses let <def> { <def> } in <exp> */
+    private AST parseLet() {
+        int boundMark = boundTop;
+        advance();
+        int mark = items.size();
+        do {
+            if (kind != C_VAR) error("expect let");
+            Variable lhs = (Variable) symbol(sym);
+            advance();
+            expect(C_DEFINE, "expect :=");
+            int start = tokenStart;
+            items.add(new Def(lhs, parseExp(0)));
+            bound(start);
+            expect(C_SEMICOLON, "expect ;");
+        } while (kind != C_IN);
+        advance();
+        Def[] defs = drain(mark, new Def[items.size() - mark]);
+        int start = tokenStart;
+        AST body = parseExp(0);
+        bound(start);
+        return node(factory.makeLet(defs, body), boundMark);
+    }
+
+    /** Parses map { <id> } to <exp> */
+    private AST parseMap() {
+        int boundMark = boundTop;
+        advance();
+        int mark = items.size();
+        while (kind == C_VAR) {
+            items.add(symbol(sym));
+            advance();
+        }
+        expect(C_TO, "expect map to");
+        Variable[] vars = drain(mark, new Variable[items.size() - mark]);
+        int start = tokenStart;
+        AST body = parseExp(0);
+        bound(start);
+        return node(factory.makeMap(vars, body), boundMark);
+    }
+
+    /** Records that a child phrase started at start and ended with the last
+     *  token consumed, if spans are being reported */
+    private void bound(int start) {
+        if (spans == null) return;
+        if (boundTop + 2 > bounds.length) bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+        bounds[boundTop++] = start;
+        bounds[boundTop++] = lastEnd;
+    }
+
+    /** Reports n with the child bounds recorded since mark */
+    private AST node(AST n, int mark) {
+        if (spans != null) {
+            spans.node(n, Arrays.copyOfRange(bounds, mark, boundTop));
+            boundTop = mark;
+        }
+        return n;
+    }
+
+    /** Moves the items from mark on into a */
+    private <T> T[] drain(int mark, T[] a) {
+        List<Object> tail = items.subList(mark, items.size());
+        tail.toArray(a);
+        tail.clear();
+        return a;
+    }
+
+    private Token symbol(int id) { return lexer != null ? lexer.token(id) : stream.symbol(id); }
+
+    /** Reads the next token into sym, kind and value */
+    private void advance() {
+        if (lexer != null) {
+            int code = lexer.scan();
+            if (code == Lexer.T_WORD) sym = lexer.wordSymbol();
+            else {
+                sym = code;
+                if (code == Lexer.T_INT) value = lexer.intValue();
+            }
+        }
+        else if (next < stream.size()) {
+            value = stream.value(next);
+            sym = stream.kind(next) == INT_KIND ? Lexer.T_INT : value;
+            next++;
+        }
+        else sym = Lexer.T_EOF;
+        kind = sym < reserved ? kinds[sym] : C_VAR;
+        if (spans != null) {
+            lastEnd = tokenEnd;
+            if (sym == Lexer.T_EOF) tokenStart = tokenEnd;
+            else if (lexer != null) {
+                tokenStart = (int) lexer.startOffset();
+                tokenEnd = (int) lexer.endOffset();
+            }
+            else {
+                tokenStart = stream.start(next - 1);
+                tokenEnd = stream.end(next - 1);
+            }
+        }
+    }
+
+    /** Consumes the current token, which must be of class k */
+    private void expect(int k, String message) {
+        if (kind != k) error(message);
+        advance();
+    }
+
+    private void error(String message) throws ParseException {
+        String token = kind == C_EOF ? "null" : kind == C_INT ? String.valueOf(value) : String.valueOf(symbol(sym));
+        if (lexer != null) throw new ParseException(token + " + " + message, lexer.line(), lexer.column());
+        int offset = next > 0 ? stream.start(next - 1) : 0;
+        throw new ParseException(token + " + " + message, stream.line(offset), stream.column(offset));
+    }
+
+    /** Provides a command line comparison of Parser and PrattParser: prints
+     *  the tokens per second each achieves on the specified file */
+    public static void main(String[] args) throws IOException {
+        String fileName = args[0];
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long tokens = 0;
+        Lexer counter = new Lexer(fileName);
+        while (counter.scan() != Lexer.T_EOF) tokens++;
+        long parserTime = 0, prattTime = 0;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            new Parser(fileName).parse();
+            long middle = System.nanoTime();
+            new PrattParser(fileName).parse();
+            long end = System.nanoTime();
+            if (2 * r >= rounds) {  // skip the warm-up half
+                parserTime += middle - start;
+                prattTime += end - middle;
+            }
+        }
+        int measured = rounds - (rounds + 1) / 2;
+        System.out.println("Parser:      " + (long) (1e9 * tokens * measured / parserTime) + " tokens/s");
+        System.out.println("PrattParser: " + (long) (1e9 * tokens * measured / prattTime) + " tokens/s");
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.*;
+import java.util.Random;
+
+/** Generator of random syntactically valid Jam programs of any size, for
+ *  load and scaling tests of the Lexer and parsers.  It walks the grammar
+ *  Parser implements
+ *
+ *    <exp>    ::= if <exp> then <exp> else <exp> | let <def> ... <def> in <exp>
+ *               | map <id> ... <id> to <exp> | <term> { <binop> <exp> }
+ *    <term>   ::= <unop> <term> | <constant> | <factor> [ ( <exp>, ..., <exp> ) ]
+ *    <factor> ::= ( <exp> ) | <prim> | <id>
+ *
+ *  choosing among the alternatives with configurable weights, down to a
+ *  maximum nesting depth and with at most a given number of args, defs and
+ *  map parameters.  Identifiers are drawn from the last few hundred used,
+ *  with a configurable chance, so names recur as they do in real programs.
+ *
+ *  A program of a given size is a let whose defs are generated until the
+ *  text reaches that size.  The text is written as it is generated, in
+ *  memory bounded by the depth, so programs far larger than the heap can
+ *  be made.  Alongside it, the generator can write the toString() of the
+ *  AST the program parses to.  The same seed and settings always yield
+ *  the same program.
+ *
+ *    java ProgramGenerator [-seed n] [-size bytes] [-depth n] [-width n]
+ *                          [-reuse p] [-mix kind=weight,...] [-expect file] out.jam
+ *
+ *  where the kinds of -mix are those of KINDS.
+ */
+class ProgramGenerator {
+
+    /** the alternatives chosen among for an <exp> */
+    static final String[] KINDS = { "const", "var", "prim", "unop", "binop", "app", "paren", "if", "let", "map" };
+
+    private static final int CONST = 0, VAR = 1, PRIM = 2, UNOP = 3, BINOP = 4, APP = 5, PAREN = 6, IF = 7, LET = 8, MAP = 9;
+
+    private static final String[] UNOPS = { "-", "+", "~" };  // the Lexer reads ! only in !=
+    private static final String[] BINOPS = { "+", "-", "*", "/", "=", "!=", "<", ">", "<=", ">=", "&", "|" };
+    private static final String[] PRIMS = { "number?", "function?", "list?", "null?", "cons?", "cons",
+                                            "first", "rest", "arity" };
+    private static final String[] CONSTANTS = { "null", "true", "false" };
+
+    private final Random random;
+    private int maxDepth = 8;
+    private int maxWidth = 4;
+    private double reuse = 0.8;
+    private final int[] weights = { 4, 6, 1, 2, 6, 4, 1, 1, 1, 1 };
+    private int totalWeight = 27;
+
+    private final String[] recent = new String[256];  // identifiers used lately, in a ring
+    private int recentCount;
+    private long fresh;
+
+    private Writer src;
+    private Writer expected;  // or null
+    private long written;
+
+    ProgramGenerator(long seed) { random = new Random(seed); }
+
+    /** Sets the maximum nesting depth of expressions */
+    public ProgramGenerator setDepth(int depth) {
+        maxDepth = depth;
+        return this;
+    }
+
+    /** Sets the maximum number of args of an application, defs of a nested
+     *  let and parameters of a map */
+    public ProgramGenerator setWidth(int width) {
+        if (width < 1) throw new IllegalArgumentException("width must be positive");
+        maxWidth = width;
+        return this;
+    }
+
+    /** Sets the chance that an identifier is one used before */
+    public ProgramGenerator setReuse(double p) {
+        reuse = p;
+        return this;
+    }
+
+    /** Sets the relative weight of the alternative kind, one of KINDS */
+    public ProgramGenerator setWeight(String kind, int weight) {
+        int i = indexOf(kind);
+        if (weight < 0) throw new IllegalArgumentException("negative weight");
+        if (i <= PRIM && weights[CONST] + weights[VAR] + weights[PRIM] - weights[i] + weight == 0)
+            throw new IllegalArgumentException("one of const, var and prim must have weight");
+        totalWeight += weight - weights[i];
+        weights[i] = weight;
+        return this;
+    }
+
+    /** Writes to src a program of at least size chars, and to expected,
+     *  unless it is null, the toString() of its AST */
+    public void generate(Writer src, Writer expected, long size) throws IOException {
+        this.src = src;
+        this.expected = expected;
+        written = 0;
+        both("let ");
+        boolean first = true;
+        do {
+            if (! first) both(" ");
+            first = false;
+            def(maxDepth);
+        } while (written < size);
+        both(" in ");
+        exp(maxDepth);
+        src.flush();
+        if (expected != null) expected.flush();
+    }
+
+    /** Returns a program of at least size chars */
+    public String generate(long size) {
+        StringWriter w = new StringWriter();
+        try {
+            generate(w, null, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // cannot happen writing to memory
+        }
+        return w.toString();
+    }
+
+    private void exp(int depth) throws IOException {
+        if (depth <= 0) leaf();
+        else {
+            int kind = choose();
+            if (isCompound(kind)) compound(kind, depth);
+            else term(kind, depth);
+        }
+    }
+
+    /** Writes an if, let, map or binop */
+    private void compound(int kind, int depth) throws IOException {
+        switch (kind) {
+            case BINOP:
+                // printed in parens, which the program does not need
+                both("", "(");
+                term(choose(), depth - 1);
+                both(" " + pick(BINOPS) + " ");
+                exp(depth - 1);
+                both("", ")");
+                return;
+            case IF:
+                both("if ");
+                exp(depth - 1);
+                both(" then ");
+                exp(depth - 1);
+                both(" else ");
+                exp(depth - 1);
+                return;
+            case LET: {
+                both("let ");
+                int n = 1 + random.nextInt(maxWidth);
+                for (int i = 0; i < n; i++) {
+                    if (i > 0) both(" ");
+                    def(depth - 1);
+                }
+                both(" in ");
+                exp(depth - 1);
+                return;
+            }
+            default: {
+                both("map ");
+                int n = random.nextInt(maxWidth + 1);
+                for (int i = 0; i < n; i++) {
+                    if (i > 0) both(" ", ",");
+                    both(identifier());
+                }
+                both(n > 0 ? " to " : "to ", " to ");
+                exp(depth - 1);
+            }
+        }
+    }
+
+    /** Writes a <term> of the given kind, putting an if, let, map or binop
+     *  in parens, which are not printed */
+    private void term(int kind, int depth) throws IOException {
+        if (depth <= 0) {
+            leaf();
+            return;
+        }
+        switch (kind) {
+            case CONST:
+                both(random.nextInt(4) == 0 ? pick(CONSTANTS) : String.valueOf(random.nextInt(1000)));
+                return;
+            case VAR:
+                both(identifier());
+                return;
+            case PRIM:
+                both(pick(PRIMS));
+                return;
+            case UNOP:
+                both(pick(UNOPS) + " ");
+                term(choose(), depth - 1);
+                return;
+            case APP: {
+                int rator = choose();
+                if (! isRator(rator) || depth <= 1 && ! isCompound(rator)) both(rator == PRIM ? pick(PRIMS) : identifier());
+                else {
+                    // printed in parens too, as it is not an identifier
+                    both("(");
+                    if (isCompound(rator)) compound(rator, depth - 1);
+                    else term(rator, depth - 1);
+                    both(")");
+                }
+                both("(");
+                int n = random.nextInt(maxWidth + 1);
+                for (int i = 0; i < n; i++) {
+                    if (i > 0) both(", ");
+                    exp(depth - 1);
+                }
+                both(")");
+                return;
+            }
+            case PAREN:
+                both("(", "");
+                exp(depth - 1);
+                both(")", "");
+                return;
+            default:
+                both("(", "");
+                compound(kind, depth);
+                both(")", "");
+        }
+    }
+
+    private static boolean isCompound(int kind) { return kind == BINOP || kind == IF || kind == LET || kind == MAP; }
+
+    /** Returns whether a rator of kind in parens is printed in parens */
+    private static boolean isRator(int kind) { return isCompound(kind) || kind == UNOP || kind == APP; }
+
+    private static int indexOf(String kind) {
+        for (int i = 0; i < KINDS.length; i++) if (KINDS[i].equals(kind)) return i;
+        throw new IllegalArgumentException("no kind " + kind);
+    }
+
+    private void def(int depth) throws IOException {
+        both(identifier() + " := ");
+        exp(depth);
+        both(";");
+    }
+
+    /** Writes a constant, identifier or primitive, chosen by weight */
+    private void leaf() throws IOException {
+        int kind;
+        do kind = choose(); while (kind > PRIM);
+        term(kind, 1);
+    }
+
+    /** Returns an identifier, one used before with probability reuse */
+    private String identifier() {
+        if (recentCount > 0 && random.nextDouble() < reuse)
+            return recent[random.nextInt(Math.min(recentCount, recent.length))];
+        String id = "v" + Long.toString(fresh++, 36);
+        recent[recentCount++ % recent.length] = id;
+        if (recentCount == 2 * recent.length) recentCount = recent.length;  // stays in the ring
+        return id;
+    }
+
+    /** Returns the index of a kind chosen by weight */
+    private int choose() {
+        int r = random.nextInt(totalWeight);
+        for (int i = 0; ; i++) {
+            r -= weights[i];
+            if (r < 0) return i;
+        }
+    }
+
+    private String pick(String[] a) { return a[random.nextInt(a.length)]; }
+
+    private void both(String s) throws IOException { both(s, s); }
+
+    /** Writes s to the program and p to the printed text */
+    private void both(String s, String p) throws IOException {
+        src.write(s);
+        written += s.length();
+        if (expected != null) expected.write(p);
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 0, size = 1 << 10;
+        String out = null, expect = null;
+        java.util.List<String[]> mix = new java.util.ArrayList<String[]>();
+        int depth = -1, width = -1;
+        double reuse = -1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-seed")) seed = Long.parseLong(args[++i]);
+            else if (args[i].equals("-size")) size = Long.parseLong(args[++i]);
+            else if (args[i].equals("-depth")) depth = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-width")) width = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-reuse")) reuse = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-mix")) for (String kw : args[++i].split(",")) mix.add(kw.split("="));
+            else if (args[i].equals("-expect")) expect = args[++i];
+            else out = args[i];
+        }
+        if (out == null) {
+            System.err.println("usage: java ProgramGenerator [-seed n] [-size bytes] [-depth n] [-width n] "
+                               + "[-reuse p] [-mix kind=weight,...] [-expect file] out.jam");
+            System.exit(2);
+        }
+        ProgramGenerator g = new ProgramGenerator(seed);
+        if (depth >= 0) g.setDepth(depth);
+        if (width >= 0) g.setWidth(width);
+        if (reuse >= 0) g.setReuse(reuse);
+        for (String[] kw : mix) g.setWeight(kw[0], Integer.parseInt(kw[1]));
+        Writer src = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"), 1 << 16);
+        Writer exp = expect == null ? null
+                : new BufferedWriter(new OutputStreamWriter(new FileOutputStream(expect), "UTF-8"), 1 << 16);
+        try {
+            g.generate(src, exp, size);
+        } finally {
+            src.close();
+            if (exp != null) exp.close();
+        }
+    }
+}
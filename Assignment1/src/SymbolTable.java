@@ -0,0 +1,79 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Process-wide table of canonical Variables, shared by all Lexers.
+ *  Interning the same name twice yields the same Variable for as long as
+ *  that Variable is reachable, so == can be used to compare Variables from
+ *  different Lexers.  Entries are held through weak references and are
+ *  dropped once their Variable is no longer referenced, so the table
+ *  cannot grow beyond the names still in use.  Lookups never lock.
+ */
+class SymbolTable {
+
+    /** the table used by every Lexer */
+    public static final SymbolTable GLOBAL = new SymbolTable();
+
+    /** weak reference to a Variable that remembers its key */
+    private static class Entry extends WeakReference<Variable> {
+        final String name;
+        Entry(Variable v, ReferenceQueue<Variable> q) {
+            super(v, q);
+            name = v.getName();
+        }
+    }
+
+    private final ConcurrentHashMap<String,Entry> table = new ConcurrentHashMap<String,Entry>();
+    private final ReferenceQueue<Variable> collected = new ReferenceQueue<Variable>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** Returns the canonical Variable named name, creating it if needed */
+    public Variable intern(String name) {
+        Entry e = table.get(name);
+        if (e != null) {
+            Variable v = e.get();
+            if (v != null) {
+                hits.increment();
+                return v;
+            }
+        }
+        misses.increment();
+        expunge();
+        Variable newVar = new Variable(name);
+        Entry newEntry = new Entry(newVar, collected);
+        for (;;) {
+            e = table.putIfAbsent(name, newEntry);
+            if (e == null) return newVar;
+            Variable v = e.get();
+            if (v != null) return v;   // lost a race to another Lexer
+            if (table.replace(name, e, newEntry)) return newVar;
+        }
+    }
+
+    /** Removes the entries whose Variables have been collected */
+    private void expunge() {
+        Entry e;
+        while ((e = (Entry) collected.poll()) != null)
+            if (table.remove(e.name, e)) evictions.increment();
+    }
+
+    /** Returns the number of intern() calls that found a live Variable */
+    public long hits() { return hits.sum(); }
+
+    /** Returns the number of intern() calls that created a Variable */
+    public long misses() { return misses.sum(); }
+
+    /** Returns the number of entries dropped after their Variable was collected */
+    public long evictions() { return evictions.sum(); }
+
+    /** Returns the number of entries, including any not yet expunged */
+    public int size() { return table.size(); }
+
+    public String toString() {
+        return "SymbolTable[size=" + size() + ", hits=" + hits() + ", misses=" + misses()
+                + ", evictions=" + evictions() + "]";
+    }
+}
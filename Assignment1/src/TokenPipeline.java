@@ -0,0 +1,210 @@
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.locks.LockSupport;
+
+/** TokenSource that runs a Lexer on a thread of its own, so that a parser
+ *  reading from it overlaps lexing with parsing.  The lexer thread fills
+ *  batches of tokens, each token with its line and column, in a ring of
+ *  batches shared with the parser thread alone; it waits while the ring is
+ *  full, and the parser waits while it is empty.  A batch is handed over
+ *  by a volatile count of the batches published, and handed back by a
+ *  count of those consumed, so no lock is taken.
+ *
+ *  Tokens are returned with the same peek() and readToken() behavior as
+ *  the Lexer's.  A lexical error is passed along in its place among the
+ *  tokens and thrown by the peek() or readToken() that reaches it; as with
+ *  the Lexer, the next call goes on with the token after the bad text.  Any
+ *  other exception or error thrown by the lexer ends the input there, and
+ *  is thrown to the parser when it reaches that point.
+ *
+ *    TokenPipeline tokens = new TokenPipeline(new Lexer(fileName));
+ *    try {
+ *        ast = new Parser(tokens).parse();
+ *    } finally {
+ *        tokens.close();
+ *    }
+ *
+ *  The lexer thread stops by itself once it has published the end of the
+ *  input.  Closing the pipeline stops it sooner, which matters when the
+ *  parser stops reading first, as on a syntax error: the thread then waits
+ *  for room in the ring, polling less and less often, until the pipeline
+ *  is closed or, if it is dropped without being closed, garbage collected.
+ */
+class TokenPipeline implements TokenSource, Closeable {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int BATCHES = 16;  // in the ring
+    private static final int SPINS = 100;   // yields before parking to wait
+    private static final long MIN_PARK = 100000L;    // nanos parked by the first wait, doubling
+    private static final long MAX_PARK = 10000000L;  // up to this
+
+    /** A run of tokens, lexical errors and, at the end of input, a null or
+     *  the Throwable that stopped the lexer */
+    private static final class Batch {
+        final Object[] items = new Object[BATCH_SIZE];
+        final int[] lines = new int[BATCH_SIZE];
+        final int[] columns = new int[BATCH_SIZE];
+        int size;
+    }
+
+    /** The state shared by the two threads.  The lexer thread refers to the
+     *  pipeline only weakly, through this, so a pipeline dropped without
+     *  close() can be collected. */
+    private static final class Ring implements Runnable {
+        final Batch[] batches = new Batch[BATCHES];
+        final Lexer lexer;
+        final WeakReference<TokenPipeline> owner;
+        volatile long published;  // batches filled by the lexer thread
+        volatile long consumed;   // batches finished by the parser thread
+        volatile boolean closed;
+        volatile Thread waiter;   // the thread parked waiting, if any
+
+        Ring(Lexer lexer, TokenPipeline owner) {
+            this.lexer = lexer;
+            this.owner = new WeakReference<TokenPipeline>(owner);
+            for (int i = 0; i < BATCHES; i++) batches[i] = new Batch();
+        }
+
+        /** Runs the lexer, publishing its tokens a batch at a time */
+        public void run() {
+            boolean end = false, failed = false;
+            for (long n = 0; ! end; n++) {
+                for (int spins = 0; n - consumed >= BATCHES; spins++) {
+                    if (closed || owner.get() == null) return;
+                    await(spins);
+                }
+                if (closed) return;
+                Batch b = batches[(int) (n % BATCHES)];
+                int size = 0;
+                while (size < BATCH_SIZE && ! end) {
+                    Object item = null;
+                    if (! failed) {
+                        try {
+                            item = lexer.readToken();
+                        } catch (ParseException e) {
+                            item = e;
+                        } catch (RuntimeException e) {
+                            item = new ParseException("lexer failed: " + e, lexer.line(), lexer.column());
+                            failed = true;  // the input ends here
+                        } catch (Error e) {
+                            item = e;
+                            failed = true;
+                        }
+                    }
+                    b.items[size] = item;
+                    b.lines[size] = lexer.line();
+                    b.columns[size] = lexer.column();
+                    size++;
+                    end = item == null || item instanceof Error;
+                }
+                b.size = size;
+                published = n + 1;  // makes the contents of b visible to the parser thread
+                wake();
+            }
+        }
+
+        /** Waits a little, yielding at first and then parking until woken,
+         *  for longer each time */
+        void await(int spins) {
+            if (spins < SPINS) Thread.yield();
+            else {
+                waiter = Thread.currentThread();
+                // bounded, in case a wake-up is missed
+                LockSupport.parkNanos(this, Math.min(MAX_PARK, MIN_PARK << Math.min(spins - SPINS, 16)));
+                waiter = null;
+            }
+        }
+
+        /** Unparks the other thread if it is waiting */
+        void wake() {
+            Thread t = waiter;
+            if (t != null && t != Thread.currentThread()) LockSupport.unpark(t);
+        }
+    }
+
+    private final Ring ring;
+    private final Thread producer;
+
+    // parser thread state
+    private Batch batch;     // being read
+    private int index;       // of the next item in batch
+    private Token buffer;    // holds token for peek() operation
+    private int line = 1, column = 1;  // of the token most recently returned
+
+    /** Constructs a pipeline of the tokens of lexer, which it starts lexing */
+    TokenPipeline(Lexer lexer) {
+        ring = new Ring(lexer, this);
+        producer = new Thread(ring, "TokenPipeline lexer");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    public Token peek() {
+        if (buffer == null) buffer = next();
+        return buffer;
+    }
+
+    public Token readToken() {
+        Token token = peek();
+        buffer = null;
+        return token;
+    }
+
+    public int line() { return line; }
+    public int column() { return column; }
+    public String position() { return "line " + line + ", column " + column; }
+
+    /** Stops the lexer thread; tokens not yet lexed can no longer be read */
+    public void close() {
+        ring.closed = true;
+        LockSupport.unpark(producer);
+    }
+
+    /** Returns the next token, or null at the end of input
+     * @throws ParseException for a lexical error, which is then skipped
+     */
+    private Token next() {
+        if (batch == null || index == batch.size) nextBatch();
+        Object item = batch.items[index];
+        line = batch.lines[index];
+        column = batch.columns[index];
+        if (item == null) return null;  // stays at the end
+        if (item instanceof Error) throw (Error) item;  // and stays there
+        index++;
+        if (item instanceof ParseException) throw (ParseException) item;
+        return (Token) item;
+    }
+
+    /** Hands back the batch read and waits for the next one */
+    private void nextBatch() {
+        long n = ring.consumed;
+        if (batch != null) {
+            ring.consumed = ++n;
+            ring.wake();
+        }
+        for (int spins = 0; ring.published <= n; spins++) {
+            if (ring.closed) throw new IllegalStateException("TokenPipeline closed");
+            ring.await(spins);
+        }
+        batch = ring.batches[(int) (n % BATCHES)];
+        index = 0;
+    }
+
+    /** Prints the time taken to parse the file args[0] with and without a pipeline */
+    public static void main(String[] args) throws IOException {
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            new IterativeParser(new Lexer(args[0])).parse();
+            long sequential = System.nanoTime() - start;
+            start = System.nanoTime();
+            TokenPipeline tokens = new TokenPipeline(new Lexer(args[0]));
+            try {
+                new IterativeParser(tokens).parse();
+            } finally {
+                tokens.close();
+            }
+            long pipelined = System.nanoTime() - start;
+            System.out.println("sequential " + sequential / 1000000 + " ms, pipelined " + pipelined / 1000000 + " ms");
+        }
+    }
+}
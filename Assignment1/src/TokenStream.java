@@ -0,0 +1,171 @@
+import java.util.*;
+
+/** Jam token stream held in parallel primitive arrays, as filled by
+ *  Lexer.tokenize().  Token i is described by
+ *    kind(i)   the ordinal of its TokenType,
+ *    value(i)  the value of an INT, otherwise its symbol id in the Lexer,
+ *    start(i), end(i)  its source offsets, packed together in one long.
+ *  Only INT tokens have to be materialized as new objects; every other
+ *  Token is found by its symbol id.  The arrays grow on demand and are
+ *  kept when the stream is cleared, so one stream can be reused for many
+ *  files.
+ *
+ *  A TokenStream is also a TokenSource, so that a Parser can consume it by
+ *  index; source positions are then reported as line and column.  Lexical
+ *  errors recorded among the tokens are thrown in their places, as the
+ *  Lexer would throw them.
+ */
+class TokenStream implements TokenSource {
+
+    private static final int INITIAL_SIZE = 1024;
+    private static final TokenType[] types = TokenType.values();
+    private static final int INT_KIND = TokenType.INT.ordinal();
+
+    private int[] kinds = new int[INITIAL_SIZE];
+    private int[] values = new int[INITIAL_SIZE];
+    private long[] spans = new long[INITIAL_SIZE];
+    private int size;
+
+    private int[] lineStarts = new int[64];  // offset of each line, ascending
+    private int lineCount;
+
+    private Token[] symbols;                 // Tokens by symbol id
+    private int reservedCount;               // ids from here on are Variables
+
+    private int[] errorIndexes = new int[0];     // index of the token after each error
+    private ParseException[] errors = new ParseException[0];
+    private int errorCount;
+    private int nextError;  // index of the next error for readToken()
+
+    private int next;       // index of the next token for readToken()
+    private int current;    // index of the token most recently returned
+    private Token buffer;   // holds token for peek() operation
+
+    /** Empties this stream, keeping its arrays */
+    void clear() {
+        size = 0;
+        lineCount = 0;
+        Arrays.fill(errors, 0, errorCount, null);
+        errorCount = 0;
+        nextError = 0;
+        next = 0;
+        current = -1;
+        buffer = null;
+    }
+
+    /** Appends a token spanning source offsets [start,end) */
+    void add(int kind, int value, long start, long end) {
+        if (end > Integer.MAX_VALUE)
+            throw new ParseException("input is too large for a TokenStream");
+        if (size == kinds.length) {
+            kinds = Arrays.copyOf(kinds, 2 * size);
+            values = Arrays.copyOf(values, 2 * size);
+            spans = Arrays.copyOf(spans, 2 * size);
+        }
+        kinds[size] = kind;
+        values[size] = value;
+        spans[size] = (start << 32) | end;
+        size++;
+    }
+
+    /** Records that a line starts at source offset start */
+    void addLine(long start) {
+        if (lineCount == lineStarts.length) lineStarts = Arrays.copyOf(lineStarts, 2 * lineCount);
+        lineStarts[lineCount++] = (int) start;
+    }
+
+    /** Records a lexical error in place of a token before the next one added */
+    void addError(ParseException e) {
+        if (errorCount == errors.length) {
+            errorIndexes = Arrays.copyOf(errorIndexes, Math.max(4, 2 * errorCount));
+            errors = Arrays.copyOf(errors, errorIndexes.length);
+        }
+        errorIndexes[errorCount] = size;
+        errors[errorCount++] = e;
+    }
+
+    void setSymbols(Token[] s, int r) {
+        symbols = s;
+        reservedCount = r;
+    }
+
+    /** Returns the number of lexical errors recorded */
+    public int errorCount() { return errorCount; }
+    /** Returns lexical error j */
+    public ParseException error(int j) { return errors[j]; }
+    /** Returns the index of the token that follows lexical error j */
+    public int errorIndex(int j) { return errorIndexes[j]; }
+
+    /** Returns the Token with the given symbol id */
+    public Token symbol(int id) { return symbols[id]; }
+
+    /** Returns the number of symbol ids that are not Variables */
+    public int reservedCount() { return reservedCount; }
+
+    public int size() { return size; }
+    public int kind(int i) { return kinds[i]; }
+    public TokenType type(int i) { return types[kinds[i]]; }
+    public int value(int i) { return values[i]; }
+    public int start(int i) { return (int) (spans[i] >>> 32); }
+    public int end(int i) { return (int) spans[i]; }
+
+    /** Returns token i as a Token; only INT tokens are allocated */
+    public Token token(int i) {
+        if (kinds[i] == INT_KIND) return new IntConstant(values[i]);
+        return symbols[values[i]];
+    }
+
+    /** Returns the line of source offset offset, counting from 1 */
+    public int line(int offset) {
+        int lo = 0, hi = lineCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid] <= offset) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo + 1;
+    }
+
+    /** Returns the column of source offset offset, counting from 1 */
+    public int column(int offset) {
+        return offset - lineStarts[line(offset) - 1] + 1;
+    }
+
+    /** Moves the cursor for readToken() back to the first token */
+    public void rewind() {
+        next = 0;
+        nextError = 0;
+        current = -1;
+        buffer = null;
+    }
+
+    /** Returns the next token without consuming it, as the Lexer does; a
+     *  lexical error recorded before it is thrown once, in its place */
+    public Token peek() {
+        if (buffer == null && nextError < errorCount && errorIndexes[nextError] == next)
+            throw errors[nextError++];
+        if (buffer == null && next < size) {
+            buffer = token(next);
+            current = next;
+        }
+        return buffer;
+    }
+
+    public Token readToken() {
+        Token token = peek();
+        if (token != null) {
+            buffer = null;
+            next++;
+        }
+        return token;
+    }
+
+    public int line() { return current < 0 ? 1 : line(start(current)); }
+    public int column() { return current < 0 ? 1 : column(start(current)); }
+
+    public String position() {
+        if (current < 0) return "start of input";
+        int offset = start(current);
+        return "line " + line(offset) + ", column " + column(offset);
+    }
+}